@@ -0,0 +1,24 @@
+plugins {
+    id("java")
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+group = "cc.olek.lamada"
+version = "1.0-SNAPSHOT"
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    jmhImplementation(parent!!)
+    jmhImplementation("org.slf4j:slf4j-nop:2.0.17")
+}
+
+jmh {
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    // ./gradlew :benchmarks:jmh -PjmhInclude=RoundTrip runs a subset
+    (findProperty("jmhInclude") as String?)?.let { includes = listOf(it) }
+}
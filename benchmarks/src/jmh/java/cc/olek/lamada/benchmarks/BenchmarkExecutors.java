@@ -0,0 +1,50 @@
+package cc.olek.lamada.benchmarks;
+
+import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.LoopbackRemoteTargetManager;
+import cc.olek.lamada.asm.LambdaImpl;
+import cc.olek.lamada.asm.LambdaReconstructor;
+import cc.olek.lamada.sender.LoopbackSender;
+
+import java.lang.invoke.SerializedLambda;
+import java.lang.reflect.Method;
+
+final class BenchmarkExecutors {
+    static final String OWN = "1";
+    static final String REMOTE = "2";
+
+    private BenchmarkExecutors() {
+    }
+
+    /**
+     * Loopback executor which runs everything on the calling thread, so only Lamada itself is measured
+     */
+    static DistributedExecutor<String> loopback() {
+        DistributedExecutor<String> executor = new DistributedExecutor<>(OWN);
+        executor.setTargetManager(new LoopbackRemoteTargetManager<>(executor));
+        executor.setSender(new LoopbackSender<>());
+        executor.setExecutor(Runnable::run);
+        executor.sync();
+        return executor;
+    }
+
+    static SerializedLambda serializedForm(Object lambda) throws Throwable {
+        Method writeReplace = lambda.getClass().getDeclaredMethod("writeReplace");
+        writeReplace.setAccessible(true);
+        SerializedLambda serialized = (SerializedLambda) writeReplace.invoke(lambda);
+        LambdaReconstructor.checkBeforeSending(serialized, lambda); // generates the accessor for the private lambda method
+        return serialized;
+    }
+
+    static LambdaImpl implOf(SerializedLambda serialized) {
+        return LambdaReconstructor.getLambdaImpl(serialized);
+    }
+
+    static Object[] capturedArgs(SerializedLambda serialized) {
+        Object[] args = new Object[serialized.getCapturedArgCount()];
+        for(int i = 0; i < args.length; i++) {
+            args[i] = serialized.getCapturedArg(i);
+        }
+        return args;
+    }
+}
@@ -0,0 +1,42 @@
+package cc.olek.lamada.benchmarks;
+
+import cc.olek.lamada.asm.LambdaImpl;
+import cc.olek.lamada.asm.LambdaReconstructor;
+import cc.olek.lamada.func.ExecutionSupplier;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.SerializedLambda;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilding a received lambda. Warm path hits the generated factory cache,
+ * cold path generates and defines the lambda classes again in a fresh class loader every time
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReconstructionBenchmark {
+    private LambdaImpl impl;
+    private Object[] args;
+
+    @Setup
+    public void setup() throws Throwable {
+        String name = "captured";
+        ExecutionSupplier<Integer> lambda = () -> name.length();
+        SerializedLambda serialized = BenchmarkExecutors.serializedForm(lambda);
+        impl = BenchmarkExecutors.implOf(serialized);
+        args = BenchmarkExecutors.capturedArgs(serialized);
+        LambdaReconstructor.reconstructLambda(impl, args, true, getClass().getClassLoader());
+    }
+
+    @Benchmark
+    public Object warm() {
+        return LambdaReconstructor.reconstructLambda(impl, args, true, getClass().getClassLoader());
+    }
+
+    @Benchmark
+    public Object cold() throws Throwable {
+        ClassLoader fresh = new ClassLoader(getClass().getClassLoader()) {};
+        return LambdaReconstructor.generateLambdaFactory(impl, true, fresh);
+    }
+}
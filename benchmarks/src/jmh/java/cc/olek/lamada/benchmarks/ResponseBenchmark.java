@@ -0,0 +1,66 @@
+package cc.olek.lamada.benchmarks;
+
+import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.context.ExecutionContext;
+import cc.olek.lamada.context.InvocationResult;
+import cc.olek.lamada.func.ExecutableInterface;
+import cc.olek.lamada.func.ExecutionSupplier;
+import cc.olek.lamada.serialization.BufferLease;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading responses with a small and a collection result
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseBenchmark {
+    @Param({"small", "list"})
+    public String result;
+
+    private DistributedExecutor<String> executor;
+    private ExecutionContext context;
+    private InvocationResult invocation;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() {
+        executor = BenchmarkExecutors.loopback();
+        ExecutionSupplier<Object> lambda = () -> null;
+        context = executor.getContext(BenchmarkExecutors.REMOTE, null, executor.getStaticObject(), lambda, ExecutableInterface.SUPPLIER, 1);
+        Object value;
+        if(result.equals("list")) {
+            List<String> list = new ArrayList<>();
+            for(int i = 0; i < 1000; i++) {
+                list.add("element " + i);
+            }
+            value = list;
+        } else {
+            value = "Hello, World!";
+        }
+        invocation = new InvocationResult(context, value, null);
+        serialized = executor.serializeResponse(invocation);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int serializeResponse() {
+        try(BufferLease lease = executor.serializeResponseLease(invocation)) {
+            return lease.length();
+        }
+    }
+
+    @Benchmark
+    public InvocationResult receiveResult() {
+        executor.registerExecution(context.opNumber(), context); // reading a response pops its context
+        return executor.receiveResult(BenchmarkExecutors.REMOTE, serialized);
+    }
+}
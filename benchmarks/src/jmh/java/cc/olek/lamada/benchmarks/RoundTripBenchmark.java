@@ -0,0 +1,38 @@
+package cc.olek.lamada.benchmarks;
+
+import cc.olek.lamada.DistributedExecutor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole call through LoopbackSender: serialize, receive, execute, respond and read the response
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoundTripBenchmark {
+    private DistributedExecutor<String> executor;
+
+    @Setup
+    public void setup() {
+        executor = BenchmarkExecutors.loopback();
+        executor.runMethod(BenchmarkExecutors.REMOTE, () -> 42).join();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public Integer runMethod() {
+        String value = "value";
+        return executor.runMethod(BenchmarkExecutors.REMOTE, () -> value.length()).join();
+    }
+
+    @Benchmark
+    public Void run() {
+        return executor.run(BenchmarkExecutors.REMOTE, () -> {}).join();
+    }
+}
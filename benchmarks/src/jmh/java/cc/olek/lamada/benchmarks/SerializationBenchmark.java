@@ -0,0 +1,75 @@
+package cc.olek.lamada.benchmarks;
+
+import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.context.ExecutionContext;
+import cc.olek.lamada.func.ExecutableInterface;
+import cc.olek.lamada.func.ExecutionSupplier;
+import cc.olek.lamada.serialization.BufferLease;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading a context for lambdas with different amounts of captured arguments
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializationBenchmark {
+    @Param({"0", "1", "8"})
+    public int captured;
+
+    private DistributedExecutor<String> executor;
+    private ExecutionContext context;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() {
+        executor = BenchmarkExecutors.loopback();
+        ExecutionSupplier<?> lambda = lambdaCapturing(captured);
+        context = executor.getContext(BenchmarkExecutors.REMOTE, null, executor.getStaticObject(), lambda, ExecutableInterface.SUPPLIER, 1);
+        serialized = executor.serialize(context);
+        executor.receiveContext(serialized, BenchmarkExecutors.OWN); // first read generates the lambda class
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int serialize() {
+        try(BufferLease lease = executor.serializeLease(context)) {
+            return lease.length();
+        }
+    }
+
+    @Benchmark
+    public ExecutionContext receiveContext() {
+        return executor.receiveContext(serialized, BenchmarkExecutors.OWN);
+    }
+
+    static ExecutionSupplier<?> lambdaCapturing(int captured) {
+        switch(captured) {
+            case 0:
+                return () -> 42;
+            case 1: {
+                String name = "captured";
+                return () -> name.length();
+            }
+            default: {
+                String name = "captured";
+                int number = 42;
+                long time = 1_700_000_000_000L;
+                double ratio = 0.5;
+                UUID id = UUID.randomUUID();
+                List<String> list = List.of("a", "b", "c");
+                int[] array = {1, 2, 3, 4};
+                boolean flag = true;
+                return () -> flag ? name.length() + number + time + ratio + id.hashCode() + list.size() + array.length : 0;
+            }
+        }
+    }
+}
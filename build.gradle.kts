@@ -20,11 +20,18 @@ dependencies {
     api("org.jetbrains:annotations:26.0.2")
     api("org.ow2.asm:asm:9.8")
     api("org.ow2.asm:asm-tree:9.8")
+    implementation("at.yawk.lz4:lz4-java:1.8.1")
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
     testImplementation("org.slf4j:slf4j-simple:2.0.17")
 }
 
+tasks.jar {
+    manifest {
+        attributes("Implementation-Version" to project.version) // part of the generated class cache key
+    }
+}
+
 tasks.test {
     useJUnitPlatform()
     environment("SYNC_DEBUG", "1")
@@ -10,11 +10,14 @@ repositories {
 }
 
 dependencies {
+    implementation("io.nats:jnats:2.21.1")
     compileOnly(parent!!)
+    testImplementation(parent!!)
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testImplementation("org.slf4j:slf4j-simple:2.0.17")
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
@@ -0,0 +1,31 @@
+package cc.olek.lamada.nats;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs incoming work outside of the nats dispatcher thread. Remote lambdas may block (stubs call back to the sender and join),
+ * so every operation gets its own (virtual, when available) thread, the same way redis implementation does it
+ */
+public class NatsExecutor {
+    private static final Logger log = LoggerFactory.getLogger(NatsExecutor.class);
+    public static final Executor INCOMING;
+    static {
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(Throwable ignored) {
+            log.warn("Lamada would benefit of running the application under JVM21+ because of virtual threads. Consider it");
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "lamada-nats-task");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        INCOMING = executor;
+    }
+}
@@ -0,0 +1,257 @@
+package cc.olek.lamada.nats;
+
+import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.DistributedObject;
+import cc.olek.lamada.InstructionCommunicator;
+import cc.olek.lamada.RemoteTargetManager;
+import cc.olek.lamada.asm.LambdaImpl;
+import cc.olek.lamada.asm.LambdaReconstructor;
+import cc.olek.lamada.asm.MethodImpl;
+import cc.olek.lamada.context.ExecutionContext;
+import cc.olek.lamada.context.InvocationResult;
+import cc.olek.lamada.util.Exceptions;
+import io.nats.client.*;
+import io.nats.client.api.KeyValueConfiguration;
+import io.nats.client.api.KeyValueEntry;
+import io.nats.client.impl.Headers;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMaps;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends operations with NATS request-reply. Context bytes travel in the request payload and the response comes back
+ * to the request's inbox, so a call costs one publish and one reply.
+ * <p>
+ * Lambda implementation and object numbers are kept in a JetStream key-value bucket
+ * </p>
+ */
+public class NatsImplementation extends RemoteTargetManager<String> implements InstructionCommunicator<String> {
+    public static final String DEFAULT_BUCKET = "lamada";
+    private static final String SUBJECT_PREFIX = "lamada.op.";
+    private static final String HEADER_SENDER = "Lamada-Sender";
+    private static final String HEADER_OP = "Lamada-Op";
+
+    private final Logger logger;
+    private final Connection connection;
+    private final Dispatcher dispatcher;
+    private final KeyValue registry;
+    private final Object2IntMap<LambdaImpl> ownImpls = Object2IntMaps.synchronize(new Object2IntOpenHashMap<>());
+    private final Map<String, Int2ObjectMap<LambdaImpl>> lookup = new ConcurrentHashMap<>();
+
+    public NatsImplementation(DistributedExecutor<String> executor, Connection connection) {
+        this(executor, connection, DEFAULT_BUCKET);
+    }
+
+    /**
+     * @param executor Executor to serve
+     * @param connection Connection to NATS. Server must have JetStream enabled
+     * @param bucket Key-value bucket to keep lambda implementations and object numbers in. Created if it doesn't exist
+     */
+    public NatsImplementation(DistributedExecutor<String> executor, Connection connection, String bucket) {
+        super(executor);
+        this.logger = LoggerFactory.getLogger("NatsExecutor-" + executor.getPurpose());
+        this.connection = connection;
+        try {
+            KeyValueManagement management = connection.keyValueManagement();
+            if(!management.getBucketNames().contains(bucket)) {
+                management.create(KeyValueConfiguration.builder().name(bucket).build());
+            }
+            this.registry = connection.keyValue(bucket);
+        } catch(IOException | JetStreamApiException e) {
+            throw new RuntimeException("Failed to open key-value bucket " + bucket, e);
+        }
+        this.dispatcher = connection.createDispatcher(this::onMessage);
+        this.dispatcher.subscribe(SUBJECT_PREFIX + executor.getOwnTarget());
+    }
+
+    private void onMessage(Message message) {
+        Headers headers = message.getHeaders();
+        String sender = headers == null ? null : headers.getFirst(HEADER_SENDER);
+        String op = headers == null ? null : headers.getFirst(HEADER_OP);
+        if(sender == null || op == null) {
+            logger.error("Rejecting malformed message on {}: no sender or op number", message.getSubject());
+            return;
+        }
+        int opNumber = Integer.parseInt(op);
+        if(LambdaReconstructor.DEBUG) {
+            logger.info("Operation #{} from {} ({} bytes)", opNumber, sender, message.getData().length);
+        }
+        NatsExecutor.INCOMING.execute(() -> onOperation(sender, message.getReplyTo(), opNumber, message.getData()));
+    }
+
+    private void onOperation(String sender, String replyTo, int opNumber, byte[] operation) {
+        boolean waitForReply = replyTo != null;
+        executor.receiveContextAsync(operation, sender).whenComplete((context, err) -> {
+            if(err != null) {
+                logger.error("Failed to read context {} from {}", opNumber, sender, err);
+                if(!waitForReply) return;
+                sendResponseBack(replyTo, InvocationResult.ofError(opNumber, new RuntimeException("Failed to serialize context with number: " + opNumber, err)));
+                return;
+            }
+            onContext(sender, replyTo, context);
+        });
+    }
+
+    private void onContext(String sender, String replyTo, ExecutionContext context) {
+        boolean waitForReply = replyTo != null;
+        if(context.deserializationError() != null) {
+            logger.error("Failed to deserialize context {} from {}", context.opNumber(), sender, context.deserializationError());
+            if(!waitForReply) return;
+            sendResponseBack(replyTo, InvocationResult.ofError(context, context.deserializationError()));
+            return;
+        }
+        executor.executeReceived(context, waitForReply, result -> {
+            if(result != null) sendResponseBack(replyTo, result);
+        });
+    }
+
+    private void sendResponseBack(String replyTo, InvocationResult result) {
+        byte[] toSend;
+        try {
+            toSend = this.executor.serializeResponse(result);
+        } catch(Throwable t) {
+            logger.error("Failed to serialize response {}", result.opNumber(), t);
+            toSend = this.executor.serializeResponse(InvocationResult.ofError(result.of(), t));
+        }
+        connection.publish(replyTo, toSend);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> send(DistributedObject<?, ?, String> object, String to, int opNumber, byte[] data, long timeout) {
+        if(timeout == DistributedObject.TIMEOUT_MODE_DEFAULT) {
+            timeout = executor.getDefaultTimeout();
+        }
+        Headers headers = new Headers()
+            .put(HEADER_SENDER, executor.getOwnTarget())
+            .put(HEADER_OP, String.valueOf(opNumber));
+        String subject = SUBJECT_PREFIX + to;
+        if(timeout <= DistributedObject.TIMEOUT_MODE_FORGET) {
+            try {
+                connection.publish(subject, headers, data);
+            } catch(Throwable t) {
+                return CompletableFuture.failedFuture(t);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Message> reply = timeout > 0
+            ? connection.requestWithTimeout(subject, headers, data, Duration.ofMillis(timeout))
+            : connection.request(subject, headers, data);
+        return reply.thenApply(Message::getData);
+    }
+
+    @Override
+    public LambdaImpl reconstruct(String sender, int number) {
+        Int2ObjectMap<LambdaImpl> lookups = lookup.get(sender);
+        if(lookups == null) return null;
+        return lookups.get(number);
+    }
+
+    @Override
+    public void registerImplementation(String sender, short lambdaNum, LambdaImpl impl) {
+        this.lookup.computeIfAbsent(sender, __ -> Int2ObjectMaps.synchronize(new Int2ObjectOpenHashMap<>())).put(lambdaNum, impl);
+    }
+
+    @Override
+    public short getNewObjNumber(DistributedObject<?, ?, String> impl) {
+        String objectKey = "obj_runtime_num." + keyToken(impl.getObjectType().getName());
+        try {
+            KeyValueEntry existing = registry.get(objectKey);
+            if(existing == null || existing.getValue() == null) {
+                int num = super.getNewObjNumber(impl); // increment counter and register
+                registry.put(objectKey, String.valueOf(num));
+                return (short) num;
+            }
+            return Short.parseShort(existing.getValueAsString());
+        } catch(IOException | JetStreamApiException e) {
+            throw Exceptions.wrap(e);
+        }
+    }
+
+    @Override
+    public SubmissionResult getOrSubmitOwn(String sendTo, LambdaImpl impl) {
+        boolean[] existedBefore = {true};
+        short num = (short) ownImpls.computeIfAbsent(impl, __ -> {
+            existedBefore[0] = false;
+            return getNewImplNumber(impl);
+        });
+        return new SubmissionResult(existedBefore[0], num);
+    }
+
+    @Override
+    protected short getNewImplNumber(LambdaImpl impl) {
+        short implNum = (short) this.counter.getAndIncrement();
+        try {
+            registry.put(implKey(executor.getOwnTarget(), implNum), "%s:%d:%s:%s:%s:%s".formatted(
+                impl.functionalInterface(),
+                impl.implMethodKind(),
+                impl.primarySignature(),
+                impl.implementation().className(),
+                impl.implementation().methodName(),
+                impl.implementation().signature()
+            ));
+        } catch(IOException | JetStreamApiException e) {
+            throw Exceptions.wrap(e);
+        }
+        return implNum;
+    }
+
+    @Override
+    public LambdaImpl requestMissingImplementation(String sender, short lambdaNum) {
+        KeyValueEntry entry;
+        try {
+            entry = registry.get(implKey(sender, lambdaNum));
+        } catch(IOException | JetStreamApiException e) {
+            logger.error("Failed to request lambda implementation #{} of {}", lambdaNum, sender, e);
+            return null;
+        }
+        if(entry == null || entry.getValue() == null) return null;
+        String[] data = entry.getValueAsString().split(":");
+        return new LambdaImpl(data[0], Integer.parseInt(data[1]), data[2], new MethodImpl(
+            data[3],
+            data[4],
+            data[5]
+        ));
+    }
+
+    @Override
+    public boolean isTargetAvailable(String target) {
+        return connection.getStatus() == Connection.Status.CONNECTED;
+    }
+
+    @Override
+    public void resync() {
+        throw new UnsupportedOperationException("Adding new objects after syncing is not supported on NATS");
+    }
+
+    @Override
+    public void shutdown() {
+        connection.closeDispatcher(dispatcher);
+    }
+
+    private static String implKey(String target, int lambdaNum) {
+        return "lambda_impl." + keyToken(target) + "." + lambdaNum;
+    }
+
+    // key-value keys only allow letters, digits and -/_=.
+    private static String keyToken(String value) {
+        StringBuilder token = new StringBuilder(value.length());
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            boolean allowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '/' || c == '_' || c == '=' || c == '.';
+            token.append(allowed ? c : '_');
+        }
+        return token.toString();
+    }
+}
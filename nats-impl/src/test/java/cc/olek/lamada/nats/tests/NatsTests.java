@@ -0,0 +1,138 @@
+package cc.olek.lamada.nats.tests;
+
+import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.defaults.FunctionalDistributedObject;
+import cc.olek.lamada.func.ExecutionSupplier;
+import cc.olek.lamada.nats.NatsImplementation;
+import io.nats.client.Connection;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs against a local NATS server with JetStream enabled (nats-server -js), taken from NATS_URL.
+ * Tests are skipped if there is no server to connect to
+ */
+public class NatsTests {
+    private static final List<Connection> connections = new ArrayList<>();
+    private static final String bucket = "lamada-test-" + UUID.randomUUID().toString().substring(0, 8);
+    private static DistributedExecutor<String> a;
+    private static DistributedExecutor<String> b;
+    private static DistributedExecutor<String> c;
+    private static FunctionalDistributedObject<UUID, Named, String> namedA;
+    private static FunctionalDistributedObject<UUID, Named, String> namedB;
+    public static final CountDownLatch forgotten = new CountDownLatch(1);
+    public static Named subjectA;
+    public static Named subjectB;
+
+    @BeforeAll
+    public static void createExecutors() {
+        String url = System.getenv().getOrDefault("NATS_URL", Options.DEFAULT_URL);
+        a = create("a", url);
+        b = create("b", url);
+        c = create("c", url);
+        subjectA = new NamedImpl(UUID.randomUUID(), "SubjectA");
+        subjectB = new NamedImpl(UUID.randomUUID(), "SubjectB");
+        namedA = new FunctionalDistributedObject<>(a, Named.class, UUID.class, true);
+        namedB = new FunctionalDistributedObject<>(b, Named.class, UUID.class, true);
+        new FunctionalDistributedObject<>(c, Named.class, UUID.class, true);
+        a.sync();
+        b.sync();
+        c.sync();
+        namedA.setSerialization(Named::getUUID, uuid -> uuid.equals(subjectA.getUUID()) ? subjectA : null);
+        namedB.setSerialization(Named::getUUID, uuid -> uuid.equals(subjectB.getUUID()) ? subjectB : null);
+    }
+
+    private static DistributedExecutor<String> create(String name, String url) {
+        Connection connection;
+        try {
+            connection = Nats.connect(new Options.Builder()
+                .server(url)
+                .connectionTimeout(Duration.ofSeconds(2))
+                .maxReconnects(0)
+                .build());
+        } catch(Exception e) {
+            assumeTrue(false, "No NATS server at " + url + ": " + e);
+            return null;
+        }
+        connections.add(connection);
+        DistributedExecutor<String> executor = new DistributedExecutor<>(name);
+        NatsImplementation impl = new NatsImplementation(executor, connection, bucket);
+        executor.setTargetManager(impl);
+        executor.setSender(impl);
+        return executor;
+    }
+
+    @AfterAll
+    public static void shutdown() throws Exception {
+        for(DistributedExecutor<String> executor : new DistributedExecutor[] {a, b, c}) {
+            if(executor != null) executor.shutdown();
+        }
+        if(!connections.isEmpty()) {
+            connections.get(0).keyValueManagement().delete(bucket);
+        }
+        for(Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testStaticRoundTrip() {
+        String sent = "Hello over nats";
+        assertEquals(sent, a.runMethod("b", () -> sent).join());
+        assertDoesNotThrow(() -> b.run("a", () -> System.out.println("Static call over nats")).join());
+    }
+
+    @Test
+    public void testUniqueCallback() {
+        // b doesn't know subjectA, so it receives a stub and calls a back to get the name
+        Named local = subjectA;
+        assertEquals(
+            subjectA.getName() + ":" + subjectB.getName(),
+            namedA.runMethod("b", subjectB.getUUID(), remote -> local.getName() + ":" + remote.getName()).join()
+        );
+    }
+
+    @Test
+    public void testMissingImplementationIsRequested() {
+        ExecutionSupplier<String> supplier = () -> "Requested";
+        // first send carries the full lambda to c, so b only gets the number and reads the rest from the bucket
+        assertEquals("Requested", a.runMethod("c", supplier).join());
+        assertEquals("Requested", a.runMethod("b", supplier).join());
+    }
+
+    @Test
+    public void testForget() throws InterruptedException {
+        a.runAndForget("b", () -> forgotten.countDown()).join();
+        assertTrue(forgotten.await(10, TimeUnit.SECONDS));
+    }
+
+    public interface Named {
+        String getName();
+        UUID getUUID();
+    }
+
+    public record NamedImpl(UUID id, String name) implements Named {
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public UUID getUUID() {
+            return id;
+        }
+    }
+}
@@ -10,11 +10,16 @@ repositories {
 }
 
 dependencies {
+    implementation("io.netty:netty-transport:4.1.119.Final")
+    implementation("io.netty:netty-codec:4.1.119.Final")
+    implementation("io.netty:netty-handler:4.1.119.Final")
     compileOnly(parent!!)
+    testImplementation(parent!!)
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testImplementation("org.slf4j:slf4j-simple:2.0.17")
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
@@ -0,0 +1,447 @@
+package cc.olek.lamada.netty;
+
+import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.DistributedObject;
+import cc.olek.lamada.InstructionCommunicator;
+import cc.olek.lamada.RemoteTargetManager;
+import cc.olek.lamada.asm.LambdaImpl;
+import cc.olek.lamada.asm.LambdaReconstructor;
+import cc.olek.lamada.asm.MethodImpl;
+import cc.olek.lamada.context.ExecutionContext;
+import cc.olek.lamada.context.InvocationResult;
+import cc.olek.lamada.exception.TargetNotAvailableException;
+import cc.olek.lamada.serialization.BufferLease;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.AttributeKey;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMaps;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Sends operations over persistent TCP connections. Each frame is length-prefixed and carries
+ * the bytes produced by {@link DistributedExecutor#serializeLease}, responses are matched by op number.
+ * Serialized output is written to the socket as is and incoming frames are read in place, so payloads are never copied.
+ * <p>
+ * There is no shared storage between targets, so lambda implementations which receiver doesn't know yet
+ * are requested from the sender over the same connection
+ * </p>
+ */
+public class NettyImplementation extends RemoteTargetManager<String> implements InstructionCommunicator<String> {
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    private static final long IMPL_REQUEST_TIMEOUT = 10_000;
+    private static final AttributeKey<String> PEER = AttributeKey.valueOf("lamada-peer");
+
+    static final byte FRAME_HELLO = 0x0;
+    static final byte FRAME_OP_WAIT = 0x1;
+    static final byte FRAME_OP_FORGET = 0x2;
+    static final byte FRAME_RESPONSE = 0x3;
+    static final byte FRAME_IMPL_REQUEST = 0x4;
+    static final byte FRAME_IMPL_RESPONSE = 0x5;
+
+    private final Logger logger;
+    private final Map<String, CompletableFuture<LambdaImpl>> implRequests = new ConcurrentHashMap<>();
+    private final Object2IntMap<LambdaImpl> ownImpls = Object2IntMaps.synchronize(new Object2IntOpenHashMap<>());
+    private final Int2ObjectMap<LambdaImpl> ownImplsByNumber = Int2ObjectMaps.synchronize(new Int2ObjectOpenHashMap<>());
+    private final Map<String, Int2ObjectMap<LambdaImpl>> lookup = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Channel>> peers = new ConcurrentHashMap<>();
+    private final Function<String, InetSocketAddress> addressBook;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final Bootstrap clientBootstrap;
+    private final Channel serverChannel;
+
+    /**
+     * @param executor Executor to serve
+     * @param bindAddress Address on which other targets connect to us
+     * @param addressBook Resolves a target into an address to connect to. May return null if target is unknown
+     */
+    public NettyImplementation(DistributedExecutor<String> executor, InetSocketAddress bindAddress, Function<String, InetSocketAddress> addressBook) {
+        super(executor);
+        this.logger = LoggerFactory.getLogger("NettyExecutor-" + executor.getPurpose());
+        this.addressBook = addressBook;
+        this.bossGroup = new NioEventLoopGroup(1);
+        this.workerGroup = new NioEventLoopGroup();
+        this.clientBootstrap = new Bootstrap()
+            .group(workerGroup)
+            .channel(NioSocketChannel.class)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .option(ChannelOption.SO_KEEPALIVE, true)
+            .handler(new FrameInitializer());
+        this.serverChannel = new ServerBootstrap()
+            .group(bossGroup, workerGroup)
+            .channel(NioServerSocketChannel.class)
+            .childOption(ChannelOption.TCP_NODELAY, true)
+            .childOption(ChannelOption.SO_KEEPALIVE, true)
+            .childHandler(new FrameInitializer())
+            .bind(bindAddress)
+            .syncUninterruptibly()
+            .channel();
+    }
+
+    public InetSocketAddress getBoundAddress() {
+        return (InetSocketAddress) serverChannel.localAddress();
+    }
+
+    @Override
+    public CompletableFuture<byte[]> send(DistributedObject<?, ?, String> object, String to, int opNumber, byte[] data, long timeout) {
+        return send(object, to, opNumber, BufferLease.wrap(data), timeout).thenApply(response -> {
+            if(response == null) return null;
+            try(response) {
+                return response.toBytes();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<BufferLease> send(DistributedObject<?, ?, String> object, String to, int opNumber, BufferLease data, long timeout) {
+        CompletableFuture<BufferLease> result = new CompletableFuture<>();
+        if(timeout == DistributedObject.TIMEOUT_MODE_DEFAULT) {
+            timeout = executor.getDefaultTimeout();
+        }
+        boolean waitForReply = timeout > DistributedObject.TIMEOUT_MODE_FORGET;
+        if(waitForReply) {
+            executor.getPendingOperations().attachReply(opNumber, result);
+        }
+        CompletableFuture<BufferLease> finalResult = result;
+        channelFor(to).whenComplete((channel, err) -> {
+            if(err != null) {
+                data.release();
+                executor.getPendingOperations().discardReply(opNumber);
+                finalResult.completeExceptionally(err);
+                return;
+            }
+            writeFrame(channel, waitForReply ? FRAME_OP_WAIT : FRAME_OP_FORGET, opNumber, data).addListener(future -> {
+                if(!future.isSuccess()) {
+                    executor.getPendingOperations().discardReply(opNumber);
+                    finalResult.completeExceptionally(future.cause());
+                    return;
+                }
+                if(!waitForReply) {
+                    finalResult.complete(null);
+                }
+            });
+        });
+        if(timeout > 0) {
+            result = result.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((response, err) -> {
+                if(err != null) {
+                    executor.getPendingOperations().discardReply(opNumber);
+                }
+            });
+        }
+        return result;
+    }
+
+    // header goes in its own small buffer, payload is wrapped and given back once it's on the wire
+    private ChannelFuture writeFrame(Channel channel, byte type, int opNumber, BufferLease payload) {
+        ByteBuf header = channel.alloc().buffer(5);
+        header.writeByte(type);
+        header.writeInt(opNumber);
+        ByteBuf frame = channel.alloc().compositeBuffer(2)
+            .addComponents(true, header, Unpooled.wrappedBuffer(payload.buffer()));
+        return channel.writeAndFlush(frame).addListener(future -> payload.release());
+    }
+
+    private static BufferLease lease(ByteBuf frame) {
+        ByteBuf payload = frame.retainedSlice();
+        return BufferLease.of(payload.nioBuffer(), payload::release);
+    }
+
+    private CompletableFuture<Channel> channelFor(String target) {
+        CompletableFuture<Channel> existing = peers.get(target);
+        if(existing != null && (!existing.isDone() || isActive(existing))) {
+            return existing;
+        }
+        InetSocketAddress address = addressBook.apply(target);
+        if(address == null) {
+            return CompletableFuture.failedFuture(new TargetNotAvailableException(target));
+        }
+        return peers.compute(target, (__, current) -> {
+            if(current != null && current != existing) return current; // somebody else connected meanwhile
+            CompletableFuture<Channel> connecting = new CompletableFuture<>();
+            ChannelFuture connect = clientBootstrap.clone()
+                .attr(PEER, target)
+                .connect(address);
+            connect.addListener((ChannelFutureListener) future -> {
+                if(!future.isSuccess()) {
+                    peers.remove(target, connecting);
+                    connecting.completeExceptionally(future.cause());
+                    return;
+                }
+                Channel channel = future.channel();
+                ByteBuf hello = channel.alloc().buffer();
+                hello.writeByte(FRAME_HELLO);
+                writeString(hello, executor.getOwnTarget());
+                channel.writeAndFlush(hello);
+                connecting.complete(channel);
+            });
+            return connecting;
+        });
+    }
+
+    private static boolean isActive(CompletableFuture<Channel> future) {
+        return !future.isCompletedExceptionally() && future.join().isActive();
+    }
+
+    private void onFrame(Channel channel, ByteBuf frame) {
+        byte type = frame.readByte();
+        if(type == FRAME_HELLO) {
+            String peer = readString(frame);
+            channel.attr(PEER).set(peer);
+            lookup.remove(peer); // it may have been restarted, so its numbers are not valid anymore
+            executor.getDescriptorDictionary().forget(peer); // and it may not know our strings
+            CompletableFuture<Channel> registered = CompletableFuture.completedFuture(channel);
+            peers.compute(peer, (__, existing) -> existing == null || (existing.isDone() && !isActive(existing)) ? registered : existing);
+            return;
+        }
+        String peer = channel.attr(PEER).get();
+        if(peer == null) {
+            logger.error("Rejecting frame {} from {}: no hello was received", type, channel.remoteAddress());
+            channel.close();
+            return;
+        }
+        switch(type) {
+            case FRAME_OP_WAIT, FRAME_OP_FORGET -> {
+                int opNumber = frame.readInt();
+                BufferLease operation = lease(frame); // frame is released after this method, keep the payload for the task
+                if(LambdaReconstructor.DEBUG) {
+                    logger.info("Operation #{} from {} ({} bytes)", opNumber, peer, operation.length());
+                }
+                boolean waitForReply = type == FRAME_OP_WAIT;
+                NettyExecutor.INCOMING.execute(() -> onOperation(channel, peer, opNumber, operation, waitForReply));
+            }
+            case FRAME_RESPONSE -> {
+                int opNumber = frame.readInt();
+                CompletableFuture<BufferLease> future = executor.getPendingOperations().takeReply(opNumber);
+                if(future == null) {
+                    logger.warn("Received response #{} from {} which nobody waits for", opNumber, peer);
+                    return;
+                }
+                BufferLease response = lease(frame);
+                if(!future.complete(response)) {
+                    response.release(); // timed out meanwhile
+                }
+            }
+            case FRAME_IMPL_REQUEST -> {
+                short lambdaNum = frame.readShort();
+                ByteBuf response = channel.alloc().buffer();
+                response.writeByte(FRAME_IMPL_RESPONSE);
+                response.writeShort(lambdaNum);
+                LambdaImpl impl = ownImplsByNumber.get(lambdaNum);
+                response.writeBoolean(impl != null);
+                if(impl != null) {
+                    writeString(response, impl.functionalInterface());
+                    response.writeInt(impl.implMethodKind());
+                    writeString(response, impl.primarySignature());
+                    writeString(response, impl.implementation().className());
+                    writeString(response, impl.implementation().methodName());
+                    writeString(response, impl.implementation().signature());
+                }
+                channel.writeAndFlush(response);
+            }
+            case FRAME_IMPL_RESPONSE -> {
+                short lambdaNum = frame.readShort();
+                LambdaImpl impl = null;
+                if(frame.readBoolean()) {
+                    impl = new LambdaImpl(readString(frame), frame.readInt(), readString(frame), new MethodImpl(
+                        readString(frame),
+                        readString(frame),
+                        readString(frame)
+                    ));
+                }
+                CompletableFuture<LambdaImpl> request = implRequests.remove(peer + ":" + lambdaNum);
+                if(request != null) {
+                    request.complete(impl);
+                }
+            }
+            default -> logger.error("Rejecting unknown frame type {} from {}", type, peer);
+        }
+    }
+
+    private void onOperation(Channel channel, String sender, int opNumber, BufferLease operation, boolean waitForReply) {
+        CompletableFuture<ExecutionContext> received;
+        try(operation) {
+            received = executor.receiveContextAsync(operation.buffer(), sender);
+        } catch(Throwable t) {
+            received = CompletableFuture.failedFuture(t);
+        }
+        received.whenComplete((context, err) -> {
+            if(err != null) {
+                logger.error("Failed to read context {} from {}", opNumber, sender, err);
+                if(!waitForReply) return;
+                sendResponseBack(channel, InvocationResult.ofError(opNumber, new RuntimeException("Failed to serialize context with number: " + opNumber, err)));
+                return;
+            }
+            onContext(channel, sender, context, waitForReply);
+        });
+    }
+
+    private void onContext(Channel channel, String sender, ExecutionContext context, boolean waitForReply) {
+        if(context.deserializationError() != null) {
+            logger.error("Failed to deserialize context {} from {}", context.opNumber(), sender, context.deserializationError());
+            if(!waitForReply) return;
+            sendResponseBack(channel, InvocationResult.ofError(context, context.deserializationError()));
+            return;
+        }
+        executor.executeReceived(context, waitForReply, result -> {
+            if(result != null) sendResponseBack(channel, result);
+        });
+    }
+
+    private void sendResponseBack(Channel channel, InvocationResult result) {
+        BufferLease toSend;
+        try {
+            toSend = this.executor.serializeResponseLease(result);
+        } catch(Throwable t) {
+            logger.error("Failed to serialize response {}", result.opNumber(), t);
+            toSend = this.executor.serializeResponseLease(InvocationResult.ofError(result.of(), t));
+        }
+        writeFrame(channel, FRAME_RESPONSE, result.opNumber(), toSend);
+    }
+
+    @Override
+    public LambdaImpl reconstruct(String sender, int number) {
+        Int2ObjectMap<LambdaImpl> lookups = lookup.get(sender);
+        if(lookups == null) return null;
+        return lookups.get(number);
+    }
+
+    @Override
+    public void registerImplementation(String sender, short lambdaNum, LambdaImpl impl) {
+        this.lookup.computeIfAbsent(sender, __ -> Int2ObjectMaps.synchronize(new Int2ObjectOpenHashMap<>())).put(lambdaNum, impl);
+    }
+
+    @Override
+    public SubmissionResult getOrSubmitOwn(String sendTo, LambdaImpl impl) {
+        boolean[] existedBefore = {true};
+        short num = (short) ownImpls.computeIfAbsent(impl, __ -> {
+            existedBefore[0] = false;
+            return getNewImplNumber(impl);
+        });
+        return new SubmissionResult(existedBefore[0], num);
+    }
+
+    @Override
+    protected short getNewImplNumber(LambdaImpl impl) {
+        short implNum = (short) this.counter.getAndIncrement();
+        ownImplsByNumber.put(implNum, impl.clone());
+        return implNum;
+    }
+
+    @Override
+    public LambdaImpl requestMissingImplementation(String sender, short lambdaNum) {
+        CompletableFuture<LambdaImpl> request = implRequests.computeIfAbsent(sender + ":" + lambdaNum, __ -> {
+            CompletableFuture<LambdaImpl> future = new CompletableFuture<>();
+            channelFor(sender).thenAccept(channel -> {
+                ByteBuf frame = channel.alloc().buffer(3);
+                frame.writeByte(FRAME_IMPL_REQUEST);
+                frame.writeShort(lambdaNum);
+                channel.writeAndFlush(frame);
+            }).exceptionally(err -> {
+                future.completeExceptionally(err);
+                return null;
+            });
+            return future;
+        });
+        try {
+            return request.get(IMPL_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch(Exception e) {
+            logger.error("Failed to request lambda implementation #{} from {}", lambdaNum, sender, e);
+            implRequests.remove(sender + ":" + lambdaNum, request);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isTargetAvailable(String target) {
+        CompletableFuture<Channel> existing = peers.get(target);
+        if(existing != null && existing.isDone() && isActive(existing)) {
+            return true;
+        }
+        return addressBook.apply(target) != null;
+    }
+
+    @Override
+    public void shutdown() {
+        serverChannel.close().syncUninterruptibly();
+        for(CompletableFuture<Channel> peer : peers.values()) {
+            if(peer.isDone() && !peer.isCompletedExceptionally()) {
+                peer.join().close();
+            }
+        }
+        peers.clear();
+        bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+        workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+    }
+
+    private static void writeString(ByteBuf buf, String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        buf.writeInt(bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    private static String readString(ByteBuf buf) {
+        int length = buf.readInt();
+        String str = buf.toString(buf.readerIndex(), length, StandardCharsets.UTF_8);
+        buf.skipBytes(length);
+        return str;
+    }
+
+    private class FrameInitializer extends ChannelInitializer<SocketChannel> {
+        @Override
+        protected void initChannel(SocketChannel channel) {
+            channel.pipeline()
+                .addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4))
+                .addLast(new LengthFieldPrepender(4))
+                .addLast(new FrameHandler());
+        }
+    }
+
+    private class FrameHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+            try {
+                onFrame(ctx.channel(), frame);
+            } catch(Throwable t) {
+                logger.error("Failed to process frame from {}", ctx.channel().remoteAddress(), t);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            String peer = ctx.channel().attr(PEER).get();
+            if(peer != null) {
+                peers.computeIfPresent(peer, (__, existing) -> existing.isDone() && !existing.isCompletedExceptionally() && existing.join() == ctx.channel() ? null : existing);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.error("Connection error with {}", ctx.channel().remoteAddress(), cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package cc.olek.lamada.netty.tests;
+
+import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.defaults.FunctionalDistributedObject;
+import cc.olek.lamada.exception.TargetNotAvailableException;
+import cc.olek.lamada.func.ExecutionSupplier;
+import cc.olek.lamada.netty.NettyImplementation;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NettyTests {
+    private static final Map<String, InetSocketAddress> addresses = new ConcurrentHashMap<>();
+    private static DistributedExecutor<String> a;
+    private static DistributedExecutor<String> b;
+    private static DistributedExecutor<String> c;
+    private static FunctionalDistributedObject<UUID, Named, String> namedA;
+    private static FunctionalDistributedObject<UUID, Named, String> namedB;
+    public static final CountDownLatch forgotten = new CountDownLatch(1);
+    public static Named subjectA;
+    public static Named subjectB;
+
+    @BeforeAll
+    public static void createExecutors() {
+        a = create("a");
+        b = create("b");
+        c = create("c");
+        subjectA = new NamedImpl(UUID.randomUUID(), "SubjectA");
+        subjectB = new NamedImpl(UUID.randomUUID(), "SubjectB");
+        namedA = new FunctionalDistributedObject<>(a, Named.class, UUID.class, true);
+        namedB = new FunctionalDistributedObject<>(b, Named.class, UUID.class, true);
+        new FunctionalDistributedObject<>(c, Named.class, UUID.class, true);
+        a.sync();
+        b.sync();
+        c.sync();
+        namedA.setSerialization(Named::getUUID, uuid -> uuid.equals(subjectA.getUUID()) ? subjectA : null);
+        namedB.setSerialization(Named::getUUID, uuid -> uuid.equals(subjectB.getUUID()) ? subjectB : null);
+    }
+
+    private static DistributedExecutor<String> create(String name) {
+        DistributedExecutor<String> executor = new DistributedExecutor<>(name);
+        NettyImplementation impl = new NettyImplementation(executor, new InetSocketAddress("127.0.0.1", 0), addresses::get);
+        addresses.put(name, impl.getBoundAddress());
+        executor.setTargetManager(impl);
+        executor.setSender(impl);
+        return executor;
+    }
+
+    @AfterAll
+    public static void shutdown() {
+        a.shutdown();
+        b.shutdown();
+        c.shutdown();
+    }
+
+    @Test
+    public void testStaticRoundTrip() {
+        String sent = "Hello over netty";
+        assertEquals(sent, a.runMethod("b", () -> sent).join());
+        assertDoesNotThrow(() -> b.run("a", () -> System.out.println("Static call over netty")).join());
+    }
+
+    @Test
+    public void testUniqueCallback() {
+        // b doesn't know subjectA, so it receives a stub and calls a back to get the name
+        Named local = subjectA;
+        assertEquals(
+            subjectA.getName() + ":" + subjectB.getName(),
+            namedA.runMethod("b", subjectB.getUUID(), remote -> local.getName() + ":" + remote.getName()).join()
+        );
+    }
+
+    @Test
+    public void testMissingImplementationIsRequested() {
+        ExecutionSupplier<String> supplier = () -> "Requested";
+        // first send carries the full lambda to c, so b only gets the number and has to ask for the rest
+        assertEquals("Requested", a.runMethod("c", supplier).join());
+        assertEquals("Requested", a.runMethod("b", supplier).join());
+    }
+
+    @Test
+    public void testForget() throws InterruptedException {
+        a.runAndForget("b", () -> forgotten.countDown()).join();
+        assertTrue(forgotten.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testUnknownTarget() {
+        CompletionException thrown = assertThrows(CompletionException.class, () -> a.runMethod("nowhere", () -> 1).join());
+        assertInstanceOf(TargetNotAvailableException.class, thrown.getCause());
+    }
+
+    public interface Named {
+        String getName();
+        UUID getUUID();
+    }
+
+    public record NamedImpl(UUID id, String name) implements Named {
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public UUID getUUID() {
+            return id;
+        }
+    }
+}
@@ -12,6 +12,10 @@ repositories {
 dependencies {
     implementation("redis.clients:jedis:6.0.0")
     compileOnly(parent!!)
+    testImplementation(parent!!)
+    testImplementation(platform("org.junit:junit-bom:5.10.0"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testImplementation("org.slf4j:slf4j-simple:2.0.17")
 }
 
 tasks.test {
@@ -2,83 +2,63 @@ package cc.olek.lamada.redis;
 
 import cc.olek.lamada.DistributedExecutor;
 import cc.olek.lamada.DistributedObject;
-import cc.olek.lamada.InstructionCommunicator;
-import cc.olek.lamada.RemoteTargetManager;
-import cc.olek.lamada.asm.LambdaImpl;
 import cc.olek.lamada.asm.LambdaReconstructor;
-import cc.olek.lamada.asm.MethodImpl;
 import cc.olek.lamada.context.ExecutionContext;
 import cc.olek.lamada.context.InvocationResult;
-import cc.olek.lamada.func.ExecutableInterface;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
-import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPubSub;
 import redis.clients.jedis.params.SetParams;
 
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
-public class RedisImplementation extends RemoteTargetManager<String> implements InstructionCommunicator<String> {
-    private final Logger logger;
-    private final Int2ObjectMap<CompletableFuture<byte[]>> submittedFutures = Int2ObjectMaps.synchronize(new Int2ObjectOpenHashMap<>());
-    private final JedisPool pool;
-    private final Object2IntMap<LambdaImpl> ownImpls = new Object2IntOpenHashMap<>();
-    private final Map<String, Int2ObjectMap<LambdaImpl>> lookup = new HashMap<>();
-    private final Function<String, Boolean> activityCheck;
-    private final Set<Thread> executing = new HashSet<>();
+public class RedisImplementation extends RedisTargetManager {
+    private static final byte INLINE_SEPARATOR = '\n';
+    private volatile int inlineThreshold = 0;
     public RedisImplementation(DistributedExecutor<String> executor, JedisPool pool) {
         this(executor, pool, null);
     }
 
     public RedisImplementation(DistributedExecutor<String> executor, JedisPool pool, Function<String, Boolean> activityCheck) {
-        super(executor);
-        this.pool = pool;
-        this.logger = LoggerFactory.getLogger("RedisExecutor-" + executor.getPurpose());
+        super(executor, pool, activityCheck);
         final String ownChannel = "op:" + executor.getOwnTarget();
         Thread accepting = new Thread(() -> {
-            JedisPubSub pubSub = new JedisPubSub() {
+            BinaryJedisPubSub pubSub = new BinaryJedisPubSub() {
                 @Override
-                public void onMessage(String channel, String message) {
+                public void onMessage(byte[] channelBytes, byte[] message) {
+                    String channel = new String(channelBytes, StandardCharsets.UTF_8);
                     if(LambdaReconstructor.DEBUG) {
-                        logger.info("Message {} on {}", message, channel);
+                        logger.info("Message {} ({} bytes) on {}", header(message), message.length, channel);
                     }
-                    try(Jedis jedis = pool.getResource()) {
-                        onMessageReceived(channel, message, jedis, executor);
+                    try {
+                        onMessageReceived(channel, message, executor);
                     } catch(Throwable t) {
-                        logger.error("Failed to receive message {} on {}", message, channel, t);
+                        logger.error("Failed to receive message {} on {}", header(message), channel, t);
                     }
                 }
             };
             try(Jedis jedis = pool.getResource()) {
-                jedis.subscribe(pubSub, ownChannel);
+                jedis.subscribe(pubSub, ownChannel.getBytes(StandardCharsets.UTF_8));
             }
         });
         accepting.setDaemon(true);
         accepting.setName("lamada-redis-thread");
         accepting.start();
-        this.activityCheck = activityCheck;
         if(activityCheck == null) {
             // todo: not used now
         }
     }
 
-    private void onMessageReceived(String channel, String message, Jedis jedis, DistributedExecutor<String> executor) {
-        String[] data = message.split(":");
+    private void onMessageReceived(String channel, byte[] message, DistributedExecutor<String> executor) {
+        int headerEnd = indexOf(message, INLINE_SEPARATOR);
+        boolean inline = headerEnd != -1;
+        String[] data = header(message).split(":");
         if(data.length != 3) {
-            throw new RuntimeException("Rejecting malformed message on " + channel + ": " + message);
+            throw new RuntimeException("Rejecting malformed message on " + channel + ": " + header(message));
         }
         String action = data[0];
         String sender = data[1];
@@ -86,69 +66,60 @@ public class RedisImplementation extends RemoteTargetManager<String> implements
         switch(action) {
             case "w", "n" -> {
                 boolean waitForReply = action.equals("w");
-                // not using try(var) because of too much tabs
-                byte[] key = (channel + ":" + opNumber).getBytes(StandardCharsets.UTF_8);
-                byte[] operation = jedis.getDel(key);
-                if(operation == null) {
-                    logger.error("Failed to find operation with number {} (tried to read key {}", opNumber, new String(key));
-                    return;
-                }
-                ExecutionContext context;
-                try {
-                    context = executor.receiveContext(operation, sender);
-                } catch(Throwable t) {
-                    logger.error("Failed to read context {} from {}", operation, sender, t);
-                    if(!waitForReply) return;
-                    sendResponseBack(jedis, sender, InvocationResult.ofError(opNumber, new RuntimeException("Failed to serialize context with number: " + opNumber, t)));
-                    return;
-                }
-
-                if(context.deserializationError() != null) {
-                    logger.error("Failed to deserialize context {} ({}) from {}", context.opNumber(), operation, sender, context.deserializationError());
-                    if(!waitForReply) return;
-                    sendResponseBack(jedis, sender, InvocationResult.ofError(context, context.deserializationError()));
-                    return;
-                }
-                if(ExecutableInterface.isAsync(context.mode())) {
-                    executor.executeAsyncContext(context).whenCompleteAsync((result, err) -> {
-                        if(err != null) {
-                            sendResponseBack(sender, InvocationResult.ofError(context, err));
-                            return;
-                        }
-                        sendResponseBack(sender, result);
-                    }, RedisExecutor.JAVA_EXECUTOR);
-                    return;
+                byte[] operation;
+                if(inline) {
+                    operation = Arrays.copyOfRange(message, headerEnd + 1, message.length);
+                } else {
+                    byte[] key = (channel + ":" + opNumber).getBytes(StandardCharsets.UTF_8);
+                    try(Jedis jedis = pool.getResource()) {
+                        operation = jedis.getDel(key);
+                    }
+                    if(operation == null) {
+                        logger.error("Failed to find operation with number {} (tried to read key {}", opNumber, new String(key));
+                        return;
+                    }
                 }
-                Thread thread = RedisExecutor.INSTANCE.unstarted(() -> {
-                    try {
-                        InvocationResult invocation = executor.executeContext(context);
+                executor.receiveContextAsync(operation, sender).whenComplete((context, err) -> {
+                    if(err != null) {
+                        logger.error("Failed to read context {} from {}", operation, sender, err);
                         if(!waitForReply) return;
-                        sendResponseBack(sender, invocation);
-                    } catch(Throwable t) {
-                        logger.error("Failed sending response back", t);
-                        sendResponseBack(sender, InvocationResult.ofError(context, t));
-                    } finally {
-                        executing.remove(Thread.currentThread());
+                        sendResponseBack(sender, InvocationResult.ofError(opNumber, new RuntimeException("Failed to serialize context with number: " + opNumber, err)));
+                        return;
                     }
+                    onContext(sender, operation, waitForReply, context);
                 });
-                thread.setName("DistributedObjectTask #" + opNumber);
-                executing.add(thread);
-                thread.start();
             }
             // complete submitted futures
             case "r" -> {
-                byte[] response = jedis.getDel(("resp:" + executor.getOwnTarget() + ":" + opNumber).getBytes(StandardCharsets.UTF_8));
-                submittedFutures.get(opNumber).complete(response);
+                byte[] response;
+                if(inline) {
+                    response = Arrays.copyOfRange(message, headerEnd + 1, message.length);
+                } else {
+                    try(Jedis jedis = pool.getResource()) {
+                        response = jedis.getDel(("resp:" + executor.getOwnTarget() + ":" + opNumber).getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                CompletableFuture<byte[]> future = executor.getPendingOperations().takeReply(opNumber);
+                if(future != null) {
+                    future.complete(response);
+                }
             }
         }
     }
 
-    private void sendResponseBack(String target, InvocationResult result) {
-        try(Jedis jedis = this.pool.getResource()) {
-            sendResponseBack(jedis, target, result);
+    private void onContext(String sender, byte[] operation, boolean waitForReply, ExecutionContext context) {
+        if(context.deserializationError() != null) {
+            logger.error("Failed to deserialize context {} ({}) from {}", context.opNumber(), operation, sender, context.deserializationError());
+            if(!waitForReply) return;
+            sendResponseBack(sender, InvocationResult.ofError(context, context.deserializationError()));
+            return;
         }
+        executor.executeReceived(context, waitForReply, result -> {
+            if(result != null) sendResponseBack(sender, result);
+        });
     }
-    private void sendResponseBack(Jedis jedis, String target, InvocationResult result) {
+
+    private void sendResponseBack(String target, InvocationResult result) {
         byte[] toSend;
         try {
             toSend = this.executor.serializeResponse(result);
@@ -156,8 +127,16 @@ public class RedisImplementation extends RemoteTargetManager<String> implements
             logger.error("Failed to serialize response {}", result.of().opNumber(), t);
             toSend = this.executor.serializeResponse(InvocationResult.ofError(result.of(), t));
         }
-        jedis.set(("resp:" + target + ":" + result.opNumber()).getBytes(StandardCharsets.UTF_8), toSend, SetParams.setParams().ex(30));
-        jedis.publish("op:" + target, "r:" + executor.getOwnTarget() + ":" + result.opNumber());
+        String header = "r:" + executor.getOwnTarget() + ":" + result.opNumber();
+        byte[] finalToSend = toSend;
+        writer.submit(pipeline -> {
+            if(shouldInline(finalToSend)) {
+                pipeline.publish(("op:" + target).getBytes(StandardCharsets.UTF_8), inlineMessage(header, finalToSend));
+                return;
+            }
+            pipeline.set(("resp:" + target + ":" + result.opNumber()).getBytes(StandardCharsets.UTF_8), finalToSend, SetParams.setParams().ex(30));
+            pipeline.publish("op:" + target, header);
+        });
     }
 
     @Override
@@ -165,21 +144,32 @@ public class RedisImplementation extends RemoteTargetManager<String> implements
         DistributedExecutor<String> executor = object.getExecutor();
         CompletableFuture<byte[]> result = new CompletableFuture<>();
         if(timeout == DistributedObject.TIMEOUT_MODE_DEFAULT) {
-            timeout = 10_000;
+            timeout = executor.getDefaultTimeout();
         }
         boolean waitForReply = timeout > DistributedObject.TIMEOUT_MODE_FORGET;
         if(waitForReply) {
-            submittedFutures.put(opNumber, result);
+            executor.getPendingOperations().attachReply(opNumber, result);
+            result.whenComplete((__, err) -> {
+                if(err != null) executor.getPendingOperations().discardReply(opNumber);
+            });
         }
+        String key = "op:" + to;
+        String header = (waitForReply ? "w:" : "n:") + executor.getOwnTarget() + ":" + opNumber;
         CompletableFuture<byte[]> finalResult = result;
-        executor.getAsync().execute(() -> {
-            try (Jedis jedis = this.pool.getResource()) {
-                String key = "op:" + to;
-                jedis.set((key + ":" + opNumber).getBytes(StandardCharsets.UTF_8), data, SetParams.setParams().ex(30));
-                jedis.publish(key,  (waitForReply ? "w:" : "n:") + executor.getOwnTarget() + ":" + opNumber);
-                if(!waitForReply) {
-                    finalResult.complete(null);
-                }
+        writer.submit(pipeline -> {
+            if(shouldInline(data)) {
+                pipeline.publish(key.getBytes(StandardCharsets.UTF_8), inlineMessage(header, data));
+            } else {
+                pipeline.set((key + ":" + opNumber).getBytes(StandardCharsets.UTF_8), data, SetParams.setParams().ex(30));
+                pipeline.publish(key, header);
+            }
+        }).whenComplete((__, err) -> {
+            if(err != null) {
+                finalResult.completeExceptionally(err);
+                return;
+            }
+            if(!waitForReply) {
+                finalResult.complete(null);
             }
         });
         if(timeout > 0) {
@@ -188,96 +178,44 @@ public class RedisImplementation extends RemoteTargetManager<String> implements
         return result;
     }
 
-    @Override
-    public LambdaImpl reconstruct(String sender, int number) {
-        Int2ObjectMap<LambdaImpl> lookups = lookup.get(sender);
-        if(lookups == null) return null;
-        return lookups.get(number);
+    /**
+     * Payloads up to this size are published together with the notice instead of being stored under a key,
+     * which saves a SET and a GETDEL in each direction. Bigger payloads still go through a key with 30s expiry.
+     * All targets must run a version which understands inline messages before enabling it
+     * @param bytes Maximum payload size to inline, 0 disables inlining
+     */
+    public void setInlineThreshold(int bytes) {
+        this.inlineThreshold = bytes;
     }
 
-    @Override
-    public void registerImplementation(String sender, short lambdaNum, LambdaImpl impl) {
-        this.lookup.computeIfAbsent(sender, __ -> new Int2ObjectOpenHashMap<>()).put(lambdaNum, impl);
+    public int getInlineThreshold() {
+        return inlineThreshold;
     }
 
-    @Override
-    public short getNewObjNumber(DistributedObject<?, ?, String> impl) {
-        try(Jedis jedis = this.pool.getResource()) {
-            String objectKey = "obj_runtime_num_" + impl.getObjectType().getName();
-            String existing = jedis.get(objectKey);
-            if(existing == null) {
-                int num = super.getNewObjNumber(impl); // increment counter and register
-                jedis.set(objectKey, String.valueOf(num));
-                return (short) num;
-            }
-            return Short.parseShort(existing);
-        }
+    private boolean shouldInline(byte[] payload) {
+        int threshold = this.inlineThreshold;
+        return threshold > 0 && payload.length <= threshold;
     }
 
-    @Override
-    public SubmissionResult getOrSubmitOwn(String sendTo, LambdaImpl impl) {
-        boolean[] existedBefore = {true};
-        short num = (short) ownImpls.computeIfAbsent(impl, __ -> {
-            existedBefore[0] = false;
-            return getNewImplNumber(impl);
-        });
-        return new SubmissionResult(existedBefore[0], num);
+    // inline message is the usual notice, a separator and the payload right after it
+    private static byte[] inlineMessage(String header, byte[] payload) {
+        byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+        byte[] message = new byte[headerBytes.length + 1 + payload.length];
+        System.arraycopy(headerBytes, 0, message, 0, headerBytes.length);
+        message[headerBytes.length] = INLINE_SEPARATOR;
+        System.arraycopy(payload, 0, message, headerBytes.length + 1, payload.length);
+        return message;
     }
 
-    @Override
-    protected short getNewImplNumber(LambdaImpl impl) {
-        short implNum = (short) this.counter.getAndIncrement();
-        try(Jedis jedis = this.pool.getResource()) {
-            jedis.set("lambda_impl_" + executor.getOwnTarget() + "_" + implNum, "%s:%d:%s:%s:%s:%s".formatted(
-                impl.functionalInterface(),
-                impl.implMethodKind(),
-                impl.primarySignature(),
-                impl.implementation().className(),
-                impl.implementation().methodName(),
-                impl.implementation().signature()
-            ));
-        }
-        return implNum;
+    private static String header(byte[] message) {
+        int headerEnd = indexOf(message, INLINE_SEPARATOR);
+        return new String(message, 0, headerEnd == -1 ? message.length : headerEnd, StandardCharsets.UTF_8);
     }
 
-    @Override
-    public LambdaImpl requestMissingImplementation(String sender, short lambdaNum) {
-        try(Jedis jedis = this.pool.getResource()) {
-            String implValue = jedis.get("lambda_impl_" + sender + "_" + lambdaNum);
-            if(implValue == null) return null;
-            String[] data = implValue.split(":");
-            return new LambdaImpl(data[0], Integer.parseInt(data[1]), data[2], new MethodImpl(
-                data[3],
-                data[4],
-                data[5]
-            ));
-        }
-    }
-
-    @Override
-    public boolean isTargetAvailable(String s) {
-        Function<String, Boolean> activityCheck = this.activityCheck;
-        if(activityCheck != null) {
-            return activityCheck.apply(s);
-        }
-        return true; // todo: implement check if target exists
-    }
-
-    @Override
-    public void resync() {
-        throw new UnsupportedOperationException("Adding new objects after syncing is not supported on Redis");
-    }
-
-    @Override
-    public void shutdown() {
-        if(this.activityCheck == null) return;
-        for(Thread thread : executing) {
-            try {
-                logger.info("Waiting for {} for 5 minutes", thread.getName());
-                thread.join(5 * 60 * 1000);
-            } catch(InterruptedException e) {
-                logger.error("Interrupted waiting", e);
-            }
+    private static int indexOf(byte[] array, byte value) {
+        for(int i = 0; i < array.length; i++) {
+            if(array[i] == value) return i;
         }
+        return -1;
     }
 }
@@ -0,0 +1,175 @@
+package cc.olek.lamada.redis;
+
+import cc.olek.lamada.routing.KeyDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps key owners in one Redis hash per namespace, {@code key_owners:<namespace>}. Every change is also published
+ * on {@value #CHANGES_CHANNEL}, so other targets update what they remember without asking Redis again.
+ * If the subscription drops, listeners are told changes were lost and it's retried with a growing delay
+ */
+public class RedisKeyDirectory implements KeyDirectory<String>, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(RedisKeyDirectory.class);
+    public static final String CHANGES_CHANNEL = "key_owner_changes";
+    private static final String OWNERS_KEY = "key_owners:";
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 30_000;
+    private static final String REMOVE_SCRIPT = """
+        if redis.call('HGET', KEYS[1], ARGV[1]) == ARGV[2] then
+            redis.call('HDEL', KEYS[1], ARGV[1])
+            redis.call('PUBLISH', ARGV[3], ARGV[4])
+        end""";
+    private final JedisPool pool;
+    private final RedisWriteCoalescer writer;
+    private final Executor lookups;
+    private final List<Listener<String>> listeners = new CopyOnWriteArrayList<>();
+    private volatile JedisPubSub changes;
+    private volatile boolean closed;
+    private Thread subscriber;
+
+    /**
+     * @param writer Coalescer ownership changes are written through
+     * @param lookups Executor which waits for lookups
+     */
+    public RedisKeyDirectory(JedisPool pool, RedisWriteCoalescer writer, Executor lookups) {
+        this.pool = pool;
+        this.writer = writer;
+        this.lookups = lookups;
+    }
+
+    @Override
+    public CompletableFuture<String> lookup(String namespace, String key) {
+        return CompletableFuture.supplyAsync(() -> {
+            try(Jedis jedis = pool.getResource()) {
+                return jedis.hget(OWNERS_KEY + namespace, key);
+            }
+        }, lookups);
+    }
+
+    @Override
+    public CompletableFuture<Void> assign(String namespace, String key, String owner) {
+        return writer.submit(pipeline -> {
+            pipeline.hset(OWNERS_KEY + namespace, key, owner);
+            pipeline.publish(CHANGES_CHANNEL, change(namespace, key, owner));
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> remove(String namespace, String key, String owner) {
+        return CompletableFuture.runAsync(() -> {
+            try(Jedis jedis = pool.getResource()) {
+                jedis.eval(REMOVE_SCRIPT, List.of(OWNERS_KEY + namespace), List.of(key, owner, CHANGES_CHANNEL, change(namespace, key, null)));
+            }
+        }, lookups);
+    }
+
+    @Override
+    public void addListener(Listener<String> listener) {
+        listeners.add(listener);
+        synchronized(this) {
+            if(subscriber != null || closed) return;
+            subscriber = new Thread(this::subscribeLoop);
+            subscriber.setDaemon(true);
+            subscriber.setName("lamada-redis-key-directory");
+            subscriber.start();
+        }
+    }
+
+    @Override
+    public void removeListener(Listener<String> listener) {
+        listeners.remove(listener);
+    }
+
+    private void subscribeLoop() {
+        long retryMillis = MIN_RETRY_MILLIS;
+        boolean resubscribing = false;
+        while(!closed) {
+            ChangeSubscription subscription = new ChangeSubscription(resubscribing);
+            changes = subscription;
+            Throwable failure = null;
+            try(Jedis jedis = pool.getResource()) {
+                jedis.subscribe(subscription, CHANGES_CHANNEL);
+            } catch(Throwable t) {
+                failure = t;
+            }
+            if(closed) return;
+            if(subscription.subscribed) {
+                retryMillis = MIN_RETRY_MILLIS; // it was up before dropping, start over
+            }
+            logger.error("Lost ownership changes subscription, retrying in {} ms", retryMillis, failure);
+            resubscribing = true;
+            notifyChangesLost(); // whatever was published until we are back is missed
+            try {
+                Thread.sleep(retryMillis);
+            } catch(InterruptedException e) {
+                return;
+            }
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        }
+    }
+
+    private void notifyChangesLost() {
+        for(Listener<String> listener : listeners) {
+            listener.onChangesLost();
+        }
+    }
+
+    private static String change(String namespace, String key, String owner) {
+        return namespace + "\n" + (owner == null ? "" : owner) + "\n" + key;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        JedisPubSub changes = this.changes;
+        if(changes != null && changes.isSubscribed()) {
+            changes.unsubscribe();
+        }
+        synchronized(this) {
+            if(subscriber != null) {
+                subscriber.interrupt();
+            }
+        }
+    }
+
+    private final class ChangeSubscription extends JedisPubSub {
+        private final boolean resubscribing;
+        private volatile boolean subscribed;
+
+        ChangeSubscription(boolean resubscribing) {
+            this.resubscribing = resubscribing;
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            subscribed = true;
+            if(resubscribing) {
+                logger.info("Resubscribed to ownership changes");
+                notifyChangesLost(); // lookups made while we were away may have seen owners replaced since
+            }
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            // namespace, owner and the key last, since it may contain anything
+            String[] data = message.split("\n", 3);
+            if(data.length != 3) {
+                logger.error("Rejecting malformed ownership change: {}", message);
+                return;
+            }
+            String owner = data[1].isEmpty() ? null : data[1];
+            for(Listener<String> listener : listeners) {
+                listener.onOwnerChanged(data[0], data[2], owner);
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package cc.olek.lamada.redis;
+
+import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.DistributedObject;
+import cc.olek.lamada.asm.LambdaReconstructor;
+import cc.olek.lamada.context.ExecutionContext;
+import cc.olek.lamada.context.InvocationResult;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.XAddParams;
+import redis.clients.jedis.params.XReadGroupParams;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Sends operations through Redis Streams instead of pub/sub. Every target reads its own stream with a consumer group
+ * in batches, acknowledges an operation once it has been executed and writes the response to the sender's stream.
+ * <p>
+ * Operations which were read but not acknowledged stay in the pending entries list, so a restarted target executes
+ * them again before reading new ones. That makes delivery at-least-once: an operation interrupted by a crash runs twice.
+ * Operations sent to a target which is down wait in its stream until it comes up.
+ * </p>
+ * <p>
+ * Operation numbers start over in every process, so every entry carries a random epoch of the process which sent
+ * the operation. Responses left for a previous run of a restarted target have another epoch and are dropped
+ * </p>
+ * Expects the pool to talk RESP2, which is the default
+ */
+public class RedisStreamImplementation extends RedisTargetManager {
+    public static final String GROUP = "lamada";
+    private static final byte[] GROUP_BYTES = GROUP.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FIELD_ACTION = {'a'};
+    private static final byte[] FIELD_SENDER = {'s'};
+    private static final byte[] FIELD_OP = {'o'};
+    private static final byte[] FIELD_DATA = {'d'};
+    private static final byte[] FIELD_EPOCH = {'e'};
+    private static final byte ACTION_WAIT = 'w';
+    private static final byte ACTION_NO_REPLY = 'n';
+    private static final byte ACTION_RESPONSE = 'r';
+    private static final int READ_BLOCK_MILLIS = 1000;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final byte[] ownStream;
+    private final byte[] consumer;
+    private final byte[] epoch = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36).getBytes(StandardCharsets.US_ASCII);
+    private final Thread reading;
+    private volatile boolean running = true;
+    private volatile int batchSize = 256;
+    private volatile long maxLength = 100_000;
+
+    public RedisStreamImplementation(DistributedExecutor<String> executor, JedisPool pool) {
+        this(executor, pool, null);
+    }
+
+    public RedisStreamImplementation(DistributedExecutor<String> executor, JedisPool pool, Function<String, Boolean> activityCheck) {
+        super(executor, pool, activityCheck);
+        this.ownStream = streamKey(executor.getOwnTarget());
+        this.consumer = executor.getOwnTarget().getBytes(StandardCharsets.UTF_8);
+        createGroup();
+        this.reading = new Thread(this::readLoop);
+        this.reading.setDaemon(true);
+        this.reading.setName("lamada-redis-stream-thread");
+        this.reading.start();
+    }
+
+    private void createGroup() {
+        try(Jedis jedis = pool.getResource()) {
+            // read from the very beginning, operations could have been sent before this target ever started
+            jedis.xgroupCreate(ownStream, GROUP_BYTES, "0".getBytes(StandardCharsets.UTF_8), true);
+        } catch(JedisDataException e) {
+            if(e.getMessage() == null || !e.getMessage().startsWith("BUSYGROUP")) throw e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readLoop() {
+        // first drain what was delivered to us before a restart, then switch to new entries
+        byte[] pendingFrom = "0".getBytes(StandardCharsets.UTF_8);
+        while(running) {
+            List<Object> read;
+            try(Jedis jedis = pool.getResource()) {
+                XReadGroupParams params = XReadGroupParams.xReadGroupParams().count(batchSize);
+                if(pendingFrom == null) params.block(READ_BLOCK_MILLIS);
+                read = jedis.xreadGroup(GROUP_BYTES, consumer, params,
+                    new AbstractMap.SimpleEntry<>(ownStream, pendingFrom == null ? ">".getBytes(StandardCharsets.UTF_8) : pendingFrom));
+            } catch(Throwable t) {
+                if(!running) return;
+                logger.error("Failed to read stream {}, retrying in a second", new String(ownStream, StandardCharsets.UTF_8), t);
+                try {
+                    Thread.sleep(1000);
+                    createGroup(); // stream might have been deleted
+                } catch(InterruptedException e) {
+                    return;
+                } catch(Throwable ignored) {
+                }
+                continue;
+            }
+            List<Object> entries = read == null || read.isEmpty() ? List.of() : (List<Object>) ((List<Object>) read.getFirst()).get(1);
+            if(pendingFrom != null) {
+                if(entries.isEmpty()) {
+                    pendingFrom = null;
+                    continue;
+                }
+                pendingFrom = (byte[]) ((List<Object>) entries.getLast()).getFirst();
+                logger.info("Recovering {} pending entries", entries.size());
+            }
+            onBatch(entries);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onBatch(List<Object> entries) {
+        List<byte[]> toAck = new ArrayList<>();
+        for(Object element : entries) {
+            List<Object> entry = (List<Object>) element;
+            byte[] id = (byte[]) entry.get(0);
+            List<Object> fields = (List<Object>) entry.get(1);
+            if(fields == null) { // trimmed away while pending
+                toAck.add(id);
+                continue;
+            }
+            byte action = 0;
+            String sender = null;
+            int opNumber = -1;
+            byte[] data = null;
+            byte[] epoch = null;
+            for(int i = 0; i + 1 < fields.size(); i += 2) {
+                byte[] field = (byte[]) fields.get(i);
+                byte[] value = (byte[]) fields.get(i + 1);
+                switch(field[0]) {
+                    case 'a' -> action = value[0];
+                    case 's' -> sender = new String(value, StandardCharsets.UTF_8);
+                    case 'o' -> opNumber = Integer.parseInt(new String(value, StandardCharsets.US_ASCII));
+                    case 'd' -> data = value;
+                    case 'e' -> epoch = value;
+                }
+            }
+            if(sender == null || opNumber == -1 || data == null) {
+                logger.error("Rejecting malformed entry {}", new String(id, StandardCharsets.US_ASCII));
+                toAck.add(id);
+                continue;
+            }
+            if(LambdaReconstructor.DEBUG) {
+                logger.info("Entry {} {}:{}:{} ({} bytes)", new String(id, StandardCharsets.US_ASCII), (char) action, sender, opNumber, data.length);
+            }
+            if(action == ACTION_RESPONSE) {
+                if(!Arrays.equals(epoch, this.epoch)) { // answers an operation of our previous run
+                    logger.warn("Dropping response {} from {} to an operation of another run", opNumber, sender);
+                    toAck.add(id);
+                    continue;
+                }
+                CompletableFuture<byte[]> future = executor.getPendingOperations().takeReply(opNumber);
+                if(future != null) {
+                    future.complete(data);
+                }
+                toAck.add(id);
+                continue;
+            }
+            int finalOpNumber = opNumber;
+            byte[] operation = data;
+            Origin origin = new Origin(id, sender, epoch);
+            boolean waitForReply = action == ACTION_WAIT;
+            inFlight.incrementAndGet();
+            RedisExecutor.JAVA_EXECUTOR.execute(() -> onOperation(origin, finalOpNumber, waitForReply, operation));
+        }
+        if(toAck.isEmpty()) return;
+        byte[][] ids = toAck.toArray(byte[][]::new);
+        writer.submit(pipeline -> pipeline.xack(ownStream, GROUP_BYTES, ids));
+    }
+
+    private void onOperation(Origin origin, int opNumber, boolean waitForReply, byte[] operation) {
+        executor.receiveContextAsync(operation, origin.sender()).whenComplete((context, err) -> {
+            if(err != null) {
+                logger.error("Failed to read context {} from {}", opNumber, origin.sender(), err);
+                finish(origin, waitForReply ? InvocationResult.ofError(opNumber, new RuntimeException("Failed to serialize context with number: " + opNumber, err)) : null);
+                return;
+            }
+            onContext(origin, waitForReply, context);
+        });
+    }
+
+    private void onContext(Origin origin, boolean waitForReply, ExecutionContext context) {
+        if(context.deserializationError() != null) {
+            logger.error("Failed to deserialize context {} from {}", context.opNumber(), origin.sender(), context.deserializationError());
+            finish(origin, waitForReply ? InvocationResult.ofError(context, context.deserializationError()) : null);
+            return;
+        }
+        executor.executeReceived(context, waitForReply, result -> finish(origin, result));
+    }
+
+    // response and acknowledgement go on the same pipeline
+    private void finish(Origin origin, InvocationResult result) {
+        byte[] toSend = null;
+        if(result != null) {
+            try {
+                toSend = this.executor.serializeResponse(result);
+            } catch(Throwable t) {
+                logger.error("Failed to serialize response {}", result.opNumber(), t);
+                toSend = this.executor.serializeResponse(InvocationResult.ofError(result.of(), t));
+            }
+        }
+        byte[] finalToSend = toSend;
+        writer.submit(pipeline -> {
+            if(finalToSend != null) {
+                pipeline.xadd(streamKey(origin.sender()), addParams(), entry(ACTION_RESPONSE, result.opNumber(), origin.epoch(), finalToSend));
+            }
+            pipeline.xack(ownStream, GROUP_BYTES, origin.id());
+        }).whenComplete((__, err) -> {
+            if(err != null) {
+                logger.error("Failed to finish entry {} from {}", new String(origin.id(), StandardCharsets.US_ASCII), origin.sender(), err);
+            }
+            if(inFlight.decrementAndGet() == 0) {
+                synchronized(inFlight) {
+                    inFlight.notifyAll();
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[]> send(DistributedObject<?, ?, String> object, String to, int opNumber, byte[] data, long timeout) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        if(timeout == DistributedObject.TIMEOUT_MODE_DEFAULT) {
+            timeout = executor.getDefaultTimeout();
+        }
+        boolean waitForReply = timeout > DistributedObject.TIMEOUT_MODE_FORGET;
+        if(waitForReply) {
+            executor.getPendingOperations().attachReply(opNumber, result);
+            result.whenComplete((__, err) -> {
+                if(err != null) executor.getPendingOperations().discardReply(opNumber);
+            });
+        }
+        writer.submit(pipeline -> pipeline.xadd(streamKey(to), addParams(), entry(waitForReply ? ACTION_WAIT : ACTION_NO_REPLY, opNumber, epoch, data)))
+            .whenComplete((__, err) -> {
+                if(err != null) {
+                    result.completeExceptionally(err);
+                    return;
+                }
+                if(!waitForReply) {
+                    result.complete(null);
+                }
+            });
+        if(timeout > 0) {
+            return result.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    /**
+     * @param epoch Epoch of the process which sent the operation, the own one unless it's a response
+     */
+    private Map<byte[], byte[]> entry(byte action, int opNumber, byte[] epoch, byte[] data) {
+        Map<byte[], byte[]> entry = new LinkedHashMap<>(5);
+        entry.put(FIELD_ACTION, new byte[] {action});
+        entry.put(FIELD_SENDER, consumer);
+        entry.put(FIELD_OP, Integer.toString(opNumber).getBytes(StandardCharsets.US_ASCII));
+        entry.put(FIELD_DATA, data);
+        if(epoch != null) {
+            entry.put(FIELD_EPOCH, epoch);
+        }
+        return entry;
+    }
+
+    private XAddParams addParams() {
+        return XAddParams.xAddParams().maxLen(maxLength).approximateTrimming();
+    }
+
+    private static byte[] streamKey(String target) {
+        return ("stream:" + target).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param batchSize Maximum amount of entries taken from the stream with one read
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Streams are trimmed to roughly this many entries on every write. Entries which were trimmed before
+     * they were read are lost, so keep it well above the backlog a target can have
+     * @param maxLength Approximate maximum stream length
+     */
+    public void setMaxLength(long maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    public long getMaxLength() {
+        return maxLength;
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        try {
+            reading.join(READ_BLOCK_MILLIS * 2L);
+            long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5);
+            synchronized(inFlight) {
+                while(inFlight.get() > 0) {
+                    long left = deadline - System.currentTimeMillis();
+                    if(left <= 0) break;
+                    logger.info("Waiting for {} operations to finish", inFlight.get());
+                    inFlight.wait(left);
+                }
+            }
+        } catch(InterruptedException e) {
+            logger.error("Interrupted waiting", e);
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Entry an operation was read from
+     * @param epoch Epoch of the sender's process, null if it sent none
+     */
+    private record Origin(byte[] id, String sender, byte[] epoch) {
+    }
+}
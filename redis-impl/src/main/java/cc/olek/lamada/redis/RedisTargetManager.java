@@ -0,0 +1,336 @@
+package cc.olek.lamada.redis;
+
+import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.DistributedObject;
+import cc.olek.lamada.InstructionCommunicator;
+import cc.olek.lamada.RemoteTargetManager;
+import cc.olek.lamada.asm.LambdaImpl;
+import cc.olek.lamada.asm.MethodImpl;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Keeps lambda implementations and object numbers in Redis, so every Redis transport shares the same layout.
+ * Implementations of a target live in one hash, {@code lambda_impls:<target>}, keyed by their number. A peer's whole hash is
+ * fetched in one round trip the first time one of its numbers is missing, and for every known peer during {@link #sync()}
+ */
+public abstract class RedisTargetManager extends RemoteTargetManager<String> implements InstructionCommunicator<String> {
+    protected final Logger logger;
+    protected final JedisPool pool;
+    protected final Function<String, Boolean> activityCheck;
+    protected final RedisWriteCoalescer writer;
+    private static final String IMPLS_KEY = "lambda_impls:";
+    private static final String IMPL_TARGETS_KEY = "lambda_impl_targets";
+    private static final String LIVE_TARGETS_KEY = "lamada_live_targets";
+    // scores are Redis' own time, so clocks of targets don't have to agree
+    private static final String HEARTBEAT_SCRIPT = """
+        local time = redis.call('TIME')
+        local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+        redis.call('ZADD', KEYS[1], now, ARGV[1])
+        redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', now - tonumber(ARGV[2]))""";
+    private static final String LIVE_TARGETS_SCRIPT = """
+        local time = redis.call('TIME')
+        local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+        return redis.call('ZRANGEBYSCORE', KEYS[1], now - tonumber(ARGV[1]), '+inf')""";
+    private final Object2IntMap<LambdaImpl> ownImpls = new Object2IntOpenHashMap<>();
+    private final Map<String, Int2ObjectMap<LambdaImpl>> lookup = new ConcurrentHashMap<>();
+    private final Set<String> prefetched = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> missing = new ConcurrentHashMap<>();
+    private volatile long negativeCacheMillis = 1000;
+    private volatile boolean announced;
+    private volatile long heartbeatMillis = 1000;
+    private RedisKeyDirectory keyDirectory;
+    private ScheduledExecutorService heartbeat;
+
+    protected RedisTargetManager(DistributedExecutor<String> executor, JedisPool pool, Function<String, Boolean> activityCheck) {
+        super(executor);
+        this.pool = pool;
+        this.activityCheck = activityCheck;
+        this.writer = new RedisWriteCoalescer(pool, executor.getAsync());
+        this.logger = LoggerFactory.getLogger("RedisExecutor-" + executor.getPurpose());
+    }
+
+    /**
+     * Operations and responses are written through this coalescer, use it to tune the flush window and batch size
+     */
+    public RedisWriteCoalescer getWriter() {
+        return writer;
+    }
+
+    @Override
+    public LambdaImpl reconstruct(String sender, int number) {
+        Int2ObjectMap<LambdaImpl> lookups = lookup.get(sender);
+        if(lookups == null) return null;
+        return lookups.get(number);
+    }
+
+    @Override
+    public void registerImplementation(String sender, short lambdaNum, LambdaImpl impl) {
+        this.lookup.computeIfAbsent(sender, __ -> Int2ObjectMaps.synchronize(new Int2ObjectOpenHashMap<>())).put(lambdaNum, impl);
+    }
+
+    @Override
+    public void sync() {
+        super.sync();
+        prefetchAll();
+        startHeartbeat();
+    }
+
+    private synchronized void startHeartbeat() {
+        if(heartbeat != null) return;
+        beat(); // be live before anyone asks
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lamada-redis-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(this::beat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void beat() {
+        try(Jedis jedis = this.pool.getResource()) {
+            jedis.eval(HEARTBEAT_SCRIPT, List.of(LIVE_TARGETS_KEY), List.of(executor.getOwnTarget(), String.valueOf(getLiveMillis())));
+        } catch(Throwable t) {
+            logger.error("Failed to send a heartbeat", t);
+        }
+    }
+
+    /**
+     * Targets send a heartbeat every interval once synced, and count as live until three intervals pass without one
+     * @return Targets which sent a heartbeat recently
+     */
+    @Override
+    public Collection<String> getLiveTargets() {
+        Object live;
+        try(Jedis jedis = this.pool.getResource()) {
+            live = jedis.eval(LIVE_TARGETS_SCRIPT, List.of(LIVE_TARGETS_KEY), List.of(String.valueOf(getLiveMillis())));
+        }
+        List<String> targets = new ArrayList<>();
+        if(live instanceof List<?> list) {
+            for(Object target : list) {
+                targets.add(String.valueOf(target));
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * @param millis Interval between heartbeats, applied when the manager syncs. Should be the same on every target
+     */
+    public void setHeartbeatMillis(long millis) {
+        this.heartbeatMillis = millis;
+    }
+
+    public long getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    private long getLiveMillis() {
+        return heartbeatMillis * 3;
+    }
+
+    /**
+     * Fetches implementations of every target which ever registered one, one pipeline for all of them
+     * @return Amount of implementations fetched
+     */
+    public int prefetchAll() {
+        String own = executor.getOwnTarget();
+        Map<String, Response<Map<String, String>>> responses = new HashMap<>();
+        try(Jedis jedis = this.pool.getResource()) {
+            Set<String> targets = jedis.smembers(IMPL_TARGETS_KEY);
+            targets.remove(own);
+            if(targets.isEmpty()) return 0;
+            Pipeline pipeline = jedis.pipelined();
+            for(String target : targets) {
+                responses.put(target, pipeline.hgetAll(IMPLS_KEY + target));
+            }
+            pipeline.sync();
+        }
+        int fetched = 0;
+        for(Map.Entry<String, Response<Map<String, String>>> entry : responses.entrySet()) {
+            fetched += register(entry.getKey(), entry.getValue().get());
+        }
+        return fetched;
+    }
+
+    /**
+     * Fetches all implementations of a target in one round trip
+     * @return Amount of implementations fetched
+     */
+    public int prefetch(String target) {
+        Map<String, String> impls;
+        try(Jedis jedis = this.pool.getResource()) {
+            impls = jedis.hgetAll(IMPLS_KEY + target);
+        }
+        return register(target, impls);
+    }
+
+    private int register(String target, Map<String, String> impls) {
+        prefetched.add(target);
+        for(Map.Entry<String, String> impl : impls.entrySet()) {
+            registerImplementation(target, Short.parseShort(impl.getKey()), decode(impl.getValue()));
+        }
+        return impls.size();
+    }
+
+    /**
+     * @param millis How long a number which wasn't found is not asked for again, 0 to always ask
+     */
+    public void setNegativeCacheMillis(long millis) {
+        this.negativeCacheMillis = millis;
+    }
+
+    public long getNegativeCacheMillis() {
+        return negativeCacheMillis;
+    }
+
+    @Override
+    public short getNewObjNumber(DistributedObject<?, ?, String> impl) {
+        try(Jedis jedis = this.pool.getResource()) {
+            String objectKey = "obj_runtime_num_" + impl.getObjectType().getName();
+            String existing = jedis.get(objectKey);
+            if(existing == null) {
+                int num = super.getNewObjNumber(impl); // increment counter and register
+                jedis.set(objectKey, String.valueOf(num));
+                return (short) num;
+            }
+            return Short.parseShort(existing);
+        }
+    }
+
+    @Override
+    public SubmissionResult getOrSubmitOwn(String sendTo, LambdaImpl impl) {
+        boolean[] existedBefore = {true};
+        short num = (short) ownImpls.computeIfAbsent(impl, __ -> {
+            existedBefore[0] = false;
+            return getNewImplNumber(impl);
+        });
+        return new SubmissionResult(existedBefore[0], num);
+    }
+
+    @Override
+    protected short getNewImplNumber(LambdaImpl impl) {
+        short implNum = (short) this.counter.getAndIncrement();
+        String own = executor.getOwnTarget();
+        try(Jedis jedis = this.pool.getResource()) {
+            jedis.hset(IMPLS_KEY + own, String.valueOf(implNum), encode(impl));
+            if(!announced) {
+                jedis.sadd(IMPL_TARGETS_KEY, own); // lets peers prefetch us during sync
+                announced = true;
+            }
+        }
+        return implNum;
+    }
+
+    @Override
+    public LambdaImpl requestMissingImplementation(String sender, short lambdaNum) {
+        String missKey = sender + ":" + lambdaNum;
+        Long missingUntil = missing.get(missKey);
+        if(missingUntil != null) {
+            if(System.nanoTime() - missingUntil < 0) return null;
+            missing.remove(missKey, missingUntil);
+        }
+        LambdaImpl impl;
+        if(!prefetched.contains(sender)) {
+            prefetch(sender); // first miss of this peer, likely not the last one
+            impl = reconstruct(sender, lambdaNum);
+        } else {
+            String implValue;
+            try(Jedis jedis = this.pool.getResource()) {
+                implValue = jedis.hget(IMPLS_KEY + sender, String.valueOf(lambdaNum));
+            }
+            impl = implValue == null ? null : decode(implValue);
+            if(impl != null) {
+                registerImplementation(sender, lambdaNum, impl);
+            }
+        }
+        long negativeCacheMillis = this.negativeCacheMillis;
+        if(impl == null && negativeCacheMillis > 0) {
+            missing.put(missKey, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(negativeCacheMillis));
+        }
+        return impl;
+    }
+
+    private static String encode(LambdaImpl impl) {
+        return "%s:%d:%s:%s:%s:%s".formatted(
+            impl.functionalInterface(),
+            impl.implMethodKind(),
+            impl.primarySignature(),
+            impl.implementation().className(),
+            impl.implementation().methodName(),
+            impl.implementation().signature()
+        );
+    }
+
+    private static LambdaImpl decode(String value) {
+        String[] data = value.split(":");
+        return new LambdaImpl(data[0], Integer.parseInt(data[1]), data[2], new MethodImpl(
+            data[3],
+            data[4],
+            data[5]
+        ));
+    }
+
+    @Override
+    public boolean isTargetAvailable(String s) {
+        Function<String, Boolean> activityCheck = this.activityCheck;
+        if(activityCheck != null) {
+            return activityCheck.apply(s);
+        }
+        return true; // todo: implement check if target exists
+    }
+
+    /**
+     * @return Directory kept in Redis, created the first time it's needed
+     */
+    @Override
+    public synchronized RedisKeyDirectory getKeyDirectory() {
+        if(keyDirectory == null) {
+            keyDirectory = new RedisKeyDirectory(pool, writer, executor.getAsync());
+        }
+        return keyDirectory;
+    }
+
+    @Override
+    public void shutdown() {
+        RedisKeyDirectory keyDirectory;
+        ScheduledExecutorService heartbeat;
+        synchronized(this) {
+            keyDirectory = this.keyDirectory;
+            heartbeat = this.heartbeat;
+        }
+        if(heartbeat != null) {
+            heartbeat.shutdownNow();
+            try(Jedis jedis = this.pool.getResource()) {
+                jedis.zrem(LIVE_TARGETS_KEY, executor.getOwnTarget()); // leave right away instead of timing out
+            } catch(Throwable t) {
+                logger.error("Failed to leave live targets", t);
+            }
+        }
+        if(keyDirectory != null) {
+            keyDirectory.close();
+        }
+        writer.close();
+    }
+
+    @Override
+    public void resync() {
+        throw new UnsupportedOperationException("Adding new objects after syncing is not supported on Redis");
+    }
+}
@@ -0,0 +1,170 @@
+package cc.olek.lamada.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Gathers writes from all threads and flushes them to Redis as one pipeline, so a burst of sends costs
+ * a single round trip instead of one per message.
+ * <p>
+ * A flush starts as soon as there is something queued. It takes everything that's already waiting, plus whatever
+ * arrives within the flush window, up to the max batch size. Writes are flushed in the order they were submitted
+ * </p>
+ */
+public class RedisWriteCoalescer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(RedisWriteCoalescer.class);
+    private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final JedisPool pool;
+    private final Executor completions;
+    private final Thread flushing;
+    private volatile boolean running = true;
+    private volatile long flushWindowNanos = 0;
+    private volatile int maxBatchSize = 512;
+
+    /**
+     * @param pool Pool to borrow a connection from for every flush
+     * @param completions Where futures returned by {@link #submit(Consumer)} are completed, so their callbacks don't hold up flushing.
+     *                    Once it stops accepting tasks, futures are completed on the flushing thread
+     */
+    public RedisWriteCoalescer(JedisPool pool, Executor completions) {
+        this.pool = pool;
+        this.completions = completions;
+        this.flushing = new Thread(this::flushLoop);
+        this.flushing.setDaemon(true);
+        this.flushing.setName("lamada-redis-writer");
+        this.flushing.start();
+    }
+
+    /**
+     * Queues a write for the next flush
+     * @param write Commands to put on the pipeline. Responses are not available, pipeline is synced after all writes of a batch
+     * @return Future completed once the batch with this write was flushed
+     */
+    public CompletableFuture<Void> submit(Consumer<Pipeline> write) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if(!running) {
+            future.completeExceptionally(new IllegalStateException("Writer is closed"));
+            return future;
+        }
+        Write queued = new Write(write, future);
+        queue.add(queued);
+        if(!running && queue.remove(queued)) { // closed meanwhile and the last flush may be over
+            future.completeExceptionally(new IllegalStateException("Writer is closed"));
+        }
+        return future;
+    }
+
+    private void flushLoop() {
+        List<Write> batch = new ArrayList<>();
+        while(running || !queue.isEmpty()) {
+            try {
+                Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null) continue;
+                batch.add(first);
+                long window = this.flushWindowNanos;
+                long deadline = System.nanoTime() + window;
+                int maxBatchSize = this.maxBatchSize;
+                while(batch.size() < maxBatchSize) {
+                    Write next = window > 0 ? queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) : queue.poll();
+                    if(next == null) break;
+                    batch.add(next);
+                }
+            } catch(InterruptedException e) {
+                running = false;
+            }
+            if(batch.isEmpty()) continue;
+            try {
+                flush(new ArrayList<>(batch));
+            } catch(Throwable t) {
+                logger.error("Failed to complete {} writes", batch.size(), t);
+            }
+            batch.clear();
+        }
+        Write left;
+        while((left = queue.poll()) != null) { // interrupted before flushing them
+            left.future().completeExceptionally(new IllegalStateException("Writer is closed"));
+        }
+    }
+
+    private void flush(List<Write> batch) {
+        Throwable error = null;
+        try(Jedis jedis = pool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for(Write write : batch) {
+                write.write().accept(pipeline);
+            }
+            pipeline.sync();
+        } catch(Throwable t) {
+            logger.error("Failed to flush {} writes", batch.size(), t);
+            error = t;
+        }
+        Throwable finalError = error;
+        Runnable complete = () -> {
+            for(Write write : batch) {
+                if(finalError != null) {
+                    write.future().completeExceptionally(finalError);
+                } else {
+                    write.future().complete(null);
+                }
+            }
+        };
+        try {
+            completions.execute(complete);
+        } catch(RejectedExecutionException e) {
+            complete.run(); // executor was shut down before us, nobody else completes them
+        }
+    }
+
+    /**
+     * Writes arriving within this window after the first queued one are flushed together with it.
+     * Larger windows give bigger batches at the cost of latency
+     * @param window Flush window, 0 flushes only what is already queued
+     * @param unit Unit of the window
+     */
+    public void setFlushWindow(long window, TimeUnit unit) {
+        this.flushWindowNanos = unit.toNanos(window);
+    }
+
+    public long getFlushWindow(TimeUnit unit) {
+        return unit.convert(flushWindowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param maxBatchSize Maximum amount of writes put on a single pipeline
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Flushes what's already queued and stops accepting writes
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            flushing.join(TimeUnit.SECONDS.toMillis(10));
+        } catch(InterruptedException e) {
+            logger.error("Interrupted waiting for the last flush", e);
+        }
+    }
+
+    private record Write(Consumer<Pipeline> write, CompletableFuture<Void> future) {
+    }
+}
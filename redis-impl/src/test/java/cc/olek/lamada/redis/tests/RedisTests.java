@@ -0,0 +1,214 @@
+package cc.olek.lamada.redis.tests;
+
+import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.redis.RedisImplementation;
+import cc.olek.lamada.redis.RedisKeyDirectory;
+import cc.olek.lamada.redis.RedisStreamImplementation;
+import cc.olek.lamada.redis.RedisTargetManager;
+import cc.olek.lamada.redis.RedisWriteCoalescer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.params.XReadGroupParams;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs against a local Redis server, taken from REDIS_URL. Tests are skipped if there is no server to connect to
+ */
+public class RedisTests {
+    private static final String prefix = "lamada-test-" + UUID.randomUUID().toString().substring(0, 8) + "-";
+    private static final List<String> targets = new ArrayList<>();
+    private static final List<DistributedExecutor<String>> executors = new ArrayList<>();
+    private static JedisPool pool;
+    private static DistributedExecutor<String> streamA;
+    private static DistributedExecutor<String> pubSubA;
+    private static RedisImplementation pubSubAImpl;
+    public static final CountDownLatch forgotten = new CountDownLatch(1);
+
+    @BeforeAll
+    public static void createExecutors() {
+        String url = System.getenv().getOrDefault("REDIS_URL", "redis://localhost:6379");
+        pool = new JedisPool(URI.create(url), 2000);
+        try(Jedis jedis = pool.getResource()) {
+            jedis.ping();
+        } catch(Exception e) {
+            pool.close();
+            pool = null;
+            assumeTrue(false, "No Redis server at " + url + ": " + e);
+        }
+        streamA = create("stream-a", RedisStreamImplementation::new);
+        create("stream-b", RedisStreamImplementation::new);
+        pubSubA = create("pubsub-a", RedisImplementation::new);
+        pubSubAImpl = (RedisImplementation) pubSubA.getTargetManager();
+        create("pubsub-b", RedisImplementation::new);
+    }
+
+    private static DistributedExecutor<String> create(String name, BiFunction<DistributedExecutor<String>, JedisPool, RedisTargetManager> transport) {
+        String target = prefix + name;
+        if(!targets.contains(target)) targets.add(target);
+        DistributedExecutor<String> executor = new DistributedExecutor<>(target);
+        RedisTargetManager impl = transport.apply(executor, pool);
+        executor.setTargetManager(impl);
+        executor.setSender(impl);
+        executor.sync();
+        executors.add(executor);
+        return executor;
+    }
+
+    private static String target(String name) {
+        return prefix + name;
+    }
+
+    @AfterAll
+    public static void shutdown() {
+        for(DistributedExecutor<String> executor : executors) {
+            executor.shutdown();
+        }
+        if(pool == null) return;
+        try(Jedis jedis = pool.getResource()) {
+            for(String target : targets) {
+                jedis.del("stream:" + target, "lambda_impls:" + target);
+                jedis.srem("lambda_impl_targets", target);
+                jedis.zrem("lamada_live_targets", target);
+            }
+            jedis.del("key_owners:" + prefix + "namespace", prefix + "counter");
+        }
+        pool.close();
+    }
+
+    public static CompletableFuture<String> echo(DistributedExecutor<String> executor, String to, String value) {
+        return executor.runMethod(to, () -> value);
+    }
+
+    private static void awaitLength(String stream, long length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        try(Jedis jedis = pool.getResource()) {
+            while(jedis.xlen(stream) < length) {
+                assertTrue(System.currentTimeMillis() < deadline, stream + " never got " + length + " entries");
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @Test
+    public void testStreamRoundTrip() throws InterruptedException {
+        String sent = "Hello over redis streams";
+        assertEquals(sent, streamA.runMethod(target("stream-b"), () -> sent).join());
+        streamA.runAndForget(target("stream-b"), () -> forgotten.countDown()).join();
+        assertTrue(forgotten.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPendingEntriesRecovered() throws Exception {
+        String stream = "stream:" + target("stream-c");
+        CompletableFuture<String> reply = echo(streamA, target("stream-c"), "Recovered");
+        targets.add(target("stream-c"));
+        awaitLength(stream, 1);
+        try(Jedis jedis = pool.getResource()) {
+            // a previous run of c read the operation and crashed before acknowledging it
+            byte[] streamKey = stream.getBytes(StandardCharsets.UTF_8);
+            byte[] group = RedisStreamImplementation.GROUP.getBytes(StandardCharsets.UTF_8);
+            jedis.xgroupCreate(streamKey, group, "0".getBytes(StandardCharsets.UTF_8), true);
+            List<Object> read = jedis.xreadGroup(group, target("stream-c").getBytes(StandardCharsets.UTF_8),
+                XReadGroupParams.xReadGroupParams().count(10),
+                new AbstractMap.SimpleEntry<>(streamKey, ">".getBytes(StandardCharsets.UTF_8)));
+            assertEquals(1, read.size());
+        }
+        assertFalse(reply.isDone());
+        create("stream-c", RedisStreamImplementation::new);
+        assertEquals("Recovered", reply.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSenderRestart() throws Exception {
+        // both runs send their first operation, with the same number, while d is down
+        DistributedExecutor<String> previous = create("stream-restarted", RedisStreamImplementation::new);
+        echo(previous, target("stream-d"), "From the previous run");
+        targets.add(target("stream-d"));
+        awaitLength("stream:" + target("stream-d"), 1);
+        previous.shutdown();
+        executors.remove(previous);
+
+        DistributedExecutor<String> restarted = create("stream-restarted", RedisStreamImplementation::new);
+        CompletableFuture<String> reply = echo(restarted, target("stream-d"), "From this run");
+        awaitLength("stream:" + target("stream-d"), 2);
+        create("stream-d", RedisStreamImplementation::new);
+        assertEquals("From this run", reply.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPubSubRoundTrip() {
+        String to = target("pubsub-b");
+        pubSubAImpl.setInlineThreshold(256);
+        String small = "Inlined";
+        assertEquals(small, pubSubA.runMethod(to, () -> small).join());
+        byte[] big = new byte[4096];
+        Arrays.fill(big, (byte) 1);
+        assertEquals(4096, pubSubA.runMethod(to, () -> big.length).join()); // too big to inline, goes through a key
+        pubSubAImpl.setInlineThreshold(0);
+    }
+
+    @Test
+    public void testPrefetch() {
+        assertEquals("Prefetched", pubSubA.runMethod(target("pubsub-b"), () -> "Prefetched").join());
+        RedisTargetManager fresh = new RedisImplementation(new DistributedExecutor<>(target("pubsub-fresh")), pool);
+        assertTrue(fresh.prefetch(target("pubsub-a")) > 0);
+        assertTrue(fresh.prefetchAll() > 0);
+        fresh.shutdown();
+    }
+
+    @Test
+    public void testWriteCoalescer() throws Exception {
+        RedisWriteCoalescer writer = new RedisWriteCoalescer(pool, Runnable::run);
+        String counter = prefix + "counter";
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            writes.add(writer.submit(pipeline -> pipeline.incr(counter)));
+        }
+        CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+        try(Jedis jedis = pool.getResource()) {
+            assertEquals("100", jedis.get(counter));
+        }
+        writer.close();
+        CompletionException closed = assertThrows(CompletionException.class, () -> writer.submit(pipeline -> pipeline.incr(counter)).join());
+        assertInstanceOf(IllegalStateException.class, closed.getCause());
+    }
+
+    @Test
+    public void testKeyDirectory() throws InterruptedException {
+        RedisKeyDirectory directory = pubSubAImpl.getKeyDirectory();
+        String namespace = prefix + "namespace";
+        List<String> owners = new CopyOnWriteArrayList<>();
+        directory.addListener((changed, key, owner) -> {
+            if(changed.equals(namespace)) owners.add(owner);
+        });
+        directory.assign(namespace, "key", "owner").join();
+        assertEquals("owner", directory.lookup(namespace, "key").join());
+        long deadline = System.currentTimeMillis() + 10_000;
+        while(owners.isEmpty()) { // the subscription may not be up for the first change
+            assertTrue(System.currentTimeMillis() < deadline, "No ownership change was received");
+            directory.assign(namespace, "key", "owner").join();
+            Thread.sleep(50);
+        }
+        directory.remove(namespace, "key", "owner").join();
+        assertNull(directory.lookup(namespace, "key").join());
+    }
+}
@@ -2,3 +2,4 @@ rootProject.name = "Lamada"
 include("redis-impl")
 include("netty-impl")
 include("nats-impl")
+include("benchmarks")
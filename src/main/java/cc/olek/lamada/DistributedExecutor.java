@@ -3,35 +3,63 @@ package cc.olek.lamada;
 import cc.olek.lamada.asm.MethodImpl;
 import cc.olek.lamada.context.ExecutionContext;
 import cc.olek.lamada.context.InvocationResult;
+import cc.olek.lamada.context.PendingOperations;
+import cc.olek.lamada.exception.ClassGenerationPendingException;
+import cc.olek.lamada.exception.WorkRejectedException;
 import cc.olek.lamada.func.*;
+import cc.olek.lamada.metrics.CallTags;
+import cc.olek.lamada.metrics.ExecutorMetrics;
+import cc.olek.lamada.scheduler.BoundedWorkScheduler;
+import cc.olek.lamada.scheduler.KeyMailboxes;
+import cc.olek.lamada.scheduler.RemoteWorkScheduler;
 import cc.olek.lamada.serialization.*;
 import cc.olek.lamada.serialization.ReferenceResolver;
+import cc.olek.lamada.stream.RemoteStreams;
+import cc.olek.lamada.stream.StreamRequest;
 import cc.olek.lamada.util.SlfKryoLogger;
 import cc.olek.lamada.util.WeakSet;
 import com.esotericsoftware.kryo.*;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.serializers.DefaultSerializers;
 import com.esotericsoftware.kryo.unsafe.UnsafeInput;
 import com.esotericsoftware.kryo.unsafe.UnsafeOutput;
+import com.esotericsoftware.kryo.util.Pool;
 import com.esotericsoftware.minlog.Log;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class DistributedExecutor<Target> {
+    private static final byte[] EMPTY = new byte[0];
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
     protected final Logger logger;
     protected final WeakSet<Kryo> activeKryos = new WeakSet<>();
     protected final String purpose;
-    protected final ThreadLocal<Kryo> kryo;
+    protected volatile Pool<Kryo> kryoPool;
+    private volatile Pool<Output> contextOutputs;
+    private volatile Pool<Output> responseOutputs;
+    private volatile Pool<Input> contextInputs;
+    private volatile Pool<Input> responseInputs;
+    private volatile Pool<ByteBufferInput> directInputs;
+    private volatile int maxPooled = Math.max(16, Runtime.getRuntime().availableProcessors() * 2);
+    private volatile int maxRetainedBuffer = 64 * 1024;
     protected ClassLoader contextClassLoader = this.getClass().getClassLoader();
     private final Class<Target> targetType;
-    private final Int2ObjectMap<ExecutionContext> contexts = new Int2ObjectOpenHashMap<>();
+    private final PendingOperations pending = new PendingOperations();
+    private final RemoteStreams streams = new RemoteStreams();
+    private final FrameCompression compression = new FrameCompression();
+    private final DescriptorDictionary descriptors = new DescriptorDictionary();
+    private final CaptureCache captures = new CaptureCache();
+    private volatile ExecutorMetrics metrics = ExecutorMetrics.NOOP;
+    private volatile RemoteWorkScheduler scheduler = new BoundedWorkScheduler();
     private final Map<Class<?>, Serializer<?>> userDefinedSerializers = new LinkedHashMap<>();
     private final Map<Class<?>, Registration> knownSuperclassSerializers = new ConcurrentHashMap<>();
     private final Map<Class<?>, Object> noKnownSuperclassSerializers = new ConcurrentHashMap<>();
@@ -50,6 +78,7 @@ public class DistributedExecutor<Target> {
     RemoteTargetManager<Target> targetManager;
     InstructionCommunicator<Target> sender;
     Executor executor = ForkJoinPool.commonPool();
+    volatile long defaultTimeout = 10_000;
 
     private volatile boolean synced = false;
 
@@ -60,22 +89,7 @@ public class DistributedExecutor<Target> {
         this.targetType = (Class<Target>) ownTarget.getClass();
         this.ownTarget = ownTarget;
         this.staticExecutor = new StaticExecutor<>(this);
-        this.kryo = ThreadLocal.withInitial(() -> {
-            Kryo kryo = new ProjectKryo(this);
-            setupKryo(kryo);
-            for(Map.Entry<Class<?>, Serializer<?>> serializerEntry : userDefinedSerializers.entrySet()) {
-                kryo.register(serializerEntry.getKey(), serializerEntry.getValue());
-            }
-            for(DistributedObject<?, ?, Target> registered : targetClassToObject.values()) {
-                kryo.register(registered.getObjectType(), registered);
-                kryo.register(registered.getClass(), ownObjectSerializer);
-            }
-            for(Class<?> predefine : predefines) {
-                kryo.register(predefine);
-            }
-            activeKryos.add(kryo);
-            return kryo;
-        });
+        createPools();
     }
 
     public DistributedExecutor(Target ownTarget) {
@@ -98,6 +112,97 @@ public class DistributedExecutor<Target> {
         return staticExecutor.runAndForget(target, runnable);
     }
 
+    /**
+     * Runs a runnable on every target, serializing it only once
+     * @return Future of every target's completion
+     */
+    public Map<Target, CompletableFuture<Void>> broadcast(Collection<? extends Target> targets, ExecutionRunnable runnable) {
+        return staticExecutor.broadcast(targets, runnable);
+    }
+
+    /**
+     * Runs a supplier on every target, serializing it only once
+     * @return Future of every target's result
+     */
+    public <T> Map<Target, CompletableFuture<T>> broadcastMethod(Collection<? extends Target> targets, ExecutionSupplier<T> supplier) {
+        return staticExecutor.broadcastMethod(targets, supplier);
+    }
+
+    protected Kryo createKryo() {
+        Kryo kryo = new ProjectKryo(this);
+        setupKryo(kryo);
+        for(Map.Entry<Class<?>, Serializer<?>> serializerEntry : userDefinedSerializers.entrySet()) {
+            kryo.register(serializerEntry.getKey(), serializerEntry.getValue());
+        }
+        for(DistributedObject<?, ?, Target> registered : targetClassToObject.values()) {
+            kryo.register(registered.getObjectType(), registered);
+            kryo.register(registered.getClass(), ownObjectSerializer);
+        }
+        for(Class<?> predefine : predefines) {
+            kryo.register(predefine);
+        }
+        activeKryos.add(kryo);
+        return kryo;
+    }
+
+    private void createPools() {
+        int maxPooled = this.maxPooled;
+        this.kryoPool = new Pool<>(true, false, maxPooled) {
+            @Override
+            protected Kryo create() {
+                return createKryo();
+            }
+
+            @Override
+            protected void reset(Kryo kryo) {
+                kryo.reset(); // in case serialization failed halfway
+            }
+        };
+        this.contextOutputs = outputPool(maxPooled, this::newOutputContext);
+        this.responseOutputs = outputPool(maxPooled, this::newOutputResponse);
+        this.contextInputs = inputPool(maxPooled, () -> newInputContext(EMPTY));
+        this.responseInputs = inputPool(maxPooled, () -> newInputResponse(EMPTY));
+        this.directInputs = new Pool<>(true, false, maxPooled) {
+            @Override
+            protected ByteBufferInput create() {
+                return new ByteBufferInput(EMPTY_BUFFER);
+            }
+
+            @Override
+            protected void reset(ByteBufferInput input) {
+                input.setBuffer(EMPTY_BUFFER);
+            }
+        };
+    }
+
+    private static Pool<Output> outputPool(int maxPooled, Supplier<Output> factory) {
+        return new Pool<>(true, false, maxPooled) {
+            @Override
+            protected Output create() {
+                return factory.get();
+            }
+        };
+    }
+
+    private static Pool<Input> inputPool(int maxPooled, Supplier<Input> factory) {
+        return new Pool<>(true, false, maxPooled) {
+            @Override
+            protected Input create() {
+                return factory.get();
+            }
+
+            @Override
+            protected void reset(Input input) {
+                input.setBuffer(EMPTY); // don't keep the last message alive
+            }
+        };
+    }
+
+    private void release(Pool<Output> pool, Output output) {
+        if(output.getBuffer().length > maxRetainedBuffer) return; // let an unusually big buffer go
+        pool.free(output);
+    }
+
     protected void setupKryo(Kryo kryo) {
         Log.setLogger(new SlfKryoLogger());
 
@@ -198,36 +303,230 @@ public class DistributedExecutor<Target> {
     }
 
     public byte[] serialize(ExecutionContext context) {
-        try(Output output = newOutputContext()) {
-            kryo.get().writeObject(
-                output,
-                context,
-                contextSerializer
-            );
-            output.close();
-            return output.toBytes();
+        try(BufferLease lease = serializeLease(context)) {
+            return lease.toBytes();
         }
     }
 
+    /**
+     * Serializes a context straight into a pooled output. The lease gives the output back to the pool once released
+     */
+    public BufferLease serializeLease(ExecutionContext context) {
+        return write(this.contextOutputs, context, contextSerializer);
+    }
+
     public byte[] serializeResponse(InvocationResult invocation) {
-        try(Output output = newOutputResponse()) {
-            kryo.get().writeObject(output, invocation, new InvocationResult.ResultSerializer<>(this, null)); // force responseSerializer
+        try(BufferLease lease = serializeResponseLease(invocation)) {
+            return lease.toBytes();
+        }
+    }
+
+    public BufferLease serializeResponseLease(InvocationResult invocation) {
+        return write(this.responseOutputs, invocation, new InvocationResult.ResultSerializer<>(this, null)); // force responseSerializer
+    }
+
+    private <T> BufferLease write(Pool<Output> outputs, T object, Serializer<T> serializer) {
+        Pool<Kryo> kryos = this.kryoPool;
+        Kryo kryo = kryos.obtain();
+        Output output = outputs.obtain();
+        try {
+            output.writeByte(FrameCompression.RAW);
+            kryo.writeObject(output, object, serializer);
+        } catch(Throwable t) {
+            release(outputs, output);
+            throw t;
+        } finally {
+            kryos.free(kryo);
+        }
+        BufferLease compressed = compression.compress(output.getBuffer(), output.position());
+        if(compressed != null) {
+            release(outputs, output);
+            return compressed;
+        }
+        return BufferLease.of(ByteBuffer.wrap(output.getBuffer(), 0, output.position()), () -> release(outputs, output));
+    }
+
+    /**
+     * Serializes a value on its own, outside any context, e.g. for {@link CaptureCache}
+     * @param receiver Target the value is written for
+     */
+    public byte[] serializeStandalone(Object value, Object receiver) {
+        Pool<Kryo> kryos = this.kryoPool;
+        Kryo kryo = kryos.obtain();
+        Output output = contextOutputs.obtain();
+        try {
+            kryo.getContext().put("sender", ownTarget);
+            kryo.getContext().put("receiver", receiver);
+            kryo.getContext().remove(ExecutableInterface.LambdaSerializer.OP_NUMBER);
+            kryo.writeClassAndObject(output, value);
             return output.toBytes();
+        } finally {
+            release(contextOutputs, output);
+            kryos.free(kryo);
         }
     }
 
+    /**
+     * Reads a value written by {@link #serializeStandalone(Object, Object)}
+     */
+    public Object deserializeStandalone(byte[] bytes, Object sender) {
+        Pool<Kryo> kryos = this.kryoPool;
+        Kryo kryo = kryos.obtain();
+        Input input = contextInputs.obtain();
+        try {
+            kryo.getContext().put("sender", sender);
+            kryo.getContext().put("receiver", ownTarget);
+            kryo.getContext().put(ExecutableInterface.LambdaSerializer.DEFER_GENERATION, false);
+            input.setBuffer(bytes);
+            return kryo.readClassAndObject(input);
+        } finally {
+            contextInputs.free(input);
+            kryos.free(kryo);
+        }
+    }
+
+    /**
+     * Turns raw serialized data into a frame, compressing it if configured
+     */
+    public BufferLease frame(ByteBuffer data) {
+        byte[] frame = new byte[data.remaining() + 1];
+        frame[0] = FrameCompression.RAW;
+        data.duplicate().get(frame, 1, data.remaining());
+        BufferLease compressed = compression.compress(frame, frame.length);
+        return compressed != null ? compressed : BufferLease.wrap(frame);
+    }
+
     public ExecutionContext receiveContext(byte[] bytes, Target sender) {
-        try(Input input = newInputContext(bytes)) {
-            return kryo.get().readObject(
-                input,
-                ExecutionContext.class,
-                new ExecutionContext.ContextSerializer<>(this, sender)
+        return receiveContext(ByteBuffer.wrap(bytes), sender);
+    }
+
+    /**
+     * Reads a context from position to limit of the buffer without copying it, buffer itself is left untouched.
+     * Direct buffers are supported
+     */
+    public ExecutionContext receiveContext(ByteBuffer buffer, Target sender) {
+        return read(this.contextInputs, buffer, ExecutionContext.class, new ExecutionContext.ContextSerializer<>(this, sender));
+    }
+
+    public CompletableFuture<ExecutionContext> receiveContextAsync(byte[] bytes, Target sender) {
+        return receiveContextAsync(ByteBuffer.wrap(bytes), sender);
+    }
+
+    /**
+     * Same as {@link #receiveContext(ByteBuffer, Target)}, but never waits for a lambda class to be generated.
+     * If the context has a lambda whose class is still being generated, the frame is copied and read again
+     * on the async executor once generation finishes, so the buffer may be released as soon as this returns
+     * @return Future of the context, already completed unless a lambda class had to be generated
+     */
+    public CompletableFuture<ExecutionContext> receiveContextAsync(ByteBuffer buffer, Target sender) {
+        ByteBuffer data;
+        try {
+            data = compression.unwrap(buffer);
+        } catch(Throwable t) {
+            return CompletableFuture.failedFuture(t);
+        }
+        return receiveContextAsync(data, sender, true);
+    }
+
+    private CompletableFuture<ExecutionContext> receiveContextAsync(ByteBuffer data, Target sender, boolean defer) {
+        try {
+            return CompletableFuture.completedFuture(readData(this.contextInputs, data, ExecutionContext.class, new ExecutionContext.ContextSerializer<>(this, sender), defer));
+        } catch(ClassGenerationPendingException pending) {
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining()).put(data.duplicate()).flip();
+            // if generation failed, the last read generates in place so the failure ends up in the context
+            return pending.getGeneration()
+                .handleAsync((generated, err) -> err == null, executor)
+                .thenCompose(generated -> receiveContextAsync(copy, sender, generated));
+        } catch(Throwable t) {
+            return CompletableFuture.failedFuture(t);
+        }
+    }
+
+    /**
+     * Executes a context received from another target once the scheduler lets it run. Every transport
+     * hands contexts it read here, so they share one admission policy. If the object runs lambdas serially per key,
+     * the context first waits in its key's mailbox in the order it was received, and asks the scheduler for a slot
+     * only once its turn comes, so a busy key holds at most one slot
+     * @param waitForReply Whether the sender waits for the result
+     * @param respond Called once with the result, or with null if the sender doesn't wait for it.
+     *                If the scheduler rejects the work, called with an error as soon as it's rejected
+     */
+    public void executeReceived(ExecutionContext context, boolean waitForReply, Consumer<InvocationResult> respond) {
+        RemoteWorkScheduler.Lane lane = waitForReply ? RemoteWorkScheduler.Lane.SYNC : RemoteWorkScheduler.Lane.FORGET;
+        KeyMailboxes mailboxes = context.isStatic() || context.isBatch() ? null : context.objectRequesting().getMailboxes();
+        if(mailboxes == null) {
+            schedule(context, lane, waitForReply, respond);
+            return;
+        }
+        mailboxes.submit(context.key(), executor, () -> schedule(context, lane, waitForReply, respond));
+    }
+
+    /**
+     * @return Stage completed once the work ran, or null if the scheduler rejected it
+     */
+    private CompletionStage<?> schedule(ExecutionContext context, RemoteWorkScheduler.Lane lane, boolean waitForReply, Consumer<InvocationResult> respond) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Runnable reject = () -> {
+            metrics.onRejected(CallTags.of(context));
+            respond.accept(waitForReply ? InvocationResult.ofError(context, new WorkRejectedException("Target " + ownTarget + " is overloaded, operation #" + context.opNumber() + " was not executed")) : null);
+        };
+        boolean accepted = scheduler.submit(context, lane, () -> {
+            CompletionStage<?> running;
+            try {
+                running = executeAndRespond(context, waitForReply, respond);
+            } catch(Throwable t) {
+                done.complete(null);
+                throw t;
+            }
+            if(running == null) {
+                done.complete(null);
+            } else {
+                running.whenComplete((__, err) -> done.complete(null));
+            }
+            return running;
+        }, () -> {
+            try {
+                reject.run();
+            } finally {
+                done.complete(null); // frees the key's mailbox
+            }
+        });
+        if(accepted) return done;
+        reject.run();
+        return null;
+    }
+
+    private CompletionStage<?> executeAndRespond(ExecutionContext context, boolean waitForReply, Consumer<InvocationResult> respond) {
+        if(ExecutableInterface.isAsync(context.mode())) {
+            return executeAsyncContext(context).whenComplete((result, err) ->
+                respond.accept(!waitForReply ? null : err != null ? InvocationResult.ofError(context, err) : result)
             );
         }
+        InvocationResult result;
+        try {
+            result = executeContext(context);
+        } catch(Throwable t) {
+            logger.error("Failed executing context {} from {}", context.opNumber(), context.target(), t);
+            result = InvocationResult.ofError(context, t);
+        }
+        respond.accept(waitForReply ? result : null);
+        return null;
     }
 
-    @SuppressWarnings("unchecked")
     public CompletableFuture<InvocationResult> executeAsyncContext(ExecutionContext context) {
+        ExecutorMetrics metrics = this.metrics;
+        long started = System.nanoTime();
+        return runAsyncContext(context).whenComplete((result, err) -> {
+            CallTags tags = CallTags.of(context);
+            metrics.onExecute(tags, System.nanoTime() - started);
+            if(err != null) {
+                metrics.onError(tags, err);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<InvocationResult> runAsyncContext(ExecutionContext context) {
         ExecutableInterface executable = context.lambda();
         if(executable == null) {
             return CompletableFuture.failedFuture(new RuntimeException("Could not find lambda implementation. This shouldn't happen"));
@@ -256,9 +555,19 @@ public class DistributedExecutor<Target> {
     }
 
     public InvocationResult executeContext(ExecutionContext context) {
+        ExecutorMetrics metrics = this.metrics;
+        long started = System.nanoTime();
+        InvocationResult result = runContext(context, metrics);
+        metrics.onExecute(CallTags.of(context), System.nanoTime() - started);
+        return result;
+    }
+
+    private InvocationResult runContext(ExecutionContext context, ExecutorMetrics metrics) {
         ExecutableInterface executable = context.lambda();
         if(executable == null) {
-            return InvocationResult.ofError(context, new RuntimeException("Could not find lambda implementation. This shouldn't happen"));
+            RuntimeException error = new RuntimeException("Could not find lambda implementation. This shouldn't happen");
+            metrics.onError(CallTags.of(context), error);
+            return InvocationResult.ofError(context, error);
         }
 
         String failureMessage = "Unexpected error";
@@ -284,18 +593,104 @@ public class DistributedExecutor<Target> {
                     ((ExecutionConsumer<?>) executable).applyObj(executeOn);
                     yield null;
                 }
+                case ExecutableInterface.STREAM_FUNCTION -> {
+                    Object executeOn = context.objectRequesting().get(context.key());
+                    failureMessage =  "Failed to open a stream on %s\nKey: %s\nObject received: %s".formatted(context.objectRequesting().getClass(), context.key(), executeOn);
+                    StreamRequest request = (StreamRequest) ((ExecutionFunction<?, ?>) executable).applyObj(executeOn);
+                    yield streams.open(request.stream(), request.first());
+                }
+                case ExecutableInterface.BATCH_FUNCTION -> {
+                    failureMessage = "Failed to execute batch lambda on %s".formatted(context.objectRequesting().getClass());
+                    yield executeBatch(context, (ExecutionFunction<?, ?>) executable);
+                }
                 case ExecutableInterface.ASYNC_FUNCTION, ExecutableInterface.ASYNC_SUPPLIER -> throw new IllegalArgumentException("Cannot use sync execution with an async mode");
                 default -> throw new IllegalStateException("Unexpected value: " + context.mode());
             };
             return new InvocationResult(context, result, null);
         } catch(Throwable t) {
+            metrics.onError(CallTags.of(context), t);
             return InvocationResult.ofError(context, new RuntimeException(failureMessage, t));
         }
     }
 
+    /**
+     * Applies the function to every key of a batch context. A failing key doesn't stop the rest,
+     * its error is reported in its own result
+     */
+    private InvocationResult[] executeBatch(ExecutionContext context, ExecutionFunction<?, ?> function) {
+        Object[] keys = (Object[]) context.key();
+        InvocationResult[] results = new InvocationResult[keys.length];
+        for(int i = 0; i < keys.length; i++) {
+            Object executeOn = null;
+            try {
+                executeOn = context.objectRequesting().get(keys[i]);
+                results[i] = new InvocationResult(context, function.applyObj(executeOn), null);
+            } catch(Throwable t) {
+                String failureMessage = "Failed to execute lambda on %s\nKey: %s\nObject received: %s".formatted(context.objectRequesting().getClass(), keys[i], executeOn);
+                results[i] = InvocationResult.ofError(context, new RuntimeException(failureMessage, t));
+            }
+        }
+        return results;
+    }
+
     public InvocationResult receiveResult(Target sender, byte[] bytes) {
-        try(Input input = newInputResponse(bytes)) {
-            return kryo.get().readObject(input, InvocationResult.class, new InvocationResult.ResultSerializer<>(this, sender));
+        return receiveResult(sender, ByteBuffer.wrap(bytes));
+    }
+
+    public InvocationResult receiveResult(Target sender, ByteBuffer buffer) {
+        long started = System.nanoTime();
+        InvocationResult result = read(this.responseInputs, buffer, InvocationResult.class, new InvocationResult.ResultSerializer<>(this, sender));
+        if(result.of() != null) {
+            metrics.onDeserializeResponse(CallTags.of(result.of()), System.nanoTime() - started);
+            if(result.errorMessage() == null) {
+                descriptors.confirm(sender, result.opNumber()); // the target has read the context, so it knows its strings
+                captures.confirm(sender, result.opNumber()); // and its captured values
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads a response and releases the lease
+     */
+    public InvocationResult receiveResult(Target sender, BufferLease response) {
+        try(response) {
+            return receiveResult(sender, response.buffer());
+        }
+    }
+
+    private <T> T read(Pool<Input> heapInputs, ByteBuffer frame, Class<T> type, Serializer<T> serializer) {
+        return readData(heapInputs, compression.unwrap(frame), type, serializer, false);
+    }
+
+    /**
+     * Reads raw data of an already unwrapped frame
+     * @param defer Whether lambdas whose class is being generated throw {@link ClassGenerationPendingException} instead of waiting
+     */
+    private <T> T readData(Pool<Input> heapInputs, ByteBuffer buffer, Class<T> type, Serializer<T> serializer, boolean defer) {
+        Pool<Kryo> kryos = this.kryoPool;
+        Kryo kryo = kryos.obtain();
+        kryo.getContext().put(ExecutableInterface.LambdaSerializer.DEFER_GENERATION, defer); // context outlives reads, so always set
+        try {
+            if(buffer.hasArray()) {
+                Input input = heapInputs.obtain();
+                try {
+                    input.setBuffer(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    return kryo.readObject(input, type, serializer);
+                } finally {
+                    heapInputs.free(input);
+                }
+            }
+            Pool<ByteBufferInput> directInputs = this.directInputs;
+            ByteBufferInput input = directInputs.obtain();
+            try {
+                input.setBuffer(buffer.duplicate());
+                return kryo.readObject(input, type, serializer);
+            } finally {
+                directInputs.free(input);
+            }
+        } finally {
+            kryos.free(kryo);
         }
     }
 
@@ -306,6 +701,10 @@ public class DistributedExecutor<Target> {
         return new ExecutionContext(objectOn, target, key, mode, consumerObject, opNumber);
     }
 
+    /*
+     * Outputs and inputs below are pooled, so these are only called when a pool runs dry.
+     * Inputs are created with an empty buffer which is replaced for every message
+     */
     protected Output newOutputResponse() {
         return new UnsafeOutput(512, -1);
     }
@@ -355,15 +754,64 @@ public class DistributedExecutor<Target> {
     }
 
     public void registerExecution(int num, ExecutionContext context) {
-        synchronized(this) {
-            contexts.put(num, context);
-        }
+        pending.register(num, context);
     }
 
     public ExecutionContext popContext(int num) {
-        synchronized(this) {
-            return contexts.remove(num);
-        }
+        return pending.popContext(num);
+    }
+
+    /**
+     * Operations waiting for a reply. Transports attach their reply futures here instead of keeping a map of their own
+     */
+    public PendingOperations getPendingOperations() {
+        return pending;
+    }
+
+    /**
+     * @param metrics Receiver of call timings, {@link ExecutorMetrics#NOOP} to stop measuring
+     */
+    public void setMetrics(ExecutorMetrics metrics) {
+        this.metrics = metrics == null ? ExecutorMetrics.NOOP : metrics;
+    }
+
+    public ExecutorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Compression stage of outgoing frames, disabled by default. Incoming frames are decompressed regardless
+     */
+    public FrameCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Strings of lambda descriptors shared with other targets
+     */
+    public DescriptorDictionary getDescriptorDictionary() {
+        return descriptors;
+    }
+
+    /**
+     * Opt-in cache of captured values, add types to it to send their values once per target
+     */
+    public CaptureCache getCaptureCache() {
+        return captures;
+    }
+
+    /**
+     * @return Whether the response says the target missed a cached captured value, so the operation must be sent again in full
+     */
+    public boolean isCaptureMiss(BufferLease response) {
+        return InvocationResult.ResultSerializer.isCaptureMiss(compression.unwrap(response.buffer()));
+    }
+
+    /**
+     * @return Streams other targets opened here and are pulling from
+     */
+    public RemoteStreams getRemoteStreams() {
+        return streams;
     }
 
     public Class<Target> getTypeOfTarget() {
@@ -394,6 +842,55 @@ public class DistributedExecutor<Target> {
         return ownTarget;
     }
 
+    /**
+     * Sets how many Kryo instances, outputs and inputs are kept for reuse each. Threads which find a pool empty
+     * create a new instance, which is dropped on release if the pool is already full.
+     * Instances pooled so far are discarded, so this is best called before the executor is used
+     * @param maxPooled Maximum amount of pooled instances of each kind
+     */
+    public void setMaxPooled(int maxPooled) {
+        this.maxPooled = maxPooled;
+        createPools();
+    }
+
+    public int getMaxPooled() {
+        return maxPooled;
+    }
+
+    /**
+     * Outputs which grew beyond this size while writing a large message aren't put back into the pool
+     * @param bytes Maximum buffer size an output may keep while pooled
+     */
+    public void setMaxRetainedBuffer(int bytes) {
+        this.maxRetainedBuffer = bytes;
+    }
+
+    public int getMaxRetainedBuffer() {
+        return maxRetainedBuffer;
+    }
+
+    /**
+     * @param millis Timeout used for calls made with {@link DistributedObject#TIMEOUT_MODE_DEFAULT}
+     */
+    public void setDefaultTimeout(long millis) {
+        this.defaultTimeout = millis;
+    }
+
+    public long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    public RemoteWorkScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @param scheduler Scheduler running lambdas received from other targets
+     */
+    public void setScheduler(RemoteWorkScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
     public Executor getAsync() {
         return executor;
     }
@@ -435,7 +932,7 @@ public class DistributedExecutor<Target> {
     }
 
     public void shutdown() {
-        this.targetManager.shutdown();
+        this.scheduler.shutdown(); // received work still running needs the async executor and the transport to respond
         if(this.executor instanceof ExecutorService service) {
             try {
                 service.shutdown();
@@ -445,6 +942,9 @@ public class DistributedExecutor<Target> {
                 throw new RuntimeException(e);
             }
         }
+        this.targetManager.shutdown();
+        this.pending.close();
+        this.streams.close();
     }
 
     public static class OwnObjectSerializer extends Serializer<DistributedObject<?, ?, ?>> implements SuperclassSerializer {
@@ -3,14 +3,28 @@ package cc.olek.lamada;
 import cc.olek.lamada.asm.LambdaReconstructor;
 import cc.olek.lamada.context.ExecutionContext;
 import cc.olek.lamada.context.InvocationResult;
+import cc.olek.lamada.exception.BatchExecutionException;
+import cc.olek.lamada.exception.KeyNotOwnedException;
 import cc.olek.lamada.exception.TargetExecutionException;
 import cc.olek.lamada.exception.TargetNotAvailableException;
 import cc.olek.lamada.func.ExecutableInterface;
 import cc.olek.lamada.func.ExecutionConsumer;
 import cc.olek.lamada.func.ExecutionFunction;
+import cc.olek.lamada.metrics.CallTags;
+import cc.olek.lamada.metrics.ExecutorMetrics;
+import cc.olek.lamada.routing.CachedKeyLocator;
+import cc.olek.lamada.routing.ConsistentHashPartitioner;
+import cc.olek.lamada.routing.KeyDirectory;
+import cc.olek.lamada.routing.KeyLocator;
+import cc.olek.lamada.scheduler.KeyMailboxes;
 import cc.olek.lamada.serialization.SuperclassSerializer;
 import cc.olek.lamada.util.Exceptions;
+import cc.olek.lamada.serialization.BufferLease;
 import cc.olek.lamada.serialization.SerializationResult;
+import cc.olek.lamada.stream.RemoteStreams;
+import cc.olek.lamada.stream.StreamChunk;
+import cc.olek.lamada.stream.StreamPublisher;
+import cc.olek.lamada.stream.StreamRequest;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
@@ -20,11 +34,23 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public abstract class DistributedObject<Key, Value, Target> extends ImmutableSerializer<Value> implements SuperclassSerializer {
     public static final long TIMEOUT_MODE_DEFAULT = 0;
@@ -38,6 +64,8 @@ public abstract class DistributedObject<Key, Value, Target> extends ImmutableSer
     private short number;
     final DistributedExecutor<Target> executor;
     private final Map<Class<?>, CompletableFuture<?>> firstSerialization = new ConcurrentHashMap<>();
+    private volatile KeyMailboxes mailboxes;
+    private volatile KeyLocator<Key, Target> keyLocator;
 
     @SuppressWarnings("unchecked")
     public DistributedObject(DistributedExecutor<Target> distributedExecutor, Class<? extends Value> objectType, Class<? extends Key> serializeFrom, boolean unique) {
@@ -65,15 +93,20 @@ public abstract class DistributedObject<Key, Value, Target> extends ImmutableSer
      */
     public CompletableFuture<Void> run(Target target, Key key, long timeout, ExecutionConsumer<Value> toRun) {
         if(target == null || target.equals(executor.ownTarget)) {
+            CompletableFuture<Void> serial = runSerially(key, () -> {
+                toRun.apply(fetch(key));
+                return CompletableFuture.completedFuture(null);
+            });
+            if(serial != null) return serial;
             return CompletableFuture.supplyAsync(() -> {
                 toRun.apply(fetch(key));
                 return null;
             }, executor.executor);
         }
         return doSerialize(target, key, toRun, ExecutableInterface.CONSUMER).thenCompose(
-            serialized -> doSend(target, serialized.context().opNumber(), serialized.bytes(), timeout)
-        ).thenApply(bytes -> {
-            InvocationResult result = executor.receiveResult(target, bytes);
+            serialized -> doSend(target, serialized, timeout)
+        ).thenApply(response -> {
+            InvocationResult result = executor.receiveResult(target, response);
             if(result.errorMessage() != null) {
                 throw new TargetExecutionException(result.errorMessage());
             }
@@ -95,12 +128,18 @@ public abstract class DistributedObject<Key, Value, Target> extends ImmutableSer
      */
     public CompletableFuture<Void> runAndForget(Target target, Key key, ExecutionConsumer<Value> toRun) {
         if(target == null || target.equals(executor.ownTarget)) {
-            executor.executor.execute(() -> toRun.apply(fetch(key)));
+            CompletableFuture<Void> serial = runSerially(key, () -> {
+                toRun.apply(fetch(key));
+                return CompletableFuture.completedFuture(null);
+            });
+            if(serial == null) {
+                executor.executor.execute(() -> toRun.apply(fetch(key)));
+            }
             return CompletableFuture.completedFuture(null);
         }
-        return doSerialize(target, key, toRun, ExecutableInterface.CONSUMER)
+        return doSerialize(target, key, toRun, ExecutableInterface.CONSUMER, false) // no reply will confirm anything
             .thenCompose(serialized ->
-                doSend(target, serialized.context().opNumber(), serialized.bytes(), TIMEOUT_MODE_FORGET)
+                doSend(target, serialized, TIMEOUT_MODE_FORGET)
             ) // implementation is required to return right after sending
             .thenApply(d -> null);
     }
@@ -118,16 +157,15 @@ public abstract class DistributedObject<Key, Value, Target> extends ImmutableSer
     @SuppressWarnings("unchecked")
     public <T> CompletableFuture<T> runMethod(Target target, Key key, long timeout, ExecutionFunction<Value, T> toRun) {
         if(target == null || target.equals(executor.ownTarget)) {
-            Value value = fetch(key);
-            if(value == null) {
-                throw new NullPointerException("Failed to move a " + objectType.getSimpleName() + " with key " + key);
-            }
+            CompletableFuture<T> serial = runSerially(key, () -> CompletableFuture.completedFuture(toRun.apply(fetchExisting(key))));
+            if(serial != null) return serial;
+            Value value = fetchExisting(key);
             return CompletableFuture.supplyAsync(() -> toRun.apply(value), executor.executor);
         }
         return doSerialize(target, key, toRun, ExecutableInterface.FUNCTION).thenCompose(
-            serialized -> doSend(target, serialized.context().opNumber(), serialized.bytes(), timeout)
-        ).thenApply(bytes -> {
-            InvocationResult result = executor.receiveResult(target, bytes);
+            serialized -> doSend(target, serialized, timeout)
+        ).thenApply(response -> {
+            InvocationResult result = executor.receiveResult(target, response);
             if(result.errorMessage() != null) {
                 throw new TargetExecutionException(result.errorMessage());
             }
@@ -139,19 +177,79 @@ public abstract class DistributedObject<Key, Value, Target> extends ImmutableSer
         return runMethod(target, key, TIMEOUT_MODE_DEFAULT, toRun);
     }
 
+    /**
+     * Runs one function against many keys in a single message. Lambda is serialized once together with all keys,
+     * and the target applies it to each key on its own
+     * @param target Target
+     * @param keys keys to run the function on, duplicates are run once
+     * @param timeout Timeout in MS or timeout shortcut, same as for {@link #runMethod(Object, Object, long, ExecutionFunction)}
+     * @param toRun what to run
+     * @return a future of results by key. If some keys failed, it completes with a {@link BatchExecutionException}
+     * which still holds results of the keys which succeeded
+     * @param <T> Data type returned from the function
+     */
     @SuppressWarnings("unchecked")
-    public <T> CompletableFuture<T> runAsyncMethod(Target target, Key key, long timeout, ExecutionFunction<Value, CompletableFuture<T>> toRun) {
+    public <T> CompletableFuture<Map<Key, T>> runMethodBatch(Target target, Collection<? extends Key> keys, long timeout, ExecutionFunction<Value, T> toRun) {
+        Object[] batch = new LinkedHashSet<>(keys).toArray();
+        if(batch.length == 0) {
+            return CompletableFuture.completedFuture(Map.of());
+        }
         if(target == null || target.equals(executor.ownTarget)) {
-            Value value = fetch(key);
-            if(value == null) {
-                throw new NullPointerException("Failed to move a " + objectType.getSimpleName() + " with key " + key);
+            return CompletableFuture.supplyAsync(() -> {
+                Map<Key, T> results = new LinkedHashMap<>();
+                Map<Key, String> failures = new LinkedHashMap<>();
+                for(Object key : batch) {
+                    try {
+                        results.put((Key) key, toRun.apply(fetch((Key) key)));
+                    } catch(Throwable t) {
+                        failures.put((Key) key, t.toString());
+                    }
+                }
+                if(!failures.isEmpty()) {
+                    throw new BatchExecutionException(results, failures);
+                }
+                return results;
+            }, executor.executor);
+        }
+        return doSerialize(target, batch, toRun, ExecutableInterface.BATCH_FUNCTION).thenCompose(
+            serialized -> doSend(target, serialized, timeout)
+        ).thenApply(response -> {
+            InvocationResult result = executor.receiveResult(target, response);
+            if(result.errorMessage() != null) {
+                throw new TargetExecutionException(result.errorMessage());
             }
-            return toRun.apply(value);
+            InvocationResult[] perKey = (InvocationResult[]) result.result();
+            Map<Key, T> results = new LinkedHashMap<>();
+            Map<Key, String> failures = new LinkedHashMap<>();
+            for(int i = 0; i < batch.length; i++) {
+                if(perKey[i].errorMessage() != null) {
+                    failures.put((Key) batch[i], perKey[i].errorMessage());
+                } else {
+                    results.put((Key) batch[i], (T) perKey[i].result());
+                }
+            }
+            if(!failures.isEmpty()) {
+                throw new BatchExecutionException(results, failures);
+            }
+            return results;
+        });
+    }
+
+    public <T> CompletableFuture<Map<Key, T>> runMethodBatch(Target target, Collection<? extends Key> keys, ExecutionFunction<Value, T> toRun) {
+        return runMethodBatch(target, keys, TIMEOUT_MODE_DEFAULT, toRun);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> runAsyncMethod(Target target, Key key, long timeout, ExecutionFunction<Value, CompletableFuture<T>> toRun) {
+        if(target == null || target.equals(executor.ownTarget)) {
+            CompletableFuture<T> serial = runSerially(key, () -> toRun.apply(fetchExisting(key)));
+            if(serial != null) return serial;
+            return toRun.apply(fetchExisting(key));
         }
         return doSerialize(target, key, toRun, ExecutableInterface.ASYNC_FUNCTION).thenCompose(
-            serialized -> doSend(target, serialized.context().opNumber(), serialized.bytes(), timeout)
-        ).thenApply(bytes -> {
-            InvocationResult result = executor.receiveResult(target, bytes);
+            serialized -> doSend(target, serialized, timeout)
+        ).thenApply(response -> {
+            InvocationResult result = executor.receiveResult(target, response);
             if(result.errorMessage() != null) {
                 throw new TargetExecutionException(result.errorMessage());
             }
@@ -163,6 +261,97 @@ public abstract class DistributedObject<Key, Value, Target> extends ImmutableSer
         return runAsyncMethod(target, key, TIMEOUT_MODE_DEFAULT, toRun);
     }
 
+    /**
+     * Same as {@link #run(Object, Object, ExecutionConsumer)} on the target which the {@link #setKeyLocator key locator} finds for the key
+     */
+    public CompletableFuture<Void> run(Key key, ExecutionConsumer<Value> toRun) {
+        return routed(key, target -> run(target, key, toRun));
+    }
+
+    /**
+     * Same as {@link #runAndForget(Object, Object, ExecutionConsumer)} on the target which the key locator finds for the key
+     */
+    public CompletableFuture<Void> runAndForget(Key key, ExecutionConsumer<Value> toRun) {
+        return routed(key, target -> runAndForget(target, key, toRun));
+    }
+
+    /**
+     * Same as {@link #runMethod(Object, Object, ExecutionFunction)} on the target which the key locator finds for the key
+     */
+    public <T> CompletableFuture<T> runMethod(Key key, ExecutionFunction<Value, T> toRun) {
+        return routed(key, target -> runMethod(target, key, toRun));
+    }
+
+    /**
+     * Same as {@link #runAsyncMethod(Object, Object, ExecutionFunction)} on the target which the key locator finds for the key
+     */
+    public <T> CompletableFuture<T> runAsyncMethod(Key key, ExecutionFunction<Value, CompletableFuture<T>> toRun) {
+        return routed(key, target -> runAsyncMethod(target, key, toRun));
+    }
+
+    private <T> CompletableFuture<T> routed(Key key, Function<Target, CompletableFuture<T>> call) {
+        KeyLocator<Key, Target> locator = this.keyLocator;
+        if(locator == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No key locator is set for " + objectType.getSimpleName()));
+        }
+        return locator.locate(key).thenCompose(target -> {
+            if(target == null) {
+                throw new KeyNotOwnedException("No target owns " + objectType.getSimpleName() + " with key " + key);
+            }
+            return call.apply(target).whenComplete((__, err) -> {
+                if(err instanceof TargetNotAvailableException || (err != null && err.getCause() instanceof TargetNotAvailableException)) {
+                    locator.invalidate(key); // owner went away, ask the directory next time
+                }
+            });
+        });
+    }
+
+    /**
+     * Runs a function producing a stream on the target, and publishes its elements here without collecting them into one response.
+     * The stream is opened once the subscriber requests elements, then pulled in chunks no bigger than the demand,
+     * capped by {@link RemoteStreams#getChunkSize()} of the target. Cancelling the subscription closes the stream on the target
+     * @param target Target
+     * @param key key
+     * @param timeout Timeout of every chunk, same as for {@link #runMethod(Object, Object, long, ExecutionFunction)}
+     * @param toRun function producing the stream, executed once per subscriber
+     * @return a publisher of stream elements
+     * @param <T> Element type
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Flow.Publisher<T> runStream(Target target, Key key, long timeout, ExecutionFunction<Value, Stream<T>> toRun) {
+        if(target == null || target.equals(executor.ownTarget)) {
+            RemoteStreams streams = executor.getRemoteStreams();
+            return new StreamPublisher<>(
+                first -> CompletableFuture.supplyAsync(() -> streams.open(toRun.apply(fetch(key)), first), executor.executor),
+                (streamId, max) -> CompletableFuture.supplyAsync(() -> streams.pull(streamId, max), executor.executor),
+                streams::cancel
+            );
+        }
+        StaticExecutor<Target> statics = executor.getStaticObject();
+        DistributedExecutor<Target> remote = executor; // resolves to the target's own executor there
+        return new StreamPublisher<>(
+            first -> doSerialize(target, key, openStream(toRun, first), ExecutableInterface.STREAM_FUNCTION).thenCompose(
+                serialized -> doSend(target, serialized, timeout)
+            ).thenApply(response -> {
+                InvocationResult result = executor.receiveResult(target, response);
+                if(result.errorMessage() != null) {
+                    throw new TargetExecutionException(result.errorMessage());
+                }
+                return (StreamChunk) result.result();
+            }),
+            (streamId, max) -> statics.runMethod(target, timeout, () -> remote.getRemoteStreams().pull(streamId, max)),
+            streamId -> statics.runAndForget(target, () -> remote.getRemoteStreams().cancel(streamId))
+        );
+    }
+
+    private static <Value, T> ExecutionFunction<Value, StreamRequest> openStream(ExecutionFunction<Value, Stream<T>> toRun, int first) {
+        return value -> new StreamRequest(toRun.apply(value), first);
+    }
+
+    public <T> Flow.Publisher<T> runStream(Target target, Key key, ExecutionFunction<Value, Stream<T>> toRun) {
+        return runStream(target, key, TIMEOUT_MODE_DEFAULT, toRun);
+    }
+
     public CompletableFuture<Object> runSingleMethod(Target target, Key key, String methodDesc, Object[] params) {
         Object id = this.stubFactory.getKey(methodDesc);
         DistributedObject<Key, Value, Target> us = this;
@@ -189,58 +378,174 @@ public abstract class DistributedObject<Key, Value, Target> extends ImmutableSer
         });
     }
 
+    /**
+     * Sends a serialized context to a target, reporting how it went to executor's metrics
+     * @see #doSend(Object, int, BufferLease, long)
+     */
+    protected CompletableFuture<BufferLease> doSend(Target target, SerializationResult serialized, long timeout) {
+        CompletableFuture<BufferLease> sent = doSendMeasured(target, serialized, timeout);
+        if(!executor.getCaptureCache().isEnabled()) return sent;
+        return sent.thenCompose(response -> {
+            if(response == null || !executor.isCaptureMiss(response)) return CompletableFuture.completedFuture(response);
+            // target lost a captured value we referenced, send everything in full once more
+            ExecutionContext context = serialized.context();
+            response.close();
+            executor.popContext(context.opNumber());
+            executor.getCaptureCache().forget(target);
+            return doSerialize(target, context.key(), context.lambda(), context.mode())
+                .thenCompose(retry -> doSendMeasured(target, retry, timeout));
+        });
+    }
+
+    private CompletableFuture<BufferLease> doSendMeasured(Target target, SerializationResult serialized, long timeout) {
+        ExecutorMetrics metrics = executor.getMetrics();
+        if(metrics == ExecutorMetrics.NOOP) {
+            return doSend(target, serialized.context().opNumber(), serialized.data(), timeout);
+        }
+        CallTags tags = CallTags.of(serialized.context());
+        long started = System.nanoTime();
+        return doSend(target, serialized.context().opNumber(), serialized.data(), timeout).whenComplete((response, err) -> {
+            if(err == null) {
+                metrics.onSend(tags, System.nanoTime() - started);
+            } else if(err instanceof TimeoutException || err.getCause() instanceof TimeoutException) {
+                metrics.onTimeout(tags);
+            } else {
+                metrics.onError(tags, err);
+            }
+        });
+    }
+
     /**
      * Sends bytes instructions to a target
      * @param target Target to send
-     * @param bytes bytes instruction
+     * @param data bytes instruction, released by the sender once written
      * @param timeout Timeout mode. -2 for forget, -1 for indefinite, 0 for default, or positive value for timeout in MS
-     * @return Response bytes if waitForReply is true. If it's false, bytes will always be null,
+     * @return Response bytes if waitForReply is true. If it's false, response will always be null,
      * and implementations are required to complete the returning future right after sending
      * instead of when reply was received
      */
-    protected CompletableFuture<byte[]> doSend(Target target, int opNumber, byte[] bytes, long timeout) {
+    protected CompletableFuture<BufferLease> doSend(Target target, int opNumber, BufferLease data, long timeout) {
         if(LambdaReconstructor.DEBUG) {
-            LOGGER.info("Message #{} to {} is {} bytes long", opNumber,target, bytes.length);
+            LOGGER.info("Message #{} to {} is {} bytes long", opNumber,target, data.length());
             if(SAVE_MESSAGES) {
                 try {
-                    Files.write(Path.of(".debug", target + "-" + opNumber + ".bin"), bytes);
+                    Files.write(Path.of(".debug", target + "-" + opNumber + ".bin"), data.toBytes());
                 } catch(IOException e) {
                     LOGGER.error("Failed to save message {}-{}", target, opNumber, e);
                 }
             }
         }
-        return this.executor.sender.send(this, target, opNumber, bytes, timeout);
+        if(timeout <= TIMEOUT_MODE_FORGET) {
+            executor.popContext(opNumber); // no reply is going to be read, so nobody needs the context
+        } else if(timeout != TIMEOUT_MODE_INDEFINITE) {
+            executor.getPendingOperations().expireAfter(opNumber, timeout == TIMEOUT_MODE_DEFAULT ? executor.getDefaultTimeout() : timeout);
+        }
+        return this.executor.sender.send(this, target, opNumber, data, timeout);
     }
 
     /**
      * Serializes a lambda to prepare data to be transferred over the network
+     * @param key Key of the object, null for static modes or an array of keys for a batch
+     */
+    protected CompletableFuture<SerializationResult> doSerialize(Target target, Object key, ExecutableInterface toRun, byte mode) {
+        return doSerialize(target, key, toRun, mode, true);
+    }
+
+    /**
+     * @param confirmable Whether the target's reply confirms what the data carried, see {@link ExecutionContext#setConfirmable(boolean)}
      */
-    protected CompletableFuture<SerializationResult> doSerialize(Target target, Key key, ExecutableInterface toRun, byte mode) {
-        CompletableFuture<?> serializedFirst = firstSerialization.get(toRun.getClass());
+    protected CompletableFuture<SerializationResult> doSerialize(Target target, Object key, ExecutableInterface toRun, byte mode, boolean confirmable) {
         CompletableFuture<SerializationResult> serialize = new CompletableFuture<>();
-        if(serializedFirst == null) {
-            firstSerialization.put(toRun.getClass(), serialize);
-        }
-        executor.executor.execute(() -> {
+        CompletableFuture<?> serializedFirst = firstSerialization.putIfAbsent(toRun.getClass(), serialize);
+        Runnable task = () -> {
             if(!executor.targetManager.isTargetAvailable(target)) {
                 serialize.completeExceptionally(new TargetNotAvailableException(target.toString()));
                 return;
             }
-            if(serializedFirst != null && !serializedFirst.isDone()) {
-                serializedFirst.join();
-            }
-            int opNumber = executor.opNumber.getAndIncrement();
-            if(opNumber < 0) {
-                opNumber = 1;
-                executor.opNumber.set(2);
-            }
+            int opNumber = nextOpNumber();
             ExecutionContext context = executor.getContext(target, key, this, toRun, mode, opNumber);
+            context.setConfirmable(confirmable);
             executor.registerExecution(opNumber, context);
-            serialize.complete(new SerializationResult(context, executor.serialize(context)));
-        });
+            ExecutorMetrics metrics = executor.getMetrics();
+            try {
+                long started = System.nanoTime();
+                BufferLease data = executor.serializeLease(context);
+                metrics.onSerialize(CallTags.of(context), System.nanoTime() - started, data.length());
+                serialize.complete(new SerializationResult(context, data));
+            } catch(Throwable t) {
+                executor.popContext(opNumber);
+                metrics.onError(CallTags.of(context), t);
+                serialize.completeExceptionally(t);
+            }
+        };
+        if(serializedFirst != null && !serializedFirst.isDone()) {
+            // first serialization of this lambda class prepares its accessors, follow it instead of parking a thread on it
+            serializedFirst.whenCompleteAsync((ignored, err) -> task.run(), executor.executor);
+        } else {
+            executor.executor.execute(task);
+        }
         return serialize;
     }
 
+    /**
+     * Serializes a lambda once and prepares a copy of it for every target. Copies differ only by the operation number
+     * in front, so the rest of the serialized bytes is reused as is, only compressed again if compression is on.
+     * Lambda numbers are our own and don't depend on the receiver, and descriptor strings and cached captures are written in full
+     * instead of as ids only the first target confirmed, so bytes written for one target are valid for any other
+     * @return Serialization of every target, failed with {@link TargetNotAvailableException} for unavailable targets
+     */
+    protected Map<Target, CompletableFuture<SerializationResult>> doSerializeFanOut(Collection<? extends Target> targets, Object key, ExecutableInterface toRun, byte mode) {
+        Map<Target, CompletableFuture<SerializationResult>> results = new LinkedHashMap<>();
+        for(Target target : targets) {
+            results.put(target, new CompletableFuture<>());
+        }
+        executor.executor.execute(() -> {
+            List<Target> available = new ArrayList<>(results.size());
+            results.forEach((target, future) -> {
+                if(executor.targetManager.isTargetAvailable(target)) {
+                    available.add(target);
+                } else {
+                    future.completeExceptionally(new TargetNotAvailableException(target.toString()));
+                }
+            });
+            if(available.isEmpty()) return;
+            Target first = available.get(0);
+            doSerialize(first, key, toRun, mode, false).whenComplete((serialized, err) -> {
+                if(err != null) {
+                    for(Target target : available) {
+                        results.get(target).completeExceptionally(err);
+                    }
+                    return;
+                }
+                ByteBuffer body = executor.getCompression().unwrap(serialized.data().buffer());
+                body.position(body.position() + Output.varIntLength(serialized.context().opNumber(), true));
+                byte[] rest = new byte[body.remaining()];
+                body.get(rest); // copied before the first send may release the original
+                results.get(first).complete(serialized);
+                for(int i = 1; i < available.size(); i++) {
+                    Target target = available.get(i);
+                    int opNumber = nextOpNumber();
+                    ExecutionContext context = executor.getContext(target, key, this, toRun, mode, opNumber);
+                    executor.registerExecution(opNumber, context);
+                    Output output = new Output(Output.varIntLength(opNumber, true) + rest.length);
+                    output.writeVarInt(opNumber, true);
+                    output.writeBytes(rest);
+                    results.get(target).complete(new SerializationResult(context, executor.frame(ByteBuffer.wrap(output.getBuffer()))));
+                }
+            });
+        });
+        return results;
+    }
+
+    private int nextOpNumber() {
+        int opNumber = executor.opNumber.getAndIncrement();
+        if(opNumber < 0) {
+            opNumber = 1;
+            executor.opNumber.set(2);
+        }
+        return opNumber;
+    }
+
     protected abstract Key extract(Value value);
     protected abstract Value fetch(Key key);
 
@@ -289,6 +594,110 @@ public abstract class DistributedObject<Key, Value, Target> extends ImmutableSer
         return null;
     }
 
+    /**
+     * Makes lambdas for the same key run one after another in the order they were received, so they don't need
+     * to lock the object. Calls on the own target wait in the same order.
+     * A lambda waiting for its turn doesn't hold a scheduler slot.
+     * Lambdas for different keys still run in parallel, batches aren't affected.
+     * A lambda must not wait for another call on the same key, it would wait forever
+     * @param stripes Amount of queues keys are spread over, 0 to run lambdas for the same key in parallel again
+     * @see KeyMailboxes
+     */
+    public void setSerialPerKey(int stripes) {
+        this.mailboxes = stripes <= 0 ? null : new KeyMailboxes(stripes);
+    }
+
+    /**
+     * Runs a call on the own target in the key's mailbox, after lambdas for the same key which came before it
+     * @return Future of the call's result, or null if lambdas for the same key run in parallel
+     */
+    private <T> CompletableFuture<T> runSerially(Key key, Supplier<? extends CompletionStage<T>> call) {
+        KeyMailboxes mailboxes = this.mailboxes;
+        if(mailboxes == null) return null;
+        CompletableFuture<T> result = new CompletableFuture<>();
+        mailboxes.submit(key, executor.executor, () -> {
+            CompletionStage<T> stage = call.get();
+            stage.whenComplete((value, err) -> {
+                if(err != null) {
+                    result.completeExceptionally(err);
+                } else {
+                    result.complete(value);
+                }
+            });
+            return stage;
+        }).whenComplete((__, err) -> {
+            if(err != null) result.completeExceptionally(err); // the call threw
+        });
+        return result;
+    }
+
+    private Value fetchExisting(Key key) {
+        Value value = fetch(key);
+        if(value == null) {
+            throw new NullPointerException("Failed to move a " + objectType.getSimpleName() + " with key " + key);
+        }
+        return value;
+    }
+
+    /**
+     * @return Mailboxes lambdas for the same key wait in, or null if they run in parallel
+     */
+    public KeyMailboxes getMailboxes() {
+        return mailboxes;
+    }
+
+    /**
+     * @param keyLocator Finds targets for calls which only name the key, null to disallow such calls.
+     *                   The previous locator is closed
+     */
+    public void setKeyLocator(KeyLocator<Key, Target> keyLocator) {
+        KeyLocator<Key, Target> previous = this.keyLocator;
+        this.keyLocator = keyLocator;
+        if(previous != null && previous != keyLocator) {
+            previous.close();
+        }
+    }
+
+    public KeyLocator<Key, Target> getKeyLocator() {
+        return keyLocator;
+    }
+
+    /**
+     * Routes calls which only name the key through the target manager's key directory,
+     * remembering owners locally. Targets owning keys announce it with {@link CachedKeyLocator#claim}
+     * @return Locator which was set
+     */
+    public CachedKeyLocator<Key, Target> useKeyDirectory() {
+        KeyDirectory<Target> directory = executor.targetManager.getKeyDirectory();
+        if(directory == null) {
+            throw new UnsupportedOperationException(executor.targetManager.getClass().getSimpleName() + " doesn't keep a key directory");
+        }
+        CachedKeyLocator<Key, Target> locator = new CachedKeyLocator<>(directory, objectType.getName());
+        setKeyLocator(locator);
+        return locator;
+    }
+
+    /**
+     * Spreads keys over the target manager's live targets, so calls which only name the key need no directory.
+     * Keys move between targets when they join or leave, listen to rebalances to load or unload them
+     * @return Partitioner which was set
+     * @see ConsistentHashPartitioner#addRebalanceListener
+     */
+    public ConsistentHashPartitioner<Key, Target> usePartitioner() {
+        if(stubFactory != null) {
+            throw new IllegalStateException("Unique objects exist on one target only and can't be partitioned");
+        }
+        if(executor.targetManager.getLiveTargets() == null) {
+            throw new UnsupportedOperationException(executor.targetManager.getClass().getSimpleName() + " doesn't track live targets");
+        }
+        ConsistentHashPartitioner<Key, Target> partitioner = new ConsistentHashPartitioner<>(
+            () -> executor.targetManager.getLiveTargets(), executor.executor
+        );
+        partitioner.start();
+        setKeyLocator(partitioner);
+        return partitioner;
+    }
+
     public DistributedExecutor<Target> getExecutor() {
         return executor;
     }
@@ -0,0 +1,15 @@
+package cc.olek.lamada;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface used as a unique distributed object, so {@link cc.olek.lamada.asm.Precompiler}
+ * generates its stub at build time instead of it being generated at runtime
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface GenerateStub {
+}
@@ -1,7 +1,22 @@
 package cc.olek.lamada;
 
+import cc.olek.lamada.serialization.BufferLease;
+
 import java.util.concurrent.CompletableFuture;
 
 public interface InstructionCommunicator<Target> {
     CompletableFuture<byte[]> send(DistributedObject<?, ?, Target> object, Target to, int opNumber, byte[] data, long timeout);
+
+    /**
+     * Same as {@link #send(DistributedObject, Object, int, byte[], long)}, but without copying the data into an array.
+     * Implementation owns the data lease and must release it once it was written, caller owns the response lease.
+     * By default copies the lease into an array, transports which can write a {@link java.nio.ByteBuffer} directly should override it
+     */
+    default CompletableFuture<BufferLease> send(DistributedObject<?, ?, Target> object, Target to, int opNumber, BufferLease data, long timeout) {
+        byte[] bytes;
+        try(data) {
+            bytes = data.toBytes();
+        }
+        return send(object, to, opNumber, bytes, timeout).thenApply(response -> response == null ? null : BufferLease.wrap(response));
+    }
 }
@@ -1,6 +1,8 @@
 package cc.olek.lamada;
 
 import cc.olek.lamada.asm.LambdaImpl;
+import cc.olek.lamada.routing.KeyDirectory;
+import cc.olek.lamada.routing.LocalKeyDirectory;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
@@ -8,13 +10,26 @@ import it.unimi.dsi.fastutil.objects.Object2ShortMap;
 import it.unimi.dsi.fastutil.objects.Object2ShortMaps;
 import it.unimi.dsi.fastutil.objects.Object2ShortOpenHashMap;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LoopbackRemoteTargetManager<Target> extends RemoteTargetManager<Target> {
     private final Object2ShortMap<String> impl2int = Object2ShortMaps.synchronize(new Object2ShortOpenHashMap<>());
     private final Int2ObjectMap<LambdaImpl> int2impl = Int2ObjectMaps.synchronize(new Int2ObjectOpenHashMap<>());
+    private final Int2ObjectMap<LambdaImpl> ownImpls = Int2ObjectMaps.synchronize(new Int2ObjectOpenHashMap<>());
+    private final KeyDirectory<Target> keyDirectory;
+    private volatile Collection<Target> liveTargets;
     public LoopbackRemoteTargetManager(DistributedExecutor<Target> executor) {
+        this(executor, new LocalKeyDirectory<>());
+    }
+
+    /**
+     * @param keyDirectory Directory shared with other loopback targets in this JVM
+     */
+    public LoopbackRemoteTargetManager(DistributedExecutor<Target> executor, KeyDirectory<Target> keyDirectory) {
         super(executor);
+        this.keyDirectory = keyDirectory;
     }
 
     @Override
@@ -32,7 +47,9 @@ public class LoopbackRemoteTargetManager<Target> extends RemoteTargetManager<Tar
         AtomicBoolean existedBefore = new AtomicBoolean(true);
         short val = impl2int.computeIfAbsent(impl.implementation().className() + impl.implementation().methodName(), d -> {
             existedBefore.set(false);
-            return (short) counter.getAndIncrement();
+            short num = (short) counter.getAndIncrement();
+            ownImpls.put(num, impl.clone());
+            return num;
         });
         return new SubmissionResult(existedBefore.get(), val);
     }
@@ -44,7 +61,8 @@ public class LoopbackRemoteTargetManager<Target> extends RemoteTargetManager<Tar
 
     @Override
     public LambdaImpl requestMissingImplementation(Target sender, short lambdaNum) {
-        return null;
+        LambdaImpl own = ownImpls.get(lambdaNum); // we are the sender
+        return own == null ? null : own.clone();
     }
 
     @Override
@@ -52,4 +70,22 @@ public class LoopbackRemoteTargetManager<Target> extends RemoteTargetManager<Tar
         return true;
     }
 
+    @Override
+    public KeyDirectory<Target> getKeyDirectory() {
+        return keyDirectory;
+    }
+
+    /**
+     * @param liveTargets Targets reported as up, null to report only the own target
+     */
+    public void setLiveTargets(Collection<Target> liveTargets) {
+        this.liveTargets = liveTargets == null ? null : List.copyOf(liveTargets);
+    }
+
+    @Override
+    public Collection<Target> getLiveTargets() {
+        Collection<Target> liveTargets = this.liveTargets;
+        return liveTargets == null ? List.of(executor.getOwnTarget()) : liveTargets;
+    }
+
 }
@@ -1,10 +1,12 @@
 package cc.olek.lamada;
 
 import cc.olek.lamada.asm.LambdaImpl;
+import cc.olek.lamada.routing.KeyDirectory;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 
+import java.util.Collection;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -68,6 +70,20 @@ public abstract class RemoteTargetManager<Target> {
         sync(); // the standard implementation rescrambles numbers
     }
 
+    /**
+     * @return Directory of key owners shared with other targets, or null if this manager doesn't keep one
+     */
+    public KeyDirectory<Target> getKeyDirectory() {
+        return null;
+    }
+
+    /**
+     * @return Targets which are currently up, including the own one, or null if this manager doesn't track them
+     */
+    public Collection<Target> getLiveTargets() {
+        return null;
+    }
+
     public void shutdown() {}
 
     public record SubmissionResult(boolean existedBefore, short lambdaNum) {}
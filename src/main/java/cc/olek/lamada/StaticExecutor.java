@@ -4,7 +4,14 @@ import cc.olek.lamada.context.InvocationResult;
 import cc.olek.lamada.exception.TargetExecutionException;
 import cc.olek.lamada.func.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class StaticExecutor<Target> extends DistributedObject<Object, Object, Target> {
     public StaticExecutor(DistributedExecutor<Target> distributedExecutor) {
@@ -21,9 +28,9 @@ public class StaticExecutor<Target> extends DistributedObject<Object, Object, Ta
             return CompletableFuture.supplyAsync(toRun::supply, executor.executor);
         }
         return doSerialize(target, null, toRun, ExecutableInterface.SUPPLIER).thenCompose(
-            serialized -> doSend(target, serialized.context().opNumber(), serialized.bytes(), timeout)
-        ).thenApply(bytes -> {
-            InvocationResult result = executor.receiveResult(target, bytes);
+            serialized -> doSend(target, serialized, timeout)
+        ).thenApply(response -> {
+            InvocationResult result = executor.receiveResult(target, response);
             if(result.errorMessage() != null) {
                 throw new TargetExecutionException(result.errorMessage());
             }
@@ -41,9 +48,9 @@ public class StaticExecutor<Target> extends DistributedObject<Object, Object, Ta
             return toRun.supply();
         }
         return doSerialize(target, null, toRun, ExecutableInterface.ASYNC_SUPPLIER).thenCompose(
-            serialized -> doSend(target, serialized.context().opNumber(), serialized.bytes(), timeout)
-        ).thenApply(bytes -> {
-            InvocationResult result = executor.receiveResult(target, bytes);
+            serialized -> doSend(target, serialized, timeout)
+        ).thenApply(response -> {
+            InvocationResult result = executor.receiveResult(target, response);
             if(result.errorMessage() != null) {
                 throw new TargetExecutionException(result.errorMessage());
             }
@@ -59,9 +66,9 @@ public class StaticExecutor<Target> extends DistributedObject<Object, Object, Ta
             return CompletableFuture.runAsync(toRun::run, executor.executor);
         }
         return doSerialize(target, null, toRun, ExecutableInterface.RUNNABLE).thenCompose(
-            serialized -> doSend(target, serialized.context().opNumber(), serialized.bytes(), timeout)
-        ).thenApply(bytes -> {
-            InvocationResult result = executor.receiveResult(target, bytes);
+            serialized -> doSend(target, serialized, timeout)
+        ).thenApply(response -> {
+            InvocationResult result = executor.receiveResult(target, response);
             if(result.errorMessage() != null) {
                 throw new TargetExecutionException(result.errorMessage());
             }
@@ -73,11 +80,63 @@ public class StaticExecutor<Target> extends DistributedObject<Object, Object, Ta
         if(target == null || target.equals(executor.ownTarget)) {
             return CompletableFuture.runAsync(toRun::run, executor.executor);
         }
-        return doSerialize(target, null, toRun, ExecutableInterface.RUNNABLE).thenCompose(
-            serialized -> doSend(target, serialized.context().opNumber(), serialized.bytes(), TIMEOUT_MODE_FORGET)
+        return doSerialize(target, null, toRun, ExecutableInterface.RUNNABLE, false).thenCompose( // no reply will confirm anything
+            serialized -> doSend(target, serialized, TIMEOUT_MODE_FORGET)
         ).thenApply(__ -> null);
     }
 
+    public <T> Map<Target, CompletableFuture<T>> broadcastMethod(Collection<? extends Target> targets, ExecutionSupplier<T> toRun) {
+        return broadcastMethod(targets, TIMEOUT_MODE_DEFAULT, toRun);
+    }
+
+    /**
+     * Runs a supplier on every target. The lambda is serialized once for all of them
+     * @return Future of every target's result, each one fails on its own
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Map<Target, CompletableFuture<T>> broadcastMethod(Collection<? extends Target> targets, long timeout, ExecutionSupplier<T> toRun) {
+        return broadcast(targets, timeout, toRun, ExecutableInterface.SUPPLIER, () -> toRun.supply(), result -> (T) result.result());
+    }
+
+    public Map<Target, CompletableFuture<Void>> broadcast(Collection<? extends Target> targets, ExecutionRunnable toRun) {
+        return broadcast(targets, TIMEOUT_MODE_DEFAULT, toRun);
+    }
+
+    /**
+     * Runs a runnable on every target. The lambda is serialized once for all of them
+     * @return Future of every target's completion, each one fails on its own
+     */
+    public Map<Target, CompletableFuture<Void>> broadcast(Collection<? extends Target> targets, long timeout, ExecutionRunnable toRun) {
+        return broadcast(targets, timeout, toRun, ExecutableInterface.RUNNABLE, () -> {
+            toRun.run();
+            return null;
+        }, result -> null);
+    }
+
+    private <T> Map<Target, CompletableFuture<T>> broadcast(Collection<? extends Target> targets, long timeout, ExecutableInterface toRun, byte mode,
+                                                           Supplier<T> local, Function<InvocationResult, T> extract) {
+        Map<Target, CompletableFuture<T>> results = new LinkedHashMap<>();
+        List<Target> remote = new ArrayList<>(targets.size());
+        for(Target target : targets) {
+            if(target == null || target.equals(executor.ownTarget)) {
+                results.put(target, CompletableFuture.supplyAsync(local, executor.executor));
+            } else {
+                remote.add(target);
+            }
+        }
+        if(remote.isEmpty()) return results;
+        doSerializeFanOut(remote, null, toRun, mode).forEach((target, serialization) -> results.put(target, serialization.thenCompose(
+            serialized -> doSend(target, serialized, timeout)
+        ).thenApply(response -> {
+            InvocationResult result = executor.receiveResult(target, response);
+            if(result.errorMessage() != null) {
+                throw new TargetExecutionException(result.errorMessage());
+            }
+            return extract.apply(result);
+        })));
+        return results;
+    }
+
     @Override
     public final <T> CompletableFuture<T> runMethod(Target target, Object o, long timeout, ExecutionFunction<Object, T> toRun) {
         throw new UnsupportedOperationException();
@@ -0,0 +1,159 @@
+package cc.olek.lamada.asm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps classes generated for received lambdas on disk, so after a restart they are defined
+ * straight from the cached bytes instead of being generated again.
+ * <p>
+ * An entry is keyed by everything generation depends on: the generator version, the lambda's implementation and
+ * functional interface, the generated class name, and a hash of the implementation class bytes. Upgrading Lamada or
+ * changing that class in a deploy makes old entries unreachable, they are not cleaned up. Any problem reading or writing the cache is logged
+ * and the classes are generated as usual
+ * </p>
+ */
+public class GeneratedClassCache {
+    private static final Logger logger = LoggerFactory.getLogger(GeneratedClassCache.class);
+    private static final int MAGIC = 0x4c414d44;
+    private static final int VERSION = 1;
+    private static final String GENERATOR_VERSION = generatorVersion();
+    private final Path directory;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public GeneratedClassCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Generated classes of one lambda
+     * @param lambdaClass Bytes of the lambda class
+     * @param factoryClass Bytes of its factory
+     * @param movedImplementation Whether the implementation method was copied into the lambda class,
+     *                            because the original wasn't accessible
+     */
+    public record Entry(String className, byte[] lambdaClass, byte[] factoryClass, boolean movedImplementation) {
+    }
+
+    /**
+     * @param originalClassBytes Bytes of the class the lambda is implemented in
+     * @return Key of the entry for the lambda
+     */
+    public static String keyOf(LambdaImpl lambda, String className, byte[] originalClassBytes) {
+        MethodImpl implementation = lambda.implementation();
+        String description = String.join("\n",
+            GENERATOR_VERSION,
+            className,
+            lambda.functionalInterface(),
+            lambda.primarySignature(),
+            String.valueOf(lambda.implMethodKind()),
+            implementation.className(),
+            implementation.methodName(),
+            implementation.signature()
+        );
+        MessageDigest digest = sha256();
+        digest.update(description.getBytes(StandardCharsets.UTF_8));
+        digest.update(originalClassBytes);
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * @return Fingerprint of Lamada's version and the bytes of the classes generating lambdas,
+     *         so development builds without a version bump don't reuse each other's entries either
+     */
+    public static String getGeneratorVersion() {
+        return GENERATOR_VERSION;
+    }
+
+    private static String generatorVersion() {
+        MessageDigest digest = sha256();
+        String version = GeneratedClassCache.class.getPackage().getImplementationVersion();
+        digest.update(String.valueOf(version).getBytes(StandardCharsets.UTF_8));
+        for(Class<?> generator : new Class<?>[] {LambdaReconstructor.class, LambdaCorrector.class, AsmUtil.class}) {
+            try(InputStream in = generator.getResourceAsStream(generator.getSimpleName() + ".class")) {
+                if(in != null) {
+                    digest.update(in.readAllBytes());
+                }
+            } catch(IOException e) {
+                logger.warn("Failed to read {} for the generator version", generator.getName(), e);
+            }
+        }
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    public Entry load(String key) {
+        Path file = directory.resolve(key + ".bin");
+        if(!Files.exists(file)) {
+            misses.increment();
+            return null;
+        }
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                misses.increment();
+                return null;
+            }
+            String className = in.readUTF();
+            boolean moved = in.readBoolean();
+            byte[] lambdaClass = in.readNBytes(in.readInt());
+            byte[] factoryClass = in.readNBytes(in.readInt());
+            hits.increment();
+            return new Entry(className, lambdaClass, factoryClass, moved);
+        } catch(IOException e) {
+            logger.warn("Failed to read cached classes from {}, generating them again", file, e);
+            misses.increment();
+            return null;
+        }
+    }
+
+    public void store(String key, Entry entry) {
+        Path file = directory.resolve(key + ".bin");
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(entry.className());
+                out.writeBoolean(entry.movedImplementation());
+                out.writeInt(entry.lambdaClass().length);
+                out.write(entry.lambdaClass());
+                out.writeInt(entry.factoryClass().length);
+                out.write(entry.factoryClass());
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); // other JVMs may share the directory
+        } catch(IOException e) {
+            logger.warn("Failed to cache generated classes in {}", file, e);
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -2,7 +2,6 @@ package cc.olek.lamada.asm;
 
 import cc.olek.lamada.ObjectStub;
 import cc.olek.lamada.ObjectStubFactory;
-import cc.olek.lamada.util.Deencapsulation;
 import cc.olek.lamada.util.Exceptions;
 import com.esotericsoftware.minlog.Log;
 import org.objectweb.asm.*;
@@ -17,27 +16,45 @@ import java.lang.reflect.Modifier;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 import static cc.olek.lamada.util.Deencapsulation.defineClass;
 
 public class LambdaReconstructor {
-    private static final Map<String, Function<Object[], Object>> generatedSuppliers = new ConcurrentHashMap<>();
-    private static final Map<String, CompletableFuture<?>> generationInProcess = new ConcurrentHashMap<>();
-    private static final Map<Class<?>, ObjectStubFactory<?, ?>> generatedStubsGenerators = new ConcurrentHashMap<>();
-    private static final Map<Class<?>, CompletableFuture<?>> stubGenerationInProcess = new ConcurrentHashMap<>();
-    private static final Map<Object, Object> completelyGenerated = new ConcurrentHashMap<>();
+    private static final Map<String, CompletableFuture<Function<Object[], Object>>> generatedSuppliers = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, CompletableFuture<ObjectStubFactory<?, ?>>> generatedStubsGenerators = new ConcurrentHashMap<>();
     private static final Map<String, byte[]> implementations = new ConcurrentHashMap<>();
-    private static final Object exists = new Object();
+    private static final AtomicInteger classgenThreads = new AtomicInteger();
+    private static final ThreadPoolExecutor classgen = new ThreadPoolExecutor(
+        0, Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+        30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(1024),
+        runnable -> {
+            Thread thread = new Thread(runnable, "lamada-classgen-" + classgenThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy() // a full queue slows down whoever floods it instead of dropping work
+    );
     private static String debugVal = System.getenv("SYNC_DEBUG");
     public static final boolean DEBUG;
+    private static volatile GeneratedClassCache classCache;
     static {
         if(debugVal == null) {
             debugVal = System.getProperty("sync.debug");
         }
         DEBUG = debugVal != null;
+        String cacheDir = System.getProperty("sync.class-cache");
+        if(cacheDir != null) {
+            classCache = new GeneratedClassCache(Path.of(cacheDir));
+        }
         if(DEBUG) {
             try {
                 Log.set(Integer.parseInt(debugVal));
@@ -48,54 +65,60 @@ public class LambdaReconstructor {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public static Object reconstructLambda(LambdaImpl lambda, Object[] args, boolean firstEver, ClassLoader classLoader) {
-        MethodImpl implementation = lambda.implementation();
-        String key = implementation.className() + "." + implementation.methodName() + implementation.signature();
-        CompletableFuture<Void> serializeFinished = completelyGenerated.containsKey(key)
-            ? null
-            : waitUntilClassgenDone(key, generationInProcess);
-        return generatedSuppliers.computeIfAbsent(key, c -> {
-            try {
-                return (Function<Object[], Object>) generateLambdaFactory(lambda, firstEver, classLoader);
-            } catch(Throwable e) {
-                throw Exceptions.wrap(e);
-            } finally {
-                if(serializeFinished != null) {
-                    completelyGenerated.put(c, exists);
-                    serializeFinished.complete(null);
-                }
-            }
-        }).apply(args);
+        CompletableFuture<Function<Object[], Object>> factory = lambdaFactory(lambda, firstEver, classLoader);
+        try {
+            return factory.join().apply(args);
+        } catch(CompletionException e) {
+            throw Exceptions.wrap(e.getCause());
+        }
     }
 
-    public static ObjectStubFactory<?, ?> getStubGenerator(Class<?> stubOf) {
-        CompletableFuture<Void> serializeFinished = completelyGenerated.containsKey(stubOf)
-            ? null
-            : waitUntilClassgenDone(stubOf, stubGenerationInProcess);
-        return generatedStubsGenerators.computeIfAbsent(stubOf, c -> {
+    /**
+     * Returns the factory of a lambda class, starting its generation on the class generation pool if nobody did yet.
+     * Concurrent callers share the same generation, and a failed generation is forgotten so the next caller tries again
+     * @return Future completed once the lambda class is defined, already completed if it was
+     */
+    @SuppressWarnings("unchecked")
+    public static CompletableFuture<Function<Object[], Object>> lambdaFactory(LambdaImpl lambda, boolean firstEver, ClassLoader classLoader) {
+        MethodImpl implementation = lambda.implementation();
+        String key = implementation.className() + "." + implementation.methodName() + implementation.signature();
+        CompletableFuture<Function<Object[], Object>> existing = generatedSuppliers.get(key);
+        if(existing != null) return existing;
+        CompletableFuture<Function<Object[], Object>> generation = new CompletableFuture<>();
+        existing = generatedSuppliers.putIfAbsent(key, generation);
+        if(existing != null) return existing;
+        LambdaImpl toGenerate = lambda.clone(); // generation may move the implementation
+        classgen.execute(() -> {
             try {
-                return generateStubFactory(c);
-            } catch(Throwable e) {
-                throw Exceptions.wrap(e);
-            } finally {
-                if(serializeFinished != null) {
-                    completelyGenerated.put(c, exists);
-                    serializeFinished.complete(null);
-                }
+                generation.complete((Function<Object[], Object>) generateLambdaFactory(toGenerate, firstEver, classLoader));
+            } catch(Throwable t) {
+                generatedSuppliers.remove(key, generation);
+                generation.completeExceptionally(t);
             }
         });
+        return generation;
     }
 
-    private static <T> CompletableFuture<Void> waitUntilClassgenDone(T object, Map<T, CompletableFuture<?>> source) {
-        CompletableFuture<?> existing = source.get(object);
-        CompletableFuture<Void> serializeFinished = new CompletableFuture<>();
+    public static ObjectStubFactory<?, ?> getStubGenerator(Class<?> stubOf) {
+        CompletableFuture<ObjectStubFactory<?, ?>> generation = new CompletableFuture<>();
+        CompletableFuture<ObjectStubFactory<?, ?>> existing = generatedStubsGenerators.putIfAbsent(stubOf, generation);
         if(existing == null) {
-            source.put(object, serializeFinished);
-        } else if(!existing.isDone()) {
-            existing.join();
+            existing = generation;
+            classgen.execute(() -> {
+                try {
+                    generation.complete(generateStubFactory(stubOf));
+                } catch(Throwable t) {
+                    generatedStubsGenerators.remove(stubOf, generation);
+                    generation.completeExceptionally(t);
+                }
+            });
+        }
+        try {
+            return existing.join();
+        } catch(CompletionException e) {
+            throw Exceptions.wrap(e.getCause());
         }
-        return serializeFinished;
     }
 
     public static void checkBeforeSending(SerializedLambda lambda, Object lambdaObj) throws Throwable {
@@ -110,34 +133,124 @@ public class LambdaReconstructor {
     }
 
     public static Object generateLambdaFactory(LambdaImpl lambda, boolean firstEver, ClassLoader classLoader) throws Throwable {
-        MethodImpl originalLambdaImpl = lambda.implementation();
-        String lambdaSuffix = originalLambdaImpl.methodName().replace('$', '_') + lambda.implMethodKind();
+        String generatedClassName = generatedClassName(lambda, firstEver);
+        Object precompiled = loadPrecompiled(lambda, generatedClassName, classLoader);
+        if(precompiled != null) return precompiled;
+
+        GeneratedClassCache cache = classCache;
+        String cacheKey = null;
+        if(cache != null) {
+            byte[] originalBytes = originalClassBytes(Class.forName(lambda.implementation().className().replace('/', '.'), true, classLoader));
+            if(originalBytes != null) {
+                cacheKey = GeneratedClassCache.keyOf(lambda, generatedClassName, originalBytes);
+                GeneratedClassCache.Entry cached = cache.load(cacheKey);
+                if(cached != null) {
+                    if(cached.movedImplementation()) {
+                        moveImplementation(lambda, generatedClassName);
+                    }
+                    return defineGenerated(classLoader, generatedClassName, cached.lambdaClass(), cached.factoryClass());
+                }
+            }
+        }
+
+        GeneratedClassCache.Entry generated = generateLambdaClasses(lambda, firstEver, classLoader);
+        if(cacheKey != null) {
+            cache.store(cacheKey, generated);
+        }
+        return defineGenerated(classLoader, generatedClassName, generated.lambdaClass(), generated.factoryClass());
+    }
+
+    /**
+     * Generates the lambda class and its factory without defining them
+     */
+    public static GeneratedClassCache.Entry generateLambdaClasses(LambdaImpl lambda, boolean firstEver, ClassLoader classLoader) throws Throwable {
         Class<?> functionalInterface = Class.forName(
             lambda.functionalInterface().replace('/', '.'),
             true,
             classLoader
         );
+        Class<?> implementationClazz = Class.forName(lambda.implementation().className().replace('/', '.'), true, classLoader);
+        String generatedClassName = generatedClassName(lambda, firstEver);
+
+        MethodImpl original = lambda.implementation();
+        byte[] lambdaClassBytes = generateLambdaClass(implementationClazz, generatedClassName, functionalInterface, lambda);
+        byte[] factoryClassBytes = generateFactoryClass(generatedClassName + "$Generator", generatedClassName);
+        return new GeneratedClassCache.Entry(generatedClassName, lambdaClassBytes, factoryClassBytes, lambda.implementation() != original);
+    }
+
+    public static String generatedClassName(LambdaImpl lambda, boolean firstEver) {
+        MethodImpl originalLambdaImpl = lambda.implementation();
+        String lambdaSuffix = originalLambdaImpl.methodName().replace('$', '_') + lambda.implMethodKind();
         String implClassBinaryName = originalLambdaImpl.className().replace('/', '.');
-        Class<?> implementationClazz = Class.forName(implClassBinaryName, true, classLoader);
-        String generatedClassName;
         if(firstEver) {
-            generatedClassName = "generated." + implClassBinaryName + "$" + lambdaSuffix;
-        } else {
-            String[] mainPart = implClassBinaryName.split("\\$", 1);
-            generatedClassName = "generated." + mainPart[0] + "$I$" + lambdaSuffix;
+            return "generated." + implClassBinaryName + "$" + lambdaSuffix;
         }
+        String[] mainPart = implClassBinaryName.split("\\$", 1);
+        return "generated." + mainPart[0] + "$I$" + lambdaSuffix;
+    }
 
-        byte[] lambdaClassBytes = generateLambdaClass(implementationClazz, generatedClassName, functionalInterface, lambda);
+    /**
+     * Looks for a factory put on the classpath by {@link Precompiler}
+     * @return Factory instance or null if the lambda wasn't precompiled
+     */
+    private static Object loadPrecompiled(LambdaImpl lambda, String generatedClassName, ClassLoader classLoader) throws Throwable {
+        Class<?> factoryClass;
+        try {
+            factoryClass = Class.forName(generatedClassName + "$Generator", true, classLoader);
+        } catch(ClassNotFoundException e) {
+            return null;
+        }
+        Class<?> lambdaClass = Class.forName(generatedClassName, false, classLoader);
+        String implName = lambda.implementation().methodName();
+        for(Method method : lambdaClass.getDeclaredMethods()) {
+            if(method.getName().equals(implName)) { // implementation was copied in, same as generation does
+                moveImplementation(lambda, generatedClassName);
+                break;
+            }
+        }
+        return factoryClass.getConstructor().newInstance();
+    }
+
+    private static void moveImplementation(LambdaImpl lambda, String generatedClassName) {
+        MethodImpl prev = lambda.implementation();
+        lambda.setImplementation(new MethodImpl(generatedClassName.replace('.', '/'), prev.methodName(), prev.signature()));
+    }
+
+    private static Object defineGenerated(ClassLoader classLoader, String generatedClassName, byte[] lambdaClassBytes, byte[] factoryClassBytes) throws Throwable {
         saveClass(generatedClassName, lambdaClassBytes, true);
         defineClass(classLoader, generatedClassName, lambdaClassBytes);
 
-        byte[] factoryClassBytes = generateFactoryClass(generatedClassName + "$Generator", generatedClassName);
         saveClass(generatedClassName + "$Generator", factoryClassBytes, false);
         Class<?> factoryClass = defineClass(classLoader, generatedClassName + "$Generator", factoryClassBytes);
 
         return factoryClass.getConstructor().newInstance();
     }
 
+    /**
+     * @return Bytes of the class for cache keys, null if they can't be read so the lambda isn't cached
+     */
+    private static byte[] originalClassBytes(Class<?> clazz) {
+        byte[] generated = implementations.get(clazz.getName());
+        if(generated != null) return generated;
+        try {
+            return getClassBytes(clazz);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Enables the on-disk cache of generated lambda classes, which also can be enabled with sync.class-cache property
+     * @param directory Where to keep generated classes, or null to disable the cache
+     */
+    public static void setClassCache(Path directory) {
+        classCache = directory == null ? null : new GeneratedClassCache(directory);
+    }
+
+    public static GeneratedClassCache getClassCache() {
+        return classCache;
+    }
+
     private static byte[] generateLambdaClass(Class<?> originalClass, String className, Class<?> functionalInterface, LambdaImpl lambda) throws Throwable {
         ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
         String internalName = className.replace('.', '/');
@@ -475,6 +588,27 @@ public class LambdaReconstructor {
     }
 
     public static ObjectStubFactory<?, ?> generateStubFactory(Class<?> objectType) throws Throwable {
+        String stubFactoryNameBinary = objectType.getName() + "$StubFactory";
+        try {
+            Class<?> precompiled = Class.forName(stubFactoryNameBinary, true, objectType.getClassLoader());
+            return (ObjectStubFactory<?, ?>) precompiled.getConstructor().newInstance();
+        } catch(ClassNotFoundException ignored) {
+            // not precompiled
+        }
+        Class<?> factoryClass = null;
+        for(Map.Entry<String, byte[]> generated : generateStubClasses(objectType).entrySet()) {
+            saveClass(generated.getKey(), generated.getValue(), false);
+            factoryClass = defineClass(LambdaReconstructor.class.getClassLoader(), generated.getKey(), generated.getValue());
+        }
+        return (ObjectStubFactory<?, ?>) factoryClass.getConstructor().newInstance();
+    }
+
+    /**
+     * Generates the stub of a unique object's interface and its factory without defining them
+     * @return Binary class names to class bytes, stub first
+     */
+    public static Map<String, byte[]> generateStubClasses(Class<?> objectType) {
+        Map<String, byte[]> generated = new LinkedHashMap<>();
         String objectTypeNameBinary = objectType.getName();
         String objectTypeName = objectTypeNameBinary.replace('.', '/');
         ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
@@ -524,11 +658,8 @@ public class LambdaReconstructor {
         }
 
         cw.visitEnd();
-        byte[] bytes = cw.toByteArray();
-
-        saveClass(stubBinaryName, bytes, false);
+        generated.put(stubBinaryName, cw.toByteArray());
 
-        Deencapsulation.defineClass(LambdaReconstructor.class.getClassLoader(), stubBinaryName, bytes);
         String stubFactoryName = objectTypeName + "$StubFactory";
         String stubFactoryNameBinary = objectTypeNameBinary + "$StubFactory";
         String factorySuperclass = ObjectStubFactory.class.getName().replace('.', '/');
@@ -543,9 +674,7 @@ public class LambdaReconstructor {
         mv.visitMaxs(0, 0);
         mv.visitEnd();
         cw.visitEnd();
-        bytes = cw.toByteArray();
-        saveClass(stubFactoryNameBinary, bytes, false);
-        Class<?> factoryClass = defineClass(LambdaReconstructor.class.getClassLoader(), stubFactoryNameBinary, bytes);
-        return (ObjectStubFactory<?, ?>) factoryClass.getConstructor().newInstance();
+        generated.put(stubFactoryNameBinary, cw.toByteArray());
+        return generated;
     }
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+package cc.olek.lamada.asm;
+
+import cc.olek.lamada.GenerateStub;
+import org.objectweb.asm.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Generates lambda factories and unique object stubs at build time, so at runtime they are loaded from the jar
+ * instead of being generated. Scans compiled classes for serializable lambdas of Execution* interfaces
+ * and for interfaces annotated with {@link GenerateStub}.
+ * <p>
+ * Classes are loaded to generate code for them, so it must run with the project's runtime classpath.
+ * Usage: {@code Precompiler <classes directory> [output directory]}, output defaults to the classes directory
+ * </p>
+ */
+public final class Precompiler {
+    private static final Logger logger = LoggerFactory.getLogger(Precompiler.class);
+    private static final String FUNCTIONAL_PREFIX = "cc/olek/lamada/func/Execution";
+    private static final String ALT_METAFACTORY = "altMetafactory";
+    private static final String METAFACTORY_OWNER = "java/lang/invoke/LambdaMetafactory";
+    private static final String STUB_ANNOTATION = Type.getDescriptor(GenerateStub.class);
+
+    private Precompiler() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.err.println("Usage: Precompiler <classes directory> [output directory]");
+            System.exit(1);
+        }
+        Path classes = Path.of(args[0]);
+        Path output = args.length > 1 ? Path.of(args[1]) : classes;
+        Result result = precompile(classes, output, Thread.currentThread().getContextClassLoader());
+        logger.info("Precompiled {} lambdas and {} stubs into {}", result.lambdas(), result.stubs(), output);
+        if(result.failed() > 0) {
+            logger.warn("{} classes failed to precompile and will be generated at runtime", result.failed());
+        }
+    }
+
+    /**
+     * @param lambdas Amount of lambdas which got a factory
+     * @param stubs Amount of interfaces which got a stub
+     * @param failed Amount of lambdas and interfaces which failed, they are left to runtime generation
+     */
+    public record Result(int lambdas, int stubs, int failed) {
+    }
+
+    /**
+     * @param classes Directory of compiled classes to scan
+     * @param output Directory to write generated classes to
+     * @param loader Class loader which sees the scanned classes and their dependencies
+     */
+    public static Result precompile(Path classes, Path output, ClassLoader loader) throws IOException {
+        Set<LambdaImpl> lambdas = new LinkedHashSet<>();
+        Set<String> stubs = new LinkedHashSet<>();
+        try(Stream<Path> files = Files.walk(classes)) {
+            for(Path file : (Iterable<Path>) files::iterator) {
+                if(!file.toString().endsWith(".class") || classes.relativize(file).startsWith("generated")) continue;
+                scan(Files.readAllBytes(file), lambdas, stubs);
+            }
+        }
+        int lambdaCount = 0;
+        int stubCount = 0;
+        int failed = 0;
+        for(LambdaImpl lambda : lambdas) {
+            try {
+                for(boolean firstEver : new boolean[] {true, false}) {
+                    GeneratedClassCache.Entry generated = LambdaReconstructor.generateLambdaClasses(lambda.clone(), firstEver, loader);
+                    write(output, generated.className(), generated.lambdaClass());
+                    write(output, generated.className() + "$Generator", generated.factoryClass());
+                }
+                lambdaCount++;
+            } catch(Throwable t) {
+                logger.warn("Failed to precompile lambda {}", lambda, t);
+                failed++;
+            }
+        }
+        for(String stub : stubs) {
+            try {
+                for(Map.Entry<String, byte[]> generated : LambdaReconstructor.generateStubClasses(Class.forName(stub, false, loader)).entrySet()) {
+                    write(output, generated.getKey(), generated.getValue());
+                }
+                stubCount++;
+            } catch(Throwable t) {
+                logger.warn("Failed to precompile stub of {}", stub, t);
+                failed++;
+            }
+        }
+        return new Result(lambdaCount, stubCount, failed);
+    }
+
+    private static void scan(byte[] classBytes, Set<LambdaImpl> lambdas, Set<String> stubs) {
+        new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            String name;
+            boolean isInterface;
+
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                this.name = name;
+                this.isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+            }
+
+            @Override
+            public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                if(isInterface && descriptor.equals(STUB_ANNOTATION)) {
+                    stubs.add(name.replace('/', '.'));
+                }
+                return null;
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrap, Object... args) {
+                        if(!bootstrap.getOwner().equals(METAFACTORY_OWNER) || !bootstrap.getName().equals(ALT_METAFACTORY)) return;
+                        String functionalInterface = Type.getReturnType(descriptor).getInternalName();
+                        if(!functionalInterface.startsWith(FUNCTIONAL_PREFIX)) return;
+                        Handle implementation = (Handle) args[1];
+                        lambdas.add(new LambdaImpl(
+                            functionalInterface,
+                            implementation.getTag(),
+                            ((Type) args[2]).getDescriptor(),
+                            new MethodImpl(implementation.getOwner(), implementation.getName(), implementation.getDesc())
+                        ));
+                    }
+                };
+            }
+        }, ClassReader.SKIP_FRAMES);
+    }
+
+    private static void write(Path output, String binaryName, byte[] bytes) throws IOException {
+        Path file = output.resolve(binaryName.replace('.', '/') + ".class");
+        Files.createDirectories(file.getParent());
+        Files.write(file, bytes);
+    }
+}
@@ -3,6 +3,7 @@ package cc.olek.lamada.context;
 import cc.olek.lamada.DistributedExecutor;
 import cc.olek.lamada.DistributedObject;
 import cc.olek.lamada.StaticExecutor;
+import cc.olek.lamada.exception.ClassGenerationPendingException;
 import cc.olek.lamada.func.ExecutableInterface;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.Serializer;
@@ -23,11 +24,12 @@ public final class ExecutionContext {
     private final ExecutableInterface lambda;
     private final int opNumber;
     private Throwable deserializationError;
+    private boolean confirmable = true;
 
     /**
      * @param objectRequesting Object which involves the transfer
      * @param target           Target receiver when we send or sender when we receive
-     * @param key              key by which primary object should be identified
+     * @param key              key by which primary object should be identified, or an array of keys for a batch
      * @param mode             method mode (runnable, consumer, supplier or function)
      * @param lambda           lambda object to execute
      * @param opNumber         operation number to later send the response
@@ -42,6 +44,18 @@ public final class ExecutionContext {
         this.opNumber = opNumber;
     }
 
+    /**
+     * @param confirmable Whether the target's reply confirms what this context carried. It doesn't when nothing replies
+     *                    or the serialized bytes are reused for other targets, and then everything is written in full instead of as references
+     */
+    public void setConfirmable(boolean confirmable) {
+        this.confirmable = confirmable;
+    }
+
+    public boolean isConfirmable() {
+        return confirmable;
+    }
+
     public void setDeserializationError(Throwable deserializationError) {
         this.deserializationError = deserializationError;
     }
@@ -62,6 +76,10 @@ public final class ExecutionContext {
         return mode == ExecutableInterface.RUNNABLE || mode == ExecutableInterface.CONSUMER;
     }
 
+    public boolean isBatch() {
+        return ExecutableInterface.isBatch(mode);
+    }
+
     public boolean isStatic() {
         return ExecutableInterface.isStatic(mode);
     }
@@ -132,10 +150,21 @@ public final class ExecutionContext {
         public void write(Kryo kryo, Output output, ExecutionContext object) {
             kryo.getContext().put("sender", executor.getOwnTarget());
             kryo.getContext().put("receiver", object.target);
+            if(object.confirmable) {
+                kryo.getContext().put(ExecutableInterface.LambdaSerializer.OP_NUMBER, object.opNumber);
+            } else {
+                kryo.getContext().remove(ExecutableInterface.LambdaSerializer.OP_NUMBER); // kryos are pooled
+            }
             output.writeVarInt(object.opNumber, true);
             kryo.writeObject(output, object.objectRequesting, executor.getOwnObjectSerializer());
             output.writeByte(object.mode);
-            if(!object.isStatic()) {
+            if(object.isBatch()) {
+                Object[] keys = (Object[]) object.key;
+                output.writeVarInt(keys.length, true);
+                for(Object key : keys) {
+                    kryo.writeObject(output, key);
+                }
+            } else if(!object.isStatic()) {
                 kryo.writeObject(output, object.key);
             }
             if(object.target == null) {
@@ -167,7 +196,15 @@ public final class ExecutionContext {
                     return result;
                 }
                 try {
-                    key = kryo.readObject(input, object.getSerializeFrom());
+                    if(ExecutableInterface.isBatch(mode)) {
+                        Object[] keys = new Object[input.readVarInt(true)];
+                        for(int i = 0; i < keys.length; i++) {
+                            keys[i] = kryo.readObject(input, object.getSerializeFrom());
+                        }
+                        key = keys;
+                    } else {
+                        key = kryo.readObject(input, object.getSerializeFrom());
+                    }
                 } catch(Throwable t) {
                     ExecutionContext result = new ExecutionContext(null, sender, null, ExecutableInterface.MODE_ERR, null, opNumber);
                     result.setDeserializationError(new RuntimeException("Failed to read key for " + object.getClass().getName() + ", number: " + opNumber + ", mode: " + mode, t));
@@ -181,6 +218,8 @@ public final class ExecutionContext {
                 }
                 return new ExecutionContext(object, sender, key, mode, lambda, opNumber);
             } catch(Throwable t) {
+                ClassGenerationPendingException pending = ClassGenerationPendingException.find(t);
+                if(pending != null) throw pending; // the whole context is read again later
                 ExecutionContext result = new ExecutionContext(null, sender, null, ExecutableInterface.MODE_ERR, null, opNumber);
                 result.setDeserializationError(new RuntimeException("Failed to read or reconstruct lambda for " + object.getClass().getName() + ", number: " + opNumber, t));
                 return result;
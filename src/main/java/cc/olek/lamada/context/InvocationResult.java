@@ -1,12 +1,15 @@
 package cc.olek.lamada.context;
 
 import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.exception.CaptureCacheMissException;
+import cc.olek.lamada.func.ExecutableInterface;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 public final class InvocationResult {
@@ -14,6 +17,7 @@ public final class InvocationResult {
     private final Object result;
     private final String errorMessage;
     private int opNumber;
+    private boolean captureMiss;
 
     public InvocationResult(ExecutionContext of, Object result, String errorMessage) {
         this.of = of;
@@ -30,6 +34,7 @@ public final class InvocationResult {
         t.printStackTrace(writer);
         InvocationResult invocationResult = new InvocationResult(null, null, t.getClass().getName() + "\nStack trace: " + stacktrace);
         invocationResult.opNumber = opNumber;
+        invocationResult.captureMiss = CaptureCacheMissException.isCause(t);
         return invocationResult;
     }
 
@@ -44,7 +49,9 @@ public final class InvocationResult {
         StringWriter stacktrace = new StringWriter();
         PrintWriter writer = new PrintWriter(stacktrace);
         t.printStackTrace(writer);
-        return new InvocationResult(context, null, t.getClass().getName() + "\nStack trace: " + stacktrace);
+        InvocationResult invocationResult = new InvocationResult(context, null, t.getClass().getName() + "\nStack trace: " + stacktrace);
+        invocationResult.captureMiss = CaptureCacheMissException.isCause(t);
+        return invocationResult;
     }
 
     public ExecutionContext of() {
@@ -99,12 +106,35 @@ public final class InvocationResult {
         private static final byte STATE_VOID = 0x0;
         private static final byte STATE_RESULT = 0x1;
         private static final byte STATE_ERR = 0x2;
+        private static final byte STATE_BATCH = 0x3;
+        /**
+         * Error caused by a captured value missing from the receiver's {@link cc.olek.lamada.serialization.CaptureCache}
+         */
+        private static final byte STATE_CAPTURE_MISS = 0x4;
+
+        /**
+         * @param data Unwrapped response data, left untouched
+         */
+        public static boolean isCaptureMiss(ByteBuffer data) {
+            ByteBuffer response = data.duplicate();
+            skipVarInt(response); // reference marker kryo writes in front of the result
+            skipVarInt(response); // op number
+            return response.get() == STATE_CAPTURE_MISS;
+        }
+
+        private static void skipVarInt(ByteBuffer data) {
+            byte read;
+            do {
+                read = data.get();
+            } while((read & 0x80) != 0);
+        }
 
         @Override
         public void write(Kryo kryo, Output output, InvocationResult object) {
+            kryo.getContext().remove(ExecutableInterface.LambdaSerializer.OP_NUMBER); // nothing confirms strings of a response
             output.writeVarInt(object.opNumber, true);
             if(object.errorMessage != null) {
-                output.writeByte(STATE_ERR);
+                output.writeByte(object.captureMiss ? STATE_CAPTURE_MISS : STATE_ERR);
                 output.writeString(object.errorMessage);
                 return;
             }
@@ -112,6 +142,21 @@ public final class InvocationResult {
                 output.write(STATE_VOID);
                 return;
             }
+            if(object.of.isBatch()) {
+                InvocationResult[] results = (InvocationResult[]) object.result;
+                output.write(STATE_BATCH);
+                output.writeVarInt(results.length, true);
+                for(InvocationResult result : results) {
+                    if(result.errorMessage != null) {
+                        output.writeByte(STATE_ERR);
+                        output.writeString(result.errorMessage);
+                    } else {
+                        output.writeByte(STATE_RESULT);
+                        kryo.writeClassAndObject(output, result.result);
+                    }
+                }
+                return;
+            }
             output.write(STATE_RESULT);
             kryo.writeClassAndObject(output, object.result());
         }
@@ -128,7 +173,16 @@ public final class InvocationResult {
             return switch(status) {
                 case STATE_VOID -> new InvocationResult(context, null, null);
                 case STATE_RESULT -> new InvocationResult(context, kryo.readClassAndObject(input), null);
-                case STATE_ERR -> new InvocationResult(context, null, input.readString());
+                case STATE_ERR, STATE_CAPTURE_MISS -> new InvocationResult(context, null, input.readString());
+                case STATE_BATCH -> {
+                    InvocationResult[] results = new InvocationResult[input.readVarInt(true)];
+                    for(int i = 0; i < results.length; i++) {
+                        results[i] = input.readByte() == STATE_ERR
+                            ? new InvocationResult(context, null, input.readString())
+                            : new InvocationResult(context, kryo.readClassAndObject(input), null);
+                    }
+                    yield new InvocationResult(context, results, null);
+                }
                 default -> throw new IllegalStateException("Unknown status: " + status);
             };
         }
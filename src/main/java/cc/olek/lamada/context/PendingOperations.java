@@ -0,0 +1,185 @@
+package cc.olek.lamada.context;
+
+import cc.olek.lamada.util.TimerWheel;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Operations sent to other targets which haven't finished yet, together with the future transport completes
+ * once the reply arrives.
+ * <p>
+ * Entries live in a power-of-two ring indexed by op number and are claimed with CAS, so registering and
+ * completing an operation never takes a lock. The op number stored in an entry tells it apart from whatever
+ * used the slot before. If a slot is still taken by an older operation, the new one goes into an overflow map
+ * </p>
+ * An entry is removed once both the context was popped and the reply was taken, or when its deadline passes.
+ * Expired entries are reaped by a timer wheel, which completes their reply futures with a {@link TimeoutException}
+ */
+public class PendingOperations implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 4096;
+    private final AtomicReferenceArray<Entry> slots;
+    private final Map<Integer, Entry> overflow = new ConcurrentHashMap<>();
+    private final int mask;
+    private final TimerWheel<Entry> reaper = new TimerWheel<>("lamada-reaper", 100, TimeUnit.MILLISECONDS, 512, this::expire);
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder late = new LongAdder();
+
+    public PendingOperations() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Amount of operations which can be in flight before overflow map is used, rounded up to a power of two
+     */
+    public PendingOperations(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    public void register(int opNumber, ExecutionContext context) {
+        findOrCreate(opNumber).context = context;
+    }
+
+    public ExecutionContext popContext(int opNumber) {
+        Entry entry = find(opNumber);
+        if(entry == null) {
+            late.increment();
+            return null;
+        }
+        ExecutionContext context = entry.context;
+        entry.context = null;
+        if(entry.reply == null) {
+            remove(entry);
+        }
+        return context;
+    }
+
+    /**
+     * Attaches the future which the transport completes when the reply for this operation arrives
+     */
+    public void attachReply(int opNumber, CompletableFuture<?> reply) {
+        findOrCreate(opNumber).reply = reply;
+    }
+
+    /**
+     * Takes the reply future away, so only one caller gets to complete it
+     * @return Attached future or null if there's none or somebody took it already
+     */
+    public <T> CompletableFuture<T> takeReply(int opNumber) {
+        CompletableFuture<T> reply = discardReply(opNumber);
+        if(reply == null) {
+            late.increment();
+        }
+        return reply;
+    }
+
+    /**
+     * Same as {@link #takeReply(int)}, but meant for cleaning up after a failed or timed out send,
+     * so a missing future isn't counted as a late response
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> discardReply(int opNumber) {
+        Entry entry = find(opNumber);
+        if(entry == null) return null;
+        CompletableFuture<?> reply = Entry.REPLY.getAndSet(entry, null); // a reply and a timeout may race for it
+        if(entry.context == null) {
+            remove(entry);
+        }
+        return (CompletableFuture<T>) reply;
+    }
+
+    /**
+     * Drops the operation with its reply future if it's still pending after the timeout
+     * @param timeoutMillis Time the operation has to finish
+     */
+    public void expireAfter(int opNumber, long timeoutMillis) {
+        Entry entry = find(opNumber);
+        if(entry == null) return;
+        reaper.schedule(entry, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void expire(Entry entry) {
+        if(find(entry.opNumber) != entry) return; // finished in time
+        remove(entry);
+        entry.context = null;
+        expired.increment();
+        CompletableFuture<?> reply = Entry.REPLY.getAndSet(entry, null);
+        if(reply != null) {
+            reply.completeExceptionally(new TimeoutException("Operation #" + entry.opNumber + " expired"));
+        }
+    }
+
+    /**
+     * @return Amount of operations reaped because no response came before their deadline
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * @return Amount of responses which arrived for operations nobody waited for anymore
+     */
+    public long getLateCount() {
+        return late.sum();
+    }
+
+    @Override
+    public void close() {
+        reaper.close();
+    }
+
+    /**
+     * @return Amount of live operations, counted without locking so it's approximate under load
+     */
+    public int size() {
+        int size = overflow.size();
+        for(int i = 0; i < slots.length(); i++) {
+            if(slots.get(i) != null) size++;
+        }
+        return size;
+    }
+
+    private Entry find(int opNumber) {
+        Entry entry = slots.get(opNumber & mask);
+        if(entry != null && entry.opNumber == opNumber) return entry;
+        return overflow.get(opNumber);
+    }
+
+    private Entry findOrCreate(int opNumber) {
+        Entry found = find(opNumber);
+        if(found != null) return found;
+        Entry created = new Entry(opNumber);
+        int index = opNumber & mask;
+        if(slots.compareAndSet(index, null, created)) return created;
+        Entry raced = slots.get(index);
+        if(raced != null && raced.opNumber == opNumber) return raced;
+        Entry existing = overflow.putIfAbsent(opNumber, created);
+        return existing != null ? existing : created;
+    }
+
+    private void remove(Entry entry) {
+        if(!slots.compareAndSet(entry.opNumber & mask, entry, null)) {
+            overflow.remove(entry.opNumber, entry);
+        }
+    }
+
+    private static final class Entry {
+        @SuppressWarnings("rawtypes")
+        static final AtomicReferenceFieldUpdater<Entry, CompletableFuture> REPLY = AtomicReferenceFieldUpdater.newUpdater(Entry.class, CompletableFuture.class, "reply");
+        final int opNumber;
+        volatile ExecutionContext context;
+        volatile CompletableFuture<?> reply;
+
+        Entry(int opNumber) {
+            this.opNumber = opNumber;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package cc.olek.lamada.exception;
+
+import java.util.Map;
+
+/**
+ * Thrown when some keys of a batch failed. Keys which succeeded still have their results here
+ */
+public class BatchExecutionException extends TargetExecutionException {
+    private final Map<?, ?> results;
+    private final Map<?, String> failures;
+
+    public BatchExecutionException(Map<?, ?> results, Map<?, String> failures) {
+        super(failures.size() + " of " + (results.size() + failures.size()) + " keys failed: " + failures.keySet());
+        this.results = results;
+        this.failures = failures;
+    }
+
+    /**
+     * @return Results of keys which succeeded
+     */
+    public Map<?, ?> getResults() {
+        return results;
+    }
+
+    /**
+     * @return Error messages of keys which failed
+     */
+    public Map<?, String> getFailures() {
+        return failures;
+    }
+}
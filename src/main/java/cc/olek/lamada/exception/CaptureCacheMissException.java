@@ -0,0 +1,18 @@
+package cc.olek.lamada.exception;
+
+/**
+ * Thrown when a lambda references a captured value which isn't in the receiver's capture cache
+ */
+public class CaptureCacheMissException extends RuntimeException {
+    public CaptureCacheMissException(long hash) {
+        super("Captured value " + Long.toHexString(hash) + " is not cached");
+    }
+
+    public static boolean isCause(Throwable t) {
+        while(t != null) {
+            if(t instanceof CaptureCacheMissException) return true;
+            t = t.getCause();
+        }
+        return false;
+    }
+}
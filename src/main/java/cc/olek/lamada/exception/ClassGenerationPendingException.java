@@ -0,0 +1,31 @@
+package cc.olek.lamada.exception;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Thrown while reading a context which is allowed to be deferred, when a lambda class it needs is still being generated.
+ * The reader is expected to read the context again once the generation completes
+ */
+public class ClassGenerationPendingException extends RuntimeException {
+    private final CompletableFuture<?> generation;
+
+    public ClassGenerationPendingException(CompletableFuture<?> generation) {
+        super("Lambda class is still being generated", null, false, false);
+        this.generation = generation;
+    }
+
+    public CompletableFuture<?> getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return Pending generation somewhere in the causes of the throwable, or null if there's none
+     */
+    public static ClassGenerationPendingException find(Throwable t) {
+        while(t != null) {
+            if(t instanceof ClassGenerationPendingException pending) return pending;
+            t = t.getCause();
+        }
+        return null;
+    }
+}
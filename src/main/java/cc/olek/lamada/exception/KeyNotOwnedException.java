@@ -0,0 +1,10 @@
+package cc.olek.lamada.exception;
+
+/**
+ * Thrown when a call is routed by key, but the key locator doesn't know any target owning the key
+ */
+public class KeyNotOwnedException extends RuntimeException {
+    public KeyNotOwnedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,11 @@
+package cc.olek.lamada.exception;
+
+/**
+ * Returned to the sender when the receiving target had too much work queued to accept its lambda.
+ * The lambda never ran, so it's safe to send it again later
+ */
+public class WorkRejectedException extends RuntimeException {
+    public WorkRejectedException(String message) {
+        super(message, null, false, false);
+    }
+}
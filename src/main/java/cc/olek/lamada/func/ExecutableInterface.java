@@ -4,6 +4,10 @@ import cc.olek.lamada.DistributedExecutor;
 import cc.olek.lamada.asm.LambdaImpl;
 import cc.olek.lamada.asm.LambdaReconstructor;
 import cc.olek.lamada.asm.MethodImpl;
+import cc.olek.lamada.exception.CaptureCacheMissException;
+import cc.olek.lamada.exception.ClassGenerationPendingException;
+import cc.olek.lamada.serialization.CaptureCache;
+import cc.olek.lamada.serialization.DescriptorDictionary;
 import cc.olek.lamada.serialization.SuperclassSerializer;
 import cc.olek.lamada.util.Deencapsulation;
 import cc.olek.lamada.util.Exceptions;
@@ -16,8 +20,11 @@ import java.io.Serializable;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodType;
 import java.lang.invoke.SerializedLambda;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 public interface ExecutableInterface extends Serializable {
     byte RUNNABLE = 0x0;
@@ -26,6 +33,14 @@ public interface ExecutableInterface extends Serializable {
     byte FUNCTION = 0x3;
     byte ASYNC_FUNCTION = 0x4;
     byte ASYNC_SUPPLIER = 0x5;
+    /**
+     * Function applied to every key of an array, key of the context is that array
+     */
+    byte BATCH_FUNCTION = 0x6;
+    /**
+     * Function returning a {@link cc.olek.lamada.stream.StreamRequest}, whose stream is opened on the target and pulled in chunks
+     */
+    byte STREAM_FUNCTION = 0x7;
     byte MODE_ERR = 0xf;
 
     static boolean isStatic(byte val) {
@@ -34,10 +49,22 @@ public interface ExecutableInterface extends Serializable {
     static boolean isAsync(byte val) {
         return val == ASYNC_FUNCTION || val == ASYNC_SUPPLIER;
     }
+    static boolean isBatch(byte val) {
+        return val == BATCH_FUNCTION;
+    }
 
     class LambdaSerializer<Target> extends Serializer<Object> implements SuperclassSerializer {
 
-        private static final Map<Class<?>, MethodHandle> handleMap = new HashMap<>();
+        /**
+         * Kryo context key, when true a lambda whose class isn't generated yet throws {@link ClassGenerationPendingException}
+         * instead of waiting for the generation
+         */
+        public static final String DEFER_GENERATION = "deferGeneration";
+        /**
+         * Kryo context key of the operation number being written, absent when writing a response
+         */
+        public static final String OP_NUMBER = "op";
+        private static final Map<Class<?>, MethodHandle> handleMap = new ConcurrentHashMap<>();
 
         private final DistributedExecutor<Target> executor;
 
@@ -75,33 +102,86 @@ public interface ExecutableInterface extends Serializable {
                 } catch(Throwable e) {
                     throw Exceptions.wrap(e);
                 }
-                writeFullLambda(output, lambda, submissionResult.lambdaNum());
+                writeFullLambda(kryo, output, sendTo, lambda, submissionResult.lambdaNum());
             }
 
             int capturedCount = lambda.getCapturedArgCount();
-            output.writeVarInt(capturedCount, true);
+            CaptureCache captures = executor.getCaptureCache();
+            Object op = kryo.getContext().get(OP_NUMBER);
+            boolean tagged = captures.isEnabled() && op != null && sendTo != null; // only a reply confirms what the peer has
+            output.writeVarInt(capturedCount << 1 | (tagged ? 1 : 0), true);
             for(int i = 0; i < capturedCount; i++) {
-                kryo.writeClassAndObject(output, lambda.getCapturedArg(i));
+                if(tagged) {
+                    writeCaptured(kryo, output, captures, sendTo, (Integer) op, lambda.getCapturedArg(i));
+                } else {
+                    kryo.writeClassAndObject(output, lambda.getCapturedArg(i));
+                }
+            }
+        }
+
+        private void writeCaptured(Kryo kryo, Output output, CaptureCache captures, Target sendTo, int opNumber, Object captured) {
+            byte[] bytes = captures.isCached(captured) ? executor.serializeStandalone(captured, sendTo) : null;
+            if(bytes == null || bytes.length < captures.getMinBytes()) {
+                output.writeByte(CaptureCache.INLINE);
+                kryo.writeClassAndObject(output, captured);
+                return;
+            }
+            long hash = captures.hash(bytes);
+            if(captures.isKnown(sendTo, opNumber, hash, bytes.length)) {
+                output.writeByte(CaptureCache.REFERENCE);
+                output.writeLong(hash);
+                return;
             }
+            output.writeByte(CaptureCache.DEFINE);
+            output.writeLong(hash);
+            output.writeVarInt(bytes.length, true);
+            output.writeBytes(bytes);
         }
 
         private Object[] readLambdaParams(Kryo kryo, Input input) {
-            int objectAmount = input.readVarInt(true);
-            Object[] params = new Object[objectAmount];
-            for(int i = 0; i < objectAmount; i++) {
-                params[i] = kryo.readClassAndObject(input);
+            int header = input.readVarInt(true);
+            boolean tagged = (header & 1) != 0;
+            Object[] params = new Object[header >>> 1];
+            for(int i = 0; i < params.length; i++) {
+                params[i] = tagged ? readCaptured(kryo, input) : kryo.readClassAndObject(input);
             }
             return params;
         }
 
-        private static void writeFullLambda(Output output, SerializedLambda lambda, short lambdaNum) {
+        private Object readCaptured(Kryo kryo, Input input) {
+            byte tag = input.readByte();
+            if(tag == CaptureCache.INLINE) return kryo.readClassAndObject(input);
+            CaptureCache captures = executor.getCaptureCache();
+            Object sender = kryo.getContext().get("sender");
+            long hash = input.readLong();
+            if(tag == CaptureCache.REFERENCE) {
+                Object cached = captures.get(sender, hash);
+                if(cached == null) {
+                    captures.recordMiss();
+                    throw new CaptureCacheMissException(hash);
+                }
+                return cached;
+            }
+            byte[] bytes = input.readBytes(input.readVarInt(true));
+            Object cached = captures.get(sender, hash);
+            if(cached != null) return cached;
+            Object value = executor.deserializeStandalone(bytes, sender);
+            captures.put(sender, hash, value);
+            return value;
+        }
+
+        private void writeFullLambda(Kryo kryo, Output output, Target sendTo, SerializedLambda lambda, short lambdaNum) {
+            DescriptorDictionary dictionary = executor.getDescriptorDictionary();
+            Object op = kryo.getContext().get(OP_NUMBER);
+            int opNumber = op == null ? DescriptorDictionary.UNTRACKED : (Integer) op;
             output.writeBoolean(true);
             output.writeShort(lambdaNum);
-            output.writeString(lambda.getFunctionalInterfaceClass());
-            output.writeString(lambda.getInstantiatedMethodType());
-            output.writeString(lambda.getImplClass());
-            output.writeString(lambda.getImplMethodName());
-            output.writeString(lambda.getImplMethodSignature());
+            dictionary.writeEpoch(output);
+            dictionary.write(output, sendTo, opNumber, lambda.getFunctionalInterfaceClass());
+            dictionary.write(output, sendTo, opNumber, lambda.getInstantiatedMethodType());
+            dictionary.write(output, sendTo, opNumber, lambda.getImplClass());
+            dictionary.write(output, sendTo, opNumber, lambda.getImplMethodName());
+            dictionary.write(output, sendTo, opNumber, lambda.getImplMethodSignature());
             output.writeByte(lambda.getImplMethodKind());
         }
 
@@ -119,44 +199,40 @@ public interface ExecutableInterface extends Serializable {
                         if(impl == null) {
                             throw new RuntimeException("Lambda implementation #" + lambdaNum + " was null, failed to explicitly request it by number");
                         }
-                        Object[] params;
-                        try {
-                            params = readLambdaParams(kryo, input);
-                        } catch(Throwable e) {
-                            throw new RuntimeException("Failed to read lambda params for " + impl, e);
-                        }
                         if(LambdaReconstructor.DEBUG) {
                             executor.getLogger().info("{} didn't exist, explicit request yielded {}", lambdaNum, impl);
                         }
-
-                        ExecutableInterface itf;
-                        try {
-                            itf = (ExecutableInterface) LambdaReconstructor.reconstructLambda(impl, params, false, executor.getContextClassLoader());
-                        } catch(Exception e) {
-                            throw new RuntimeException("Failed reconstructing requested lambda with num " + lambdaNum + " on " + sender, e);
-                        }
-                        if(itf == null) {
-                            throw new RuntimeException("Reconstructed lambda " + lambdaNum + " on " + sender + " is null");
-                        }
-                        return itf;
+                        executor.getTargetManager().registerImplementation(sender, lambdaNum, impl.clone()); // deferred contexts are read again
                     }
-                    break readFull;
+                    break readFull; // generated like any other lambda, so a burst after a restart doesn't block receivers
                 }
 
                 short lambdaNum = input.readShort();
-                String functionalClass = input.readString();
-                String functionalSign = input.readString();
-                String implClass = input.readString();
-                String implMethod = input.readString();
-                String implSign = input.readString();
+                DescriptorDictionary.Table strings = executor.getDescriptorDictionary().received(sender, input.readVarInt(true));
+                String functionalClass = strings.read(input);
+                String functionalSign = strings.read(input);
+                String implClass = strings.read(input);
+                String implMethod = strings.read(input);
+                String implSign = strings.read(input);
                 int methodKind = input.readByte();
 
-                impl = new LambdaImpl(
-                    functionalClass,
-                    methodKind,
-                    functionalSign,
-                    new MethodImpl(implClass, implMethod, implSign)
-                );
+                if(functionalClass == null || functionalSign == null || implClass == null || implMethod == null || implSign == null) {
+                    // sender thinks we know strings we don't, e.g. we were restarted
+                    impl = executor.getTargetManager().reconstruct(sender, lambdaNum);
+                    if(impl == null) {
+                        impl = executor.getTargetManager().requestMissingImplementation(sender, lambdaNum);
+                    }
+                    if(impl == null) {
+                        throw new RuntimeException("Lambda implementation #" + lambdaNum + " referenced unknown strings, failed to explicitly request it by number");
+                    }
+                } else {
+                    impl = new LambdaImpl(
+                        functionalClass,
+                        methodKind,
+                        functionalSign,
+                        new MethodImpl(implClass, implMethod, implSign)
+                    );
+                }
 
                 executor.getTargetManager().registerImplementation(sender, lambdaNum, impl.clone());
             }
@@ -170,10 +246,14 @@ public interface ExecutableInterface extends Serializable {
             } catch(Throwable e) {
                 throw new RuntimeException("Failed to read params for " + impl, e);
             }
+            CompletableFuture<Function<Object[], Object>> factory = LambdaReconstructor.lambdaFactory(impl, firstEver, executor.getContextClassLoader());
+            if(!factory.isDone() && Boolean.TRUE.equals(kryo.getContext().get(DEFER_GENERATION))) {
+                throw new ClassGenerationPendingException(factory);
+            }
             try {
-                return LambdaReconstructor.reconstructLambda(impl, params, firstEver, executor.getContextClassLoader());
-            } catch(Exception e) {
-                throw Exceptions.wrap(e);
+                return factory.join().apply(params);
+            } catch(CompletionException e) {
+                throw Exceptions.wrap(e.getCause());
             }
         }
     }
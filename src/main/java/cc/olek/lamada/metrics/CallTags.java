@@ -0,0 +1,16 @@
+package cc.olek.lamada.metrics;
+
+import cc.olek.lamada.context.ExecutionContext;
+
+/**
+ * What a measured call was about
+ * @param objectType Type of distributed object the lambda runs on, null for static lambdas
+ * @param mode Execution mode, see {@link cc.olek.lamada.func.ExecutableInterface}
+ * @param target Target the call goes to when sending, or the one it came from when executing
+ */
+public record CallTags(Class<?> objectType, byte mode, Object target) {
+    public static CallTags of(ExecutionContext context) {
+        Class<?> objectType = context.objectRequesting() == null ? null : context.objectRequesting().getObjectType();
+        return new CallTags(objectType, context.mode(), context.target());
+    }
+}
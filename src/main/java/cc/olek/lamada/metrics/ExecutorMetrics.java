@@ -0,0 +1,45 @@
+package cc.olek.lamada.metrics;
+
+/**
+ * Receives timings of every stage of a call. Methods are called on hot paths from any thread,
+ * so implementations must be thread safe and shouldn't block
+ */
+public interface ExecutorMetrics {
+    ExecutorMetrics NOOP = new ExecutorMetrics() {};
+
+    /**
+     * Context was serialized before sending
+     * @param bytes Size of the written frame
+     */
+    default void onSerialize(CallTags tags, long nanos, int bytes) {}
+
+    /**
+     * Call was sent and its response arrived, or it was just sent when no response is awaited
+     */
+    default void onSend(CallTags tags, long nanos) {}
+
+    /**
+     * Lambda received from another target was executed here, successfully or not
+     */
+    default void onExecute(CallTags tags, long nanos) {}
+
+    /**
+     * Response to one of our calls was deserialized
+     */
+    default void onDeserializeResponse(CallTags tags, long nanos) {}
+
+    /**
+     * Nothing came back before the call's timeout
+     */
+    default void onTimeout(CallTags tags) {}
+
+    /**
+     * Lambda received from another target was rejected by the scheduler without running
+     */
+    default void onRejected(CallTags tags) {}
+
+    /**
+     * Call failed to be sent, or the lambda failed while executing here
+     */
+    default void onError(CallTags tags, Throwable error) {}
+}
@@ -0,0 +1,97 @@
+package cc.olek.lamada.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a latency histogram for every stage and set of tags in memory, along with timeout, rejection and error counts
+ */
+public class HistogramMetrics implements ExecutorMetrics {
+    private final Map<Key, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<CallTags, LongAdder> timeouts = new ConcurrentHashMap<>();
+    private final Map<CallTags, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Map<CallTags, LongAdder> rejected = new ConcurrentHashMap<>();
+    private final Map<CallTags, LongAdder> serializedBytes = new ConcurrentHashMap<>();
+
+    public enum Stage {
+        SERIALIZE,
+        SEND,
+        EXECUTE,
+        DESERIALIZE_RESPONSE
+    }
+
+    @Override
+    public void onSerialize(CallTags tags, long nanos, int bytes) {
+        histogram(Stage.SERIALIZE, tags).record(nanos);
+        serializedBytes.computeIfAbsent(tags, __ -> new LongAdder()).add(bytes);
+    }
+
+    @Override
+    public void onSend(CallTags tags, long nanos) {
+        histogram(Stage.SEND, tags).record(nanos);
+    }
+
+    @Override
+    public void onExecute(CallTags tags, long nanos) {
+        histogram(Stage.EXECUTE, tags).record(nanos);
+    }
+
+    @Override
+    public void onDeserializeResponse(CallTags tags, long nanos) {
+        histogram(Stage.DESERIALIZE_RESPONSE, tags).record(nanos);
+    }
+
+    @Override
+    public void onTimeout(CallTags tags) {
+        timeouts.computeIfAbsent(tags, __ -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void onRejected(CallTags tags) {
+        rejected.computeIfAbsent(tags, __ -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void onError(CallTags tags, Throwable error) {
+        errors.computeIfAbsent(tags, __ -> new LongAdder()).increment();
+    }
+
+    public LatencyHistogram histogram(Stage stage, CallTags tags) {
+        return histograms.computeIfAbsent(new Key(stage, tags), __ -> new LatencyHistogram());
+    }
+
+    /**
+     * @return Histograms of a stage by tags, which keep recording after being returned
+     */
+    public Map<CallTags, LatencyHistogram> getHistograms(Stage stage) {
+        Map<CallTags, LatencyHistogram> result = new ConcurrentHashMap<>();
+        histograms.forEach((key, histogram) -> {
+            if(key.stage == stage) result.put(key.tags, histogram);
+        });
+        return result;
+    }
+
+    public long getTimeouts(CallTags tags) {
+        LongAdder count = timeouts.get(tags);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long getErrors(CallTags tags) {
+        LongAdder count = errors.get(tags);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long getRejected(CallTags tags) {
+        LongAdder count = rejected.get(tags);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long getSerializedBytes(CallTags tags) {
+        LongAdder count = serializedBytes.get(tags);
+        return count == null ? 0 : count.sum();
+    }
+
+    private record Key(Stage stage, CallTags tags) {
+    }
+}
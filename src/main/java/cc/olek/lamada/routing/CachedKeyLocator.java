@@ -0,0 +1,170 @@
+package cc.olek.lamada.routing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Locates keys through a {@link KeyDirectory}, remembering owners it has seen so routing a call to a known key
+ * costs no round trip. The directory tells every target when an owner changes, which updates the remembered owner.
+ * Owners are remembered up to a capacity, least recently used ones are forgotten first
+ */
+public class CachedKeyLocator<Key, Target> implements KeyLocator<Key, Target> {
+    public static final int DEFAULT_CAPACITY = 65536;
+    private final KeyDirectory<Target> directory;
+    private final String namespace;
+    private final Map<String, Target> owners = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong changes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final KeyDirectory.Listener<Target> listener = new KeyDirectory.Listener<>() {
+        @Override
+        public void onOwnerChanged(String namespace, String key, Target owner) {
+            CachedKeyLocator.this.onOwnerChanged(namespace, key, owner);
+        }
+
+        @Override
+        public void onChangesLost() {
+            clear();
+        }
+    };
+    private volatile int capacity = DEFAULT_CAPACITY;
+
+    public CachedKeyLocator(KeyDirectory<Target> directory, String namespace) {
+        this.directory = directory;
+        this.namespace = namespace;
+        directory.addListener(listener);
+    }
+
+    @Override
+    public CompletableFuture<Target> locate(Key key) {
+        String name = String.valueOf(key);
+        Target cached;
+        synchronized(owners) {
+            cached = owners.get(name);
+        }
+        if(cached != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+        misses.increment();
+        long seenChanges = changes.get();
+        return directory.lookup(namespace, name).thenApply(owner -> {
+            if(owner != null) {
+                synchronized(owners) {
+                    if(changes.get() == seenChanges) { // otherwise the owner we got may already be replaced
+                        put(name, owner);
+                    }
+                }
+            }
+            return owner;
+        });
+    }
+
+    /**
+     * Makes a target the owner of a key, usually the own target once the key was loaded there
+     */
+    public CompletableFuture<Void> claim(Key key, Target owner) {
+        String name = String.valueOf(key);
+        synchronized(owners) {
+            changes.incrementAndGet();
+            put(name, owner);
+        }
+        return directory.assign(namespace, name, owner);
+    }
+
+    /**
+     * Removes the key's owner if it's still the given target, usually when the key is unloaded there
+     */
+    public CompletableFuture<Void> release(Key key, Target owner) {
+        String name = String.valueOf(key);
+        synchronized(owners) {
+            changes.incrementAndGet();
+            owners.remove(name, owner);
+        }
+        return directory.remove(namespace, name, owner);
+    }
+
+    @Override
+    public void invalidate(Key key) {
+        synchronized(owners) {
+            changes.incrementAndGet();
+            owners.remove(String.valueOf(key));
+        }
+    }
+
+    /**
+     * Forgets every remembered owner, so they are looked up again
+     */
+    public void clear() {
+        synchronized(owners) {
+            changes.incrementAndGet();
+            owners.clear();
+        }
+    }
+
+    /**
+     * Stops listening to the directory, owners remembered from now on may be outdated
+     */
+    @Override
+    public void close() {
+        directory.removeListener(listener);
+    }
+
+    private void onOwnerChanged(String namespace, String key, Target owner) {
+        if(!this.namespace.equals(namespace)) return;
+        synchronized(owners) {
+            changes.incrementAndGet();
+            if(owner == null) {
+                owners.remove(key);
+            } else if(owners.containsKey(key)) {
+                owners.put(key, owner);
+            }
+        }
+    }
+
+    // callers hold the lock
+    private void put(String key, Target owner) {
+        owners.put(key, owner);
+        trim();
+    }
+
+    private void trim() {
+        var iterator = owners.entrySet().iterator();
+        while(owners.size() > capacity && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @param capacity Amount of owners remembered, extra ones are forgotten right away
+     */
+    public void setCapacity(int capacity) {
+        synchronized(owners) {
+            this.capacity = capacity;
+            trim();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @return Amount of keys located without asking the directory
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,250 @@
+package cc.olek.lamada.routing;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Spreads keys over live targets with a consistent-hash ring. Every target is placed on the ring many times
+ * (virtual nodes), and a key belongs to the first node at or after its hash. When a target joins or leaves,
+ * only keys of the nodes it adds or removes change owners, roughly 1/N of them.
+ * <p>
+ * Live targets are asked for again once the ring is older than the refresh interval. Refreshes happen in the background,
+ * so keys are located with the ring at hand and don't wait for them. Only keys located before the first ring is built
+ * wait for it, which is built once by {@link #start()}
+ * </p>
+ */
+public class ConsistentHashPartitioner<Key, Target> implements KeyLocator<Key, Target> {
+    private static final Logger logger = LoggerFactory.getLogger(ConsistentHashPartitioner.class);
+    private static final XXHash64 hasher = XXHashFactory.fastestInstance().hash64();
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    private final Supplier<? extends Collection<? extends Target>> liveTargets;
+    private final Executor refresher;
+    private final List<BiConsumer<Ring<Target>, Ring<Target>>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Ring<Target> ring = new Ring<>(List.of(), DEFAULT_VIRTUAL_NODES);
+    private volatile int virtualNodes = DEFAULT_VIRTUAL_NODES;
+    private volatile long refreshMillis = 1000;
+    private volatile long refreshedAt;
+    private volatile CompletableFuture<Void> firstRefresh;
+
+    /**
+     * @param liveTargets Returns targets which are up, including the own one
+     * @param refresher Executor asking for live targets in the background
+     */
+    public ConsistentHashPartitioner(Supplier<? extends Collection<? extends Target>> liveTargets, Executor refresher) {
+        this.liveTargets = liveTargets;
+        this.refresher = refresher;
+    }
+
+    @Override
+    public CompletableFuture<Target> locate(Key key) {
+        if(refreshedAt == 0) {
+            return start().thenApply(__ -> ring.ownerOf(key)); // there's no ring to use yet
+        }
+        if(System.currentTimeMillis() - refreshedAt >= refreshMillis && refreshing.compareAndSet(false, true)) {
+            try {
+                refresher.execute(() -> {
+                    try {
+                        refresh();
+                    } finally {
+                        refreshing.set(false);
+                    }
+                });
+            } catch(Throwable t) {
+                refreshing.set(false);
+                logger.error("Failed to schedule a refresh of live targets", t);
+            }
+        }
+        return CompletableFuture.completedFuture(ring.ownerOf(key));
+    }
+
+    /**
+     * Builds the first ring in the background, unless it's already being built. Called when the partitioner is set
+     * on an object, and again on the next locate if asking for live targets failed
+     * @return Future completed once the first ring is built, or failed if live targets couldn't be asked for
+     */
+    public CompletableFuture<Void> start() {
+        CompletableFuture<Void> first = firstRefresh;
+        if(first != null && (!first.isDone() || refreshedAt != 0)) return first;
+        synchronized(this) {
+            first = firstRefresh;
+            if(first != null && (!first.isDone() || refreshedAt != 0)) return first;
+            try {
+                first = CompletableFuture.runAsync(this::rebuild, refresher);
+            } catch(Throwable t) {
+                logger.error("Failed to schedule the first refresh of live targets", t);
+                first = CompletableFuture.failedFuture(t);
+            }
+            firstRefresh = first;
+            return first;
+        }
+    }
+
+    /**
+     * Asks for live targets and rebuilds the ring if they changed
+     * @return Whether the ring changed
+     */
+    public boolean refresh() {
+        try {
+            return rebuild();
+        } catch(Throwable t) {
+            logger.error("Failed to get live targets, keeping the current ring", t);
+            return false;
+        }
+    }
+
+    // throws if live targets couldn't be asked for
+    private boolean rebuild() {
+        boolean changed = setTargets(liveTargets.get());
+        refreshedAt = System.currentTimeMillis(); // only once the ring is in place, locate uses it right away then
+        return changed;
+    }
+
+    /**
+     * Rebuilds the ring from the given targets if they differ from the current ones
+     * @return Whether the ring changed
+     */
+    public synchronized boolean setTargets(Collection<? extends Target> targets) {
+        Ring<Target> previous = this.ring;
+        if(previous.targets.equals(new HashSet<>(targets)) && previous.virtualNodes == virtualNodes) return false;
+        Ring<Target> current = new Ring<>(targets, virtualNodes);
+        this.ring = current;
+        for(BiConsumer<Ring<Target>, Ring<Target>> listener : listeners) {
+            try {
+                listener.accept(previous, current);
+            } catch(Throwable t) {
+                logger.error("Rebalance listener failed", t);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param listener Called with the previous and the new ring whenever targets change, to move keys which changed owners
+     * @see Ring#movedTo(Object, Ring, Collection)
+     */
+    public void addRebalanceListener(BiConsumer<Ring<Target>, Ring<Target>> listener) {
+        listeners.add(listener);
+    }
+
+    public Ring<Target> getRing() {
+        return ring;
+    }
+
+    /**
+     * @return Target owning the key on the current ring, null if no targets are live
+     */
+    public Target ownerOf(Key key) {
+        return ring.ownerOf(key);
+    }
+
+    /**
+     * @param virtualNodes Amount of times every target is placed on the ring, applied on the next rebuild.
+     *                     More nodes spread keys more evenly at the cost of a bigger ring
+     */
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * @param millis How old the ring may get before live targets are asked for again
+     */
+    public void setRefreshMillis(long millis) {
+        this.refreshMillis = millis;
+    }
+
+    public long getRefreshMillis() {
+        return refreshMillis;
+    }
+
+    private static long hash(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return hasher.hash(bytes, 0, bytes.length, 0);
+    }
+
+    /**
+     * Immutable snapshot of the ring
+     */
+    public static final class Ring<Target> {
+        private final Set<Target> targets;
+        private final int virtualNodes;
+        private final long[] hashes;
+        private final Object[] owners;
+
+        Ring(Collection<? extends Target> targets, int virtualNodes) {
+            this.targets = Collections.unmodifiableSet(new HashSet<>(targets));
+            this.virtualNodes = virtualNodes;
+            List<Target> sorted = new ArrayList<>(this.targets);
+            sorted.sort(Comparator.comparing(String::valueOf)); // equal hashes resolve the same way on every target
+            long[][] nodes = new long[sorted.size() * virtualNodes][];
+            int index = 0;
+            for(int target = 0; target < sorted.size(); target++) {
+                String name = String.valueOf(sorted.get(target));
+                for(int node = 0; node < virtualNodes; node++) {
+                    nodes[index++] = new long[] {hash(name + "#" + node), target};
+                }
+            }
+            Arrays.sort(nodes, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+            this.hashes = new long[nodes.length];
+            this.owners = new Object[nodes.length];
+            for(int i = 0; i < nodes.length; i++) {
+                hashes[i] = nodes[i][0];
+                owners[i] = sorted.get((int) nodes[i][1]);
+            }
+        }
+
+        /**
+         * @return Target owning the key, null if the ring is empty
+         */
+        @SuppressWarnings("unchecked")
+        public Target ownerOf(Object key) {
+            if(hashes.length == 0) return null;
+            int index = Arrays.binarySearch(hashes, hash(String.valueOf(key)));
+            if(index < 0) {
+                index = -index - 1; // first node after the key
+            }
+            return (Target) owners[index == hashes.length ? 0 : index];
+        }
+
+        /**
+         * @return Keys the target owns on this ring
+         */
+        public <K> List<K> ownedBy(Target target, Collection<? extends K> keys) {
+            List<K> owned = new ArrayList<>();
+            for(K key : keys) {
+                if(Objects.equals(ownerOf(key), target)) owned.add(key);
+            }
+            return owned;
+        }
+
+        /**
+         * @return Keys the target owns on this ring, but didn't own on the previous one
+         */
+        public <K> List<K> movedTo(Target target, Ring<Target> previous, Collection<? extends K> keys) {
+            List<K> moved = new ArrayList<>();
+            for(K key : keys) {
+                if(Objects.equals(ownerOf(key), target) && !Objects.equals(previous.ownerOf(key), target)) moved.add(key);
+            }
+            return moved;
+        }
+
+        public Set<Target> getTargets() {
+            return targets;
+        }
+    }
+}
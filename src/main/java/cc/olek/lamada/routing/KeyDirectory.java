@@ -0,0 +1,46 @@
+package cc.olek.lamada.routing;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Owners of keys, shared by all targets through the transport. Keys are grouped by namespace,
+ * which is the object type name for keys of a distributed object
+ * @param <Target> Type of target which owns keys
+ */
+public interface KeyDirectory<Target> {
+    /**
+     * @return Future of the key's owner, completed with null if nobody owns it
+     */
+    CompletableFuture<Target> lookup(String namespace, String key);
+
+    /**
+     * Makes a target the owner of a key and tells every target's listeners about it
+     */
+    CompletableFuture<Void> assign(String namespace, String key, Target owner);
+
+    /**
+     * Removes the key's owner if it's still the given target, telling every target's listeners about it
+     */
+    CompletableFuture<Void> remove(String namespace, String key, Target owner);
+
+    /**
+     * @param listener Called whenever ownership of a key changes on any target
+     */
+    void addListener(Listener<Target> listener);
+
+    void removeListener(Listener<Target> listener);
+
+    @FunctionalInterface
+    interface Listener<Target> {
+        /**
+         * @param owner New owner, or null if the key was removed
+         */
+        void onOwnerChanged(String namespace, String key, Target owner);
+
+        /**
+         * Called when changes may have been missed, for example while the directory was disconnected,
+         * so no owner seen before can be trusted anymore
+         */
+        default void onChangesLost() {}
+    }
+}
@@ -0,0 +1,25 @@
+package cc.olek.lamada.routing;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Finds the target a key of a distributed object lives on, so calls can be made without naming the target
+ * @see CachedKeyLocator
+ */
+@FunctionalInterface
+public interface KeyLocator<Key, Target> {
+    /**
+     * @return Future of the target owning the key, completed with null if nobody owns it
+     */
+    CompletableFuture<Target> locate(Key key);
+
+    /**
+     * Called when a call routed by this locator couldn't reach the target, so a cached owner shouldn't be trusted anymore
+     */
+    default void invalidate(Key key) {}
+
+    /**
+     * Called when the locator is replaced on its object, releasing whatever it registered
+     */
+    default void close() {}
+}
@@ -0,0 +1,53 @@
+package cc.olek.lamada.routing;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Directory which only lives in this JVM, for targets sharing one process such as loopback setups
+ */
+public class LocalKeyDirectory<Target> implements KeyDirectory<Target> {
+    private final Map<String, Map<String, Target>> owners = new ConcurrentHashMap<>();
+    private final List<Listener<Target>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public CompletableFuture<Target> lookup(String namespace, String key) {
+        Map<String, Target> keys = owners.get(namespace);
+        return CompletableFuture.completedFuture(keys == null ? null : keys.get(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> assign(String namespace, String key, Target owner) {
+        owners.computeIfAbsent(namespace, __ -> new ConcurrentHashMap<>()).put(key, owner);
+        notifyListeners(namespace, key, owner);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> remove(String namespace, String key, Target owner) {
+        Map<String, Target> keys = owners.get(namespace);
+        if(keys != null && keys.remove(key, owner)) {
+            notifyListeners(namespace, key, null);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void addListener(Listener<Target> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener<Target> listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners(String namespace, String key, Target owner) {
+        for(Listener<Target> listener : listeners) {
+            listener.onOwnerChanged(namespace, key, owner);
+        }
+    }
+}
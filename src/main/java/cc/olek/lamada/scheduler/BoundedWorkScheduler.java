@@ -0,0 +1,287 @@
+package cc.olek.lamada.scheduler;
+
+import cc.olek.lamada.DistributedObject;
+import cc.olek.lamada.context.ExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs received work with bounded concurrency per distributed object. Work which doesn't get a slot waits in its
+ * object's queue for the lane, and is rejected once that queue is full. A freed slot goes to sync work first,
+ * so fire-and-forget work only runs while nobody waits for a result.
+ * <p>
+ * Work runs on virtual threads when the JVM has them, otherwise on a cached pool of daemon threads.
+ * Either way there are never more threads busy than the sum of concurrency limits
+ * </p>
+ */
+public class BoundedWorkScheduler implements RemoteWorkScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(BoundedWorkScheduler.class);
+    public static final int DEFAULT_CONCURRENCY = 64;
+    public static final int DEFAULT_QUEUE_LIMIT = 1024;
+    private static final Lane[] LANES = Lane.values();
+    private final Executor workers;
+    private final boolean ownsWorkers;
+    private final Map<DistributedObject<?, ?, ?>, Slots> slots = new ConcurrentHashMap<>();
+    private final Map<DistributedObject<?, ?, ?>, Integer> concurrencyOverrides = new ConcurrentHashMap<>();
+    private final Slots staticSlots = new Slots();
+    private final AtomicInteger[] queued = new AtomicInteger[LANES.length];
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile int concurrency = DEFAULT_CONCURRENCY;
+    private volatile int queueLimit = DEFAULT_QUEUE_LIMIT;
+    private volatile boolean closed;
+
+    public BoundedWorkScheduler() {
+        this(defaultWorkers(), true);
+    }
+
+    /**
+     * @param workers Executor running the work, left running on shutdown
+     */
+    public BoundedWorkScheduler(Executor workers) {
+        this(workers, false);
+    }
+
+    private BoundedWorkScheduler(Executor workers, boolean ownsWorkers) {
+        this.workers = workers;
+        this.ownsWorkers = ownsWorkers;
+        for(int i = 0; i < queued.length; i++) {
+            queued[i] = new AtomicInteger();
+        }
+    }
+
+    @Override
+    public boolean submit(ExecutionContext context, Lane lane, Supplier<CompletionStage<?>> work) {
+        return submit(context, lane, work, () -> {});
+    }
+
+    @Override
+    public boolean submit(ExecutionContext context, Lane lane, Supplier<CompletionStage<?>> work, Runnable dropped) {
+        if(closed) {
+            rejected.increment();
+            return false;
+        }
+        DistributedObject<?, ?, ?> object = context.objectRequesting();
+        Slots slots = object == null ? staticSlots : this.slots.computeIfAbsent(object, __ -> new Slots());
+        synchronized(slots) {
+            if(slots.running >= getConcurrency(object)) {
+                ArrayDeque<Queued> queue = slots.queues[lane.ordinal()];
+                if(queue.size() >= queueLimit) {
+                    rejected.increment();
+                    return false;
+                }
+                queue.add(new Queued(work, dropped));
+                queued[lane.ordinal()].incrementAndGet();
+                return true;
+            }
+            slots.running++;
+        }
+        running.incrementAndGet();
+        try {
+            workers.execute(() -> run(slots, work));
+        } catch(RejectedExecutionException e) {
+            release(slots);
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private void run(Slots slots, Supplier<CompletionStage<?>> work) {
+        CompletionStage<?> done;
+        try {
+            done = work.get();
+        } catch(Throwable t) {
+            logger.error("Received work failed", t);
+            done = null;
+        }
+        if(done == null) {
+            next(slots);
+            return;
+        }
+        done.whenComplete((__, err) -> next(slots));
+    }
+
+    // hands the slot over to the next queued work, or frees it
+    private void next(Slots slots) {
+        Queued work = null;
+        synchronized(slots) {
+            for(Lane lane : LANES) {
+                work = slots.queues[lane.ordinal()].poll();
+                if(work != null) {
+                    queued[lane.ordinal()].decrementAndGet();
+                    break;
+                }
+            }
+            if(work == null) {
+                slots.running--;
+            }
+        }
+        if(work == null) {
+            finished();
+            return;
+        }
+        Queued toRun = work;
+        try {
+            workers.execute(() -> run(slots, toRun.work()));
+        } catch(RejectedExecutionException e) {
+            logger.error("Dropping received work, workers don't accept it anymore", e);
+            rejected.increment();
+            try {
+                toRun.dropped().run();
+            } catch(Throwable t) {
+                logger.error("Failed to reject dropped work", t);
+            }
+            next(slots);
+        }
+    }
+
+    private void release(Slots slots) {
+        synchronized(slots) {
+            slots.running--;
+        }
+        finished();
+    }
+
+    private void finished() {
+        if(running.decrementAndGet() == 0) {
+            synchronized(running) {
+                running.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Rejects new work and waits up to 30 seconds for running and queued work to finish
+     */
+    @Override
+    public void shutdown() {
+        closed = true;
+        long deadline = System.currentTimeMillis() + 30_000;
+        synchronized(running) {
+            long left;
+            while(running.get() > 0 && (left = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    running.wait(left);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if(running.get() > 0) {
+            logger.warn("Shutting down with {} received lambdas still running", running.get());
+        }
+        if(ownsWorkers && workers instanceof ExecutorService service) {
+            service.shutdown();
+        }
+    }
+
+    /**
+     * @param concurrency Amount of lambdas which may run at once on every distributed object without its own limit
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param concurrency Amount of lambdas which may run at once on this object
+     */
+    public void setConcurrency(DistributedObject<?, ?, ?> object, int concurrency) {
+        concurrencyOverrides.put(object, concurrency);
+    }
+
+    public int getConcurrency(DistributedObject<?, ?, ?> object) {
+        if(object == null) return concurrency;
+        return concurrencyOverrides.getOrDefault(object, concurrency);
+    }
+
+    /**
+     * @param limit Amount of work which may wait in one lane of a distributed object before new work is rejected
+     */
+    public void setQueueLimit(int limit) {
+        this.queueLimit = limit;
+    }
+
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    /**
+     * @return Amount of work waiting for a slot in a lane, over all objects
+     */
+    public int getQueued(Lane lane) {
+        return queued[lane.ordinal()].get();
+    }
+
+    public int getQueued() {
+        int sum = 0;
+        for(AtomicInteger count : queued) {
+            sum += count.get();
+        }
+        return sum;
+    }
+
+    /**
+     * @return Amount of work waiting for a slot on one object
+     */
+    public int getQueued(DistributedObject<?, ?, ?> object) {
+        Slots slots = this.slots.get(object);
+        if(slots == null) return 0;
+        synchronized(slots) {
+            int sum = 0;
+            for(ArrayDeque<?> queue : slots.queues) {
+                sum += queue.size();
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * @return Amount of work holding a slot, including async lambdas whose result isn't complete yet
+     */
+    public int getRunning() {
+        return running.get();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private static Executor defaultWorkers() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            //noinspection Since15
+            return Executors.newVirtualThreadPerTaskExecutor();
+        } catch(Throwable ignored) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "lamada-worker-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private record Queued(Supplier<CompletionStage<?>> work, Runnable dropped) {
+    }
+
+    private static final class Slots {
+        @SuppressWarnings("unchecked")
+        final ArrayDeque<Queued>[] queues = new ArrayDeque[LANES.length];
+        int running;
+
+        Slots() {
+            for(int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayDeque<>();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package cc.olek.lamada.scheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Runs work submitted for the same key one after another, in the order it was submitted. Keys are spread over
+ * a fixed amount of stripes, each of them a queue with at most one work running on the executor at a time.
+ * Different keys mostly land on different stripes and run in parallel, but keys sharing a stripe wait for each other.
+ * <p>
+ * Work which returns an incomplete stage keeps its stripe busy until the stage completes, so work waiting
+ * for another work on the same stripe never completes
+ * </p>
+ */
+public class KeyMailboxes {
+    private static final Logger logger = LoggerFactory.getLogger(KeyMailboxes.class);
+    private final Stripe[] stripes;
+
+    /**
+     * @param stripes Amount of queues keys are spread over, rounded up to a power of two
+     */
+    public KeyMailboxes(int stripes) {
+        int size = Integer.highestOneBit(Math.max(2, stripes) - 1) << 1;
+        this.stripes = new Stripe[size];
+        for(int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @param executor Executor the work runs on once its turn comes
+     * @param work Work to run, may return null if it's done once it returns
+     * @return Future completed once the work is done, or exceptionally if it threw
+     */
+    public CompletableFuture<Void> submit(Object key, Executor executor, Supplier<CompletionStage<?>> work) {
+        Mail mail = new Mail(executor, work);
+        Stripe stripe = stripeOf(key);
+        synchronized(stripe) {
+            if(stripe.busy) {
+                stripe.queue.add(mail);
+                return mail.done;
+            }
+            stripe.busy = true;
+        }
+        stripe.dispatch(mail);
+        return mail.done;
+    }
+
+    /**
+     * @return Amount of work waiting behind the running one in the key's stripe
+     */
+    public int getQueued(Object key) {
+        Stripe stripe = stripeOf(key);
+        synchronized(stripe) {
+            return stripe.queue.size();
+        }
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    private Stripe stripeOf(Object key) {
+        int hash = key == null ? 0 : key.hashCode();
+        hash ^= hash >>> 16;
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    private record Mail(Executor executor, Supplier<CompletionStage<?>> work, CompletableFuture<Void> done) {
+        Mail(Executor executor, Supplier<CompletionStage<?>> work) {
+            this(executor, work, new CompletableFuture<>());
+        }
+    }
+
+    private static final class Stripe {
+        final ArrayDeque<Mail> queue = new ArrayDeque<>();
+        boolean busy;
+
+        void dispatch(Mail mail) {
+            try {
+                mail.executor.execute(() -> run(mail));
+            } catch(Throwable t) {
+                logger.error("Failed to dispatch queued work", t);
+                mail.done.completeExceptionally(t);
+                next();
+            }
+        }
+
+        void run(Mail mail) {
+            CompletionStage<?> stage;
+            try {
+                stage = mail.work.get();
+            } catch(Throwable t) {
+                mail.done.completeExceptionally(t);
+                next();
+                return;
+            }
+            if(stage == null) {
+                mail.done.complete(null);
+                next();
+                return;
+            }
+            stage.whenComplete((__, err) -> {
+                if(err != null) {
+                    mail.done.completeExceptionally(err);
+                } else {
+                    mail.done.complete(null);
+                }
+                next();
+            });
+        }
+
+        void next() {
+            Mail mail;
+            synchronized(this) {
+                mail = queue.poll();
+                if(mail == null) {
+                    busy = false;
+                    return;
+                }
+            }
+            dispatch(mail);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package cc.olek.lamada.scheduler;
+
+import cc.olek.lamada.context.ExecutionContext;
+
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+/**
+ * Decides when and where lambdas received from other targets run. Transports hand every context they read to
+ * {@link cc.olek.lamada.DistributedExecutor#executeReceived}, which submits it here
+ * @see BoundedWorkScheduler
+ */
+public interface RemoteWorkScheduler {
+    enum Lane {
+        /**
+         * Sender waits for the result
+         */
+        SYNC,
+        /**
+         * Sender doesn't wait for anything, only runs when no sync work is waiting
+         */
+        FORGET
+    }
+
+    /**
+     * @param context Context the work executes
+     * @param work Executes the context. Completes once the work is done, which for async lambdas is later than it returns
+     * @return Whether the work was accepted. Rejected work is never run, and the sender should be told right away
+     */
+    boolean submit(ExecutionContext context, Lane lane, Supplier<CompletionStage<?>> work);
+
+    /**
+     * @param dropped Called instead of the work if it was accepted but can't be run anymore, so the sender can be told
+     * @see #submit(ExecutionContext, Lane, Supplier)
+     */
+    default boolean submit(ExecutionContext context, Lane lane, Supplier<CompletionStage<?>> work, Runnable dropped) {
+        return submit(context, lane, work);
+    }
+
+    /**
+     * Stops accepting work and waits for accepted work to finish
+     */
+    default void shutdown() {}
+}
@@ -3,7 +3,8 @@ package cc.olek.lamada.sender;
 import cc.olek.lamada.DistributedExecutor;
 import cc.olek.lamada.DistributedObject;
 import cc.olek.lamada.InstructionCommunicator;
-import cc.olek.lamada.context.ExecutionContext;
+import cc.olek.lamada.context.InvocationResult;
+import cc.olek.lamada.exception.CaptureCacheMissException;
 import cc.olek.lamada.util.Exceptions;
 
 import java.util.concurrent.CompletableFuture;
@@ -12,12 +13,25 @@ public class LoopbackSender<Target> implements InstructionCommunicator<Target> {
     @Override
     public CompletableFuture<byte[]> send(DistributedObject<?, ?, Target> object, Target target, int opNumber, byte[] data, long waitForReply) {
         DistributedExecutor<Target> executor = object.getExecutor();
-        return CompletableFuture.supplyAsync(() -> {
-            ExecutionContext context = executor.receiveContext(data, executor.getOwnTarget());
-            if(context.deserializationError() != null) {
-                throw Exceptions.wrap(context.deserializationError());
-            }
-            return executor.serializeResponse(executor.executeContext(context));
-        }, executor.getAsync());
+        return CompletableFuture
+            .supplyAsync(() -> executor.receiveContextAsync(data, executor.getOwnTarget()), executor.getAsync())
+            .thenCompose(received -> received)
+            .thenCompose(context -> {
+                if(context.deserializationError() != null) {
+                    if(CaptureCacheMissException.isCause(context.deserializationError())) {
+                        return CompletableFuture.completedFuture(executor.serializeResponse(InvocationResult.ofError(context, context.deserializationError()))); // sender retries
+                    }
+                    throw Exceptions.wrap(context.deserializationError());
+                }
+                CompletableFuture<byte[]> response = new CompletableFuture<>();
+                executor.executeReceived(context, waitForReply > DistributedObject.TIMEOUT_MODE_FORGET, result -> {
+                    try {
+                        response.complete(result == null ? null : executor.serializeResponse(result));
+                    } catch(Throwable t) {
+                        response.completeExceptionally(t);
+                    }
+                });
+                return response;
+            });
     }
 }
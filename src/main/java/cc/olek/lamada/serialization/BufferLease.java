@@ -0,0 +1,71 @@
+package cc.olek.lamada.serialization;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serialized bytes borrowed from a pool, a network buffer or anything else which wants them back.
+ * Data is between position and limit of {@link #buffer()}, which may be direct.
+ * <p>
+ * Whoever holds a lease must release it exactly once when done, after that the buffer must not be touched.
+ * Releasing a lease twice does nothing. A lease which is never released is just garbage collected,
+ * but the memory behind it doesn't go back to its owner
+ * </p>
+ */
+public final class BufferLease implements AutoCloseable {
+    private static final Runnable NOTHING = () -> {};
+    private final ByteBuffer buffer;
+    private final AtomicReference<Runnable> release;
+
+    private BufferLease(ByteBuffer buffer, Runnable release) {
+        this.buffer = buffer;
+        this.release = new AtomicReference<>(release);
+    }
+
+    /**
+     * @param buffer Data to lease, position to limit
+     * @param release Gives the memory back to its owner, called once
+     */
+    public static BufferLease of(ByteBuffer buffer, Runnable release) {
+        return new BufferLease(buffer, release);
+    }
+
+    /**
+     * Lease over a plain array which needs no release
+     */
+    public static BufferLease wrap(byte[] bytes) {
+        return new BufferLease(ByteBuffer.wrap(bytes), NOTHING);
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int length() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Copies the data out, leaving the buffer's position as it was
+     */
+    public byte[] toBytes() {
+        if(buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length && release.get() == NOTHING) {
+            return buffer.array(); // wrapped array, nobody else owns it
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public void release() {
+        Runnable release = this.release.getAndSet(null);
+        if(release != null) {
+            release.run();
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,161 @@
+package cc.olek.lamada.serialization;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opt-in cache of large values captured by lambdas. A captured value of a type added with {@link #cache(Class)}
+ * is serialized on its own and identified by a hash of its bytes, so a peer gets the bytes once and only the hash on later calls.
+ * <p>
+ * Cached types must be immutable: a receiver keeps a bounded LRU of materialized values for every sender and gives
+ * the same instance to every lambda which references it. Each sender has the whole capacity to itself, so its
+ * traffic doesn't evict values another sender was told are kept. A hash is referenced only after the peer replied to an operation which carried its bytes.
+ * If the peer evicted the value meanwhile, it replies with a capture miss and the operation is sent again with every value in full
+ * </p>
+ */
+public class CaptureCache {
+    public static final byte INLINE = 0x0;
+    public static final byte DEFINE = 0x1;
+    public static final byte REFERENCE = 0x2;
+    private static final XXHash64 hasher = XXHashFactory.fastestInstance().hash64();
+    private final Set<Class<?>> types = ConcurrentHashMap.newKeySet();
+    private final PeerConfirmations<Long> peers = new PeerConfirmations<>();
+    private final Map<Object, Map<Long, Object>> received = new ConcurrentHashMap<>();
+    private volatile int minBytes = 256;
+    private volatile int capacity = 256;
+    private final LongAdder referenced = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CaptureCache() {
+        peers.setMaxConfirmed(capacity);
+    }
+
+    /**
+     * Caches captured values of exactly this type
+     */
+    public void cache(Class<?> type) {
+        types.add(type);
+    }
+
+    public boolean isEnabled() {
+        return !types.isEmpty();
+    }
+
+    public boolean isCached(Object value) {
+        return value != null && types.contains(value.getClass());
+    }
+
+    public long hash(byte[] bytes) {
+        return hasher.hash(bytes, 0, bytes.length, 0);
+    }
+
+    /**
+     * @param length Size of the value's bytes
+     * @return Whether the peer has the value, if not it's remembered as sent with the operation
+     */
+    public boolean isKnown(Object peer, int opNumber, long hash, int length) {
+        if(!peers.isKnown(peer, opNumber, hash)) return false;
+        referenced.increment();
+        savedBytes.add(length);
+        return true;
+    }
+
+    /**
+     * Called when a reply to an operation arrived, the peer has every value the operation carried
+     */
+    public void confirm(Object peer, int opNumber) {
+        peers.confirm(peer, opNumber);
+    }
+
+    /**
+     * Forgets which values a peer has, after it missed one
+     */
+    public void forget(Object peer) {
+        peers.forget(peer);
+    }
+
+    /**
+     * @return Materialized value or null if it was never received from the sender or got evicted
+     */
+    public Object get(Object sender, long hash) {
+        Map<Long, Object> values = received.get(sender);
+        if(values == null) return null;
+        synchronized(values) {
+            return values.get(hash);
+        }
+    }
+
+    public void put(Object sender, long hash, Object value) {
+        Map<Long, Object> values = received.computeIfAbsent(sender, __ -> new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+                return size() > capacity;
+            }
+        });
+        synchronized(values) {
+            values.put(hash, value);
+        }
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    /**
+     * @param bytes Captured values smaller than this are written in full as usual
+     */
+    public void setMinBytes(int bytes) {
+        this.minBytes = bytes;
+    }
+
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    /**
+     * @param capacity Amount of values kept for every sender
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        peers.setMaxConfirmed(capacity); // peers are assumed to keep as many for us as we do for them
+        for(Map<Long, Object> values : received.values()) {
+            synchronized(values) {
+                Iterator<Long> eldest = values.keySet().iterator();
+                while(values.size() > capacity) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Amount of values sent as a hash instead of their bytes
+     */
+    public long getReferencedCount() {
+        return referenced.sum();
+    }
+
+    public long getSavedBytes() {
+        return savedBytes.sum();
+    }
+
+    /**
+     * @return Amount of referenced values which weren't in this cache when received
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+}
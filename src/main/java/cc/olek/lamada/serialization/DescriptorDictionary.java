@@ -0,0 +1,121 @@
+package cc.olek.lamada.serialization;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Interns class names and descriptors of lambdas which are sent in full, so a peer gets each string once
+ * and a varint id afterwards.
+ * <p>
+ * Ids belong to this executor and are never reused, so bytes written for one peer never mean something else to another.
+ * A string is written in full until the peer replied to an operation which carried it, only then it's referenced by id,
+ * so reordered or lost frames can't leave the peer with an id it doesn't know. Ids are scoped by a random epoch,
+ * a restarted sender starts a new table on its peers
+ * </p>
+ * A reader which still sees an unknown id (e.g. it restarted) returns null, and the lambda is requested by its number instead
+ */
+public class DescriptorDictionary {
+    /**
+     * Operation number of a write which nobody will confirm, strings are always written in full
+     */
+    public static final int UNTRACKED = -1;
+    private final int epoch = ThreadLocalRandom.current().nextInt() & Integer.MAX_VALUE;
+    private final Object2IntMap<String> ids = new Object2IntOpenHashMap<>();
+    private final PeerConfirmations<Integer> peers = new PeerConfirmations<>();
+    private final Map<Object, Table> received = new ConcurrentHashMap<>();
+
+    public DescriptorDictionary() {
+        ids.defaultReturnValue(-1);
+    }
+
+    public void writeEpoch(Output output) {
+        output.writeVarInt(epoch, true);
+    }
+
+    /**
+     * Writes a string either in full or as an id the receiver confirmed to know
+     * @param receiver Target the data is written for, null if unknown
+     * @param opNumber Operation carrying the data, or {@link #UNTRACKED}
+     */
+    public void write(Output output, Object receiver, int opNumber, String value) {
+        int id = idOf(value);
+        if(receiver != null && opNumber != UNTRACKED && peers.isKnown(receiver, opNumber, id)) {
+            output.writeVarInt(id << 1, true);
+            return;
+        }
+        output.writeVarInt(id << 1 | 1, true);
+        output.writeString(value);
+    }
+
+    /**
+     * Called when a reply to an operation arrived, so the receiver knows every string the operation defined
+     */
+    public void confirm(Object receiver, int opNumber) {
+        peers.confirm(receiver, opNumber);
+    }
+
+    /**
+     * Forgets what a target knows, for when it's known to have restarted or reconnected
+     */
+    public void forget(Object target) {
+        peers.forget(target);
+    }
+
+    /**
+     * @param epoch Epoch read from the sender's data
+     * @return Strings received from the sender, emptied if the sender started a new epoch
+     */
+    public Table received(Object sender, int epoch) {
+        return received.compute(sender, (__, table) -> table != null && table.epoch == epoch ? table : new Table(epoch));
+    }
+
+    public int size() {
+        synchronized(ids) {
+            return ids.size();
+        }
+    }
+
+    private int idOf(String value) {
+        synchronized(ids) {
+            int id = ids.getInt(value);
+            if(id == -1) {
+                id = ids.size();
+                ids.put(value, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Strings one sender defined
+     */
+    public static final class Table {
+        private final int epoch;
+        private final Int2ObjectMap<String> strings = Int2ObjectMaps.synchronize(new Int2ObjectOpenHashMap<>());
+
+        private Table(int epoch) {
+            this.epoch = epoch;
+        }
+
+        /**
+         * @return String written by {@link #write}, or null if it was an id this table doesn't know
+         */
+        public String read(Input input) {
+            int token = input.readVarInt(true);
+            int id = token >>> 1;
+            if((token & 1) == 0) return strings.get(id);
+            String value = input.readString();
+            strings.put(id, value);
+            return value;
+        }
+    }
+}
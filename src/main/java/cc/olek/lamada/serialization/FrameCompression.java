@@ -0,0 +1,170 @@
+package cc.olek.lamada.serialization;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional LZ4 stage for serialized frames. Every frame starts with a flag byte telling whether the rest is
+ * raw Kryo bytes or an LZ4 block, so the receiver doesn't need to know the sender's settings.
+ * Frames below the threshold, or which don't get smaller, are sent raw.
+ * <p>
+ * Compressed frame layout: flag, varint length of the raw data, LZ4 block.
+ * Frames come from peers, so the length is checked against the maximum before anything is allocated,
+ * and blocks are decompressed with bounds checks
+ * </p>
+ */
+public class FrameCompression {
+    public static final byte RAW = 0x0;
+    public static final byte LZ4 = 0x1;
+    public static final int DISABLED = -1;
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    private static final LZ4Factory factory = LZ4Factory.fastestInstance();
+    private final LZ4Compressor compressor = factory.fastCompressor();
+    private final LZ4SafeDecompressor decompressor = factory.safeDecompressor();
+    private volatile int threshold = DISABLED;
+    private volatile int maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+    private final LongAdder compressedFrames = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressedFrames = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * Compresses a frame written with a {@link #RAW} flag in front if it's big enough
+     * @param frame Array holding the flag and the raw data
+     * @param length Length of the frame including the flag
+     * @return Compressed frame, or null if the frame should be sent as is
+     */
+    public BufferLease compress(byte[] frame, int length) {
+        int threshold = this.threshold;
+        int rawLength = length - 1;
+        if(threshold == DISABLED || rawLength < threshold) return null;
+        long started = System.nanoTime();
+        byte[] compressed = new byte[1 + 5 + compressor.maxCompressedLength(rawLength)];
+        compressed[0] = LZ4;
+        int header = 1 + writeVarInt(compressed, 1, rawLength);
+        int written = compressor.compress(frame, 1, rawLength, compressed, header, compressed.length - header);
+        compressNanos.add(System.nanoTime() - started);
+        if(header + written >= length) return null; // incompressible
+        compressedFrames.increment();
+        rawBytes.add(rawLength);
+        compressedBytes.add(header + written);
+        return BufferLease.of(ByteBuffer.wrap(compressed, 0, header + written), () -> {});
+    }
+
+    /**
+     * @param frame Frame from position to limit, left untouched
+     * @return Raw data of the frame, either a view of it or a decompressed copy
+     * @throws IllegalStateException If the frame is malformed or its raw data is longer than the maximum
+     */
+    public ByteBuffer unwrap(ByteBuffer frame) {
+        ByteBuffer data = frame.duplicate();
+        byte flag = data.get();
+        return switch(flag) {
+            case RAW -> data;
+            case LZ4 -> {
+                long started = System.nanoTime();
+                int rawLength = readVarInt(data);
+                if(rawLength < 0 || rawLength > maxFrameLength) {
+                    throw new IllegalStateException("Compressed frame claims " + rawLength + " raw bytes, maximum is " + maxFrameLength);
+                }
+                ByteBuffer raw = ByteBuffer.allocate(rawLength);
+                int decompressed;
+                try {
+                    decompressed = decompressor.decompress(data, data.position(), data.remaining(), raw, 0, rawLength);
+                } catch(LZ4Exception e) {
+                    throw new IllegalStateException("Malformed compressed frame", e);
+                }
+                if(decompressed != rawLength) {
+                    throw new IllegalStateException("Compressed frame has " + decompressed + " raw bytes instead of " + rawLength);
+                }
+                decompressedFrames.increment();
+                decompressNanos.add(System.nanoTime() - started);
+                yield raw;
+            }
+            default -> throw new IllegalStateException("Unknown frame flag: " + flag);
+        };
+    }
+
+    private static int writeVarInt(byte[] to, int offset, int value) {
+        int start = offset;
+        while((value & ~0x7F) != 0) {
+            to[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        to[offset++] = (byte) value;
+        return offset - start;
+    }
+
+    private static int readVarInt(ByteBuffer from) {
+        int result = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            byte b = from.get();
+            result |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return result;
+        }
+        throw new IllegalStateException("Malformed frame length");
+    }
+
+    /**
+     * @param bytes Minimum size of serialized data to compress, or {@link #DISABLED}
+     */
+    public void setThreshold(int bytes) {
+        this.threshold = bytes;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param bytes Maximum raw length of a received compressed frame, longer ones are rejected without decompressing
+     */
+    public void setMaxFrameLength(int bytes) {
+        this.maxFrameLength = bytes;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public long getCompressedFrames() {
+        return compressedFrames.sum();
+    }
+
+    public long getDecompressedFrames() {
+        return decompressedFrames.sum();
+    }
+
+    /**
+     * @return Compressed size divided by raw size over all compressed frames, 1 if nothing was compressed yet
+     */
+    public double getRatio() {
+        long raw = rawBytes.sum();
+        return raw == 0 ? 1 : (double) compressedBytes.sum() / raw;
+    }
+
+    /**
+     * @return Bytes saved by compression so far
+     */
+    public long getSavedBytes() {
+        return rawBytes.sum() - compressedBytes.sum();
+    }
+
+    /**
+     * @return Time spent compressing, including attempts which didn't pay off
+     */
+    public long getCompressNanos() {
+        return compressNanos.sum();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.sum();
+    }
+}
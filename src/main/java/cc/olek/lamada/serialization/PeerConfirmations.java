@@ -0,0 +1,88 @@
+package cc.olek.lamada.serialization;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks what each peer is known to have received. Something sent with an operation only counts as known
+ * once a reply to that operation arrived, since the peer has read the operation by then
+ * @param <K> Type of what is tracked
+ */
+final class PeerConfirmations<K> {
+    private static final int MAX_PENDING = 1024;
+    private final Map<Object, Peer<K>> peers = new ConcurrentHashMap<>();
+    private volatile int maxConfirmed = Integer.MAX_VALUE;
+
+    /**
+     * @return Whether the peer is known to have the value, if not it's remembered as sent with the operation
+     */
+    boolean isKnown(Object peer, int opNumber, K value) {
+        return peers.computeIfAbsent(peer, __ -> new Peer<>(this)).isKnown(value, opNumber);
+    }
+
+    /**
+     * @param maxConfirmed Amount of values remembered as known per peer, least recently used ones are sent again.
+     *                     Should not exceed how many values a peer keeps, or values it dropped are referenced
+     */
+    void setMaxConfirmed(int maxConfirmed) {
+        this.maxConfirmed = maxConfirmed;
+        for(Peer<K> peer : peers.values()) {
+            peer.trim(maxConfirmed);
+        }
+    }
+
+    void confirm(Object peer, int opNumber) {
+        Peer<K> known = peers.get(peer);
+        if(known != null) {
+            known.confirm(opNumber);
+        }
+    }
+
+    void forget(Object peer) {
+        peers.remove(peer);
+    }
+
+    private static final class Peer<K> {
+        private final PeerConfirmations<K> owner;
+        private final LinkedHashMap<K, Boolean> confirmed = new LinkedHashMap<>(16, 0.75f, true);
+        private final Int2ObjectMap<List<K>> pending = new Int2ObjectOpenHashMap<>();
+
+        Peer(PeerConfirmations<K> owner) {
+            this.owner = owner;
+        }
+
+        synchronized boolean isKnown(K value, int opNumber) {
+            if(confirmed.get(value) != null) return true; // get bumps it in access order
+            if(pending.size() >= MAX_PENDING) {
+                pending.clear(); // operations nobody replied to, their values get sent again
+            }
+            pending.computeIfAbsent(opNumber, __ -> new ArrayList<>()).add(value);
+            return false;
+        }
+
+        synchronized void confirm(int opNumber) {
+            List<K> sent = pending.remove(opNumber);
+            if(sent != null) {
+                for(K value : sent) {
+                    confirmed.put(value, Boolean.TRUE);
+                }
+                trim(owner.maxConfirmed);
+            }
+        }
+
+        synchronized void trim(int max) {
+            Iterator<K> eldest = confirmed.keySet().iterator();
+            while(confirmed.size() > max) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+}
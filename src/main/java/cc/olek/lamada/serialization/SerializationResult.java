@@ -2,5 +2,5 @@ package cc.olek.lamada.serialization;
 
 import cc.olek.lamada.context.ExecutionContext;
 
-public record SerializationResult(ExecutionContext context, byte[] bytes) {
+public record SerializationResult(ExecutionContext context, BufferLease data) {
 }
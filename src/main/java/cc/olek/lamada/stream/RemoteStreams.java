@@ -0,0 +1,141 @@
+package cc.olek.lamada.stream;
+
+import cc.olek.lamada.util.TimerWheel;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Streams opened on this target by others, which pull them chunk by chunk.
+ * Only as many elements as the other side asked for are taken from a stream, so it's never materialized as a whole.
+ * A stream nobody pulled for longer than the idle timeout is closed, in case the other side went away
+ */
+public class RemoteStreams implements AutoCloseable {
+    private final Map<Integer, OpenStream> open = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final TimerWheel<OpenStream> reaper = new TimerWheel<>("lamada-stream-reaper", 1, TimeUnit.SECONDS, 64, this::checkIdle);
+    private volatile int chunkSize = 256;
+    private volatile long idleTimeout = 30_000;
+
+    /**
+     * Opens a stream and takes its first chunk
+     * @param max Amount of elements the other side is ready to take, capped by chunk size
+     */
+    public StreamChunk open(Stream<?> stream, int max) {
+        OpenStream opened = new OpenStream(ids.incrementAndGet(), stream);
+        open.put(opened.id, opened);
+        reaper.schedule(opened, idleTimeout, TimeUnit.MILLISECONDS);
+        return pull(opened.id, max);
+    }
+
+    /**
+     * @param max Amount of elements the other side is ready to take, capped by chunk size
+     */
+    public StreamChunk pull(int streamId, int max) {
+        OpenStream stream = open.get(streamId);
+        if(stream == null) {
+            throw new IllegalStateException("Stream #" + streamId + " is closed or expired");
+        }
+        synchronized(stream) {
+            stream.lastPull = System.nanoTime();
+            int amount = Math.max(1, Math.min(max, chunkSize));
+            Object[] elements = new Object[amount];
+            int taken = 0;
+            try {
+                while(taken < amount && stream.iterator.hasNext()) {
+                    elements[taken++] = stream.iterator.next();
+                }
+            } catch(Throwable t) {
+                close(stream);
+                throw t;
+            }
+            boolean last = !stream.iterator.hasNext();
+            if(last) {
+                close(stream);
+            }
+            if(taken < amount) {
+                Object[] trimmed = new Object[taken];
+                System.arraycopy(elements, 0, trimmed, 0, taken);
+                elements = trimmed;
+            }
+            return new StreamChunk(streamId, elements, last);
+        }
+    }
+
+    public void cancel(int streamId) {
+        OpenStream stream = open.get(streamId);
+        if(stream != null) {
+            close(stream);
+        }
+    }
+
+    private void checkIdle(OpenStream stream) {
+        if(open.get(stream.id) != stream) return;
+        long idleFor = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stream.lastPull);
+        if(idleFor >= idleTimeout) {
+            close(stream);
+        } else {
+            reaper.schedule(stream, idleTimeout - idleFor, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void close(OpenStream stream) {
+        if(open.remove(stream.id, stream)) {
+            stream.stream.close();
+        }
+    }
+
+    /**
+     * @param chunkSize Maximum amount of elements sent in one response
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param millis Time after which a stream nobody pulls from is closed
+     */
+    public void setIdleTimeout(long millis) {
+        this.idleTimeout = millis;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @return Amount of streams currently open
+     */
+    public int size() {
+        return open.size();
+    }
+
+    @Override
+    public void close() {
+        reaper.close();
+        for(OpenStream stream : open.values()) {
+            close(stream);
+        }
+    }
+
+    private static final class OpenStream {
+        final int id;
+        final Stream<?> stream;
+        final Iterator<?> iterator;
+        volatile long lastPull = System.nanoTime();
+
+        OpenStream(int id, Stream<?> stream) {
+            this.id = id;
+            this.stream = stream;
+            this.iterator = stream.iterator();
+        }
+    }
+}
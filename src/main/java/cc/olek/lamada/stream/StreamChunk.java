@@ -0,0 +1,10 @@
+package cc.olek.lamada.stream;
+
+/**
+ * Part of a remote stream sent in one response
+ * @param streamId Id of the stream on the producing target
+ * @param elements Elements in order, at most as many as were asked for
+ * @param last Whether the stream is exhausted and closed on the producing side
+ */
+public record StreamChunk(int streamId, Object[] elements, boolean last) {
+}
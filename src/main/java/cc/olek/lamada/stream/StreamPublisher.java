@@ -0,0 +1,183 @@
+package cc.olek.lamada.stream;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.BiFunction;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Publishes elements of a stream which lives on another target. The stream is opened when the subscriber
+ * first requests elements, and later chunks are pulled only while there's unfulfilled demand,
+ * asking for no more elements than were requested. Every subscriber opens the stream anew
+ * @param <T> Element type
+ */
+public class StreamPublisher<T> implements Flow.Publisher<T> {
+    private final IntFunction<CompletableFuture<StreamChunk>> open;
+    private final BiFunction<Integer, Integer, CompletableFuture<StreamChunk>> pull;
+    private final IntConsumer cancel;
+
+    /**
+     * @param open Opens the stream and returns its first chunk, given the amount of elements wanted
+     * @param pull Pulls the next chunk of a stream, given its id and the amount of elements wanted
+     * @param cancel Closes the stream on the producing side
+     */
+    public StreamPublisher(IntFunction<CompletableFuture<StreamChunk>> open, BiFunction<Integer, Integer, CompletableFuture<StreamChunk>> pull, IntConsumer cancel) {
+        this.open = open;
+        this.pull = pull;
+        this.cancel = cancel;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Subscription subscription = new Subscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private final class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final Queue<Object> buffer = new ArrayDeque<>();
+        private long demand;
+        private int streamId = -1;
+        private boolean fetching;
+        private boolean exhausted;
+        private boolean done;
+        private boolean draining;
+        private Throwable error;
+
+        Subscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized(this) {
+                if(done) return;
+                if(n <= 0) {
+                    error = new IllegalArgumentException("Requested " + n + " elements, must be positive");
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            int opened;
+            synchronized(this) {
+                if(done) return;
+                done = true;
+                buffer.clear();
+                opened = exhausted ? -1 : streamId;
+            }
+            if(opened != -1) {
+                cancel.accept(opened);
+            }
+        }
+
+        /**
+         * Hands buffered elements to the subscriber while it wants them. Only one thread drains at a time,
+         * so the subscriber may request more from inside onNext
+         */
+        @SuppressWarnings("unchecked")
+        private void drain() {
+            synchronized(this) {
+                if(draining) return;
+                draining = true;
+            }
+            while(true) {
+                Object next = null;
+                boolean complete = false;
+                Throwable failed = null;
+                boolean fetch = false;
+                synchronized(this) {
+                    if(done) {
+                        draining = false;
+                        return;
+                    }
+                    if(error != null) {
+                        failed = error;
+                        done = true;
+                    } else if(demand > 0 && !buffer.isEmpty()) {
+                        next = buffer.poll();
+                        demand--;
+                    } else if(buffer.isEmpty() && exhausted) {
+                        complete = true;
+                        done = true;
+                    } else {
+                        if(demand > 0 && !fetching) {
+                            fetching = true;
+                            fetch = true;
+                        }
+                        draining = false;
+                    }
+                }
+                if(failed != null) {
+                    int opened = streamId;
+                    if(opened != -1 && !exhausted) {
+                        cancel.accept(opened);
+                    }
+                    subscriber.onError(failed);
+                    return;
+                }
+                if(complete) {
+                    subscriber.onComplete();
+                    return;
+                }
+                if(next == null) {
+                    if(fetch) fetch();
+                    return;
+                }
+                subscriber.onNext((T) next);
+            }
+        }
+
+        private void fetch() {
+            int opened;
+            int wanted;
+            synchronized(this) {
+                opened = streamId;
+                wanted = (int) Math.min(demand, Integer.MAX_VALUE);
+            }
+            CompletableFuture<StreamChunk> chunk;
+            try {
+                chunk = opened == -1 ? open.apply(wanted) : pull.apply(opened, wanted);
+            } catch(Throwable t) {
+                chunk = CompletableFuture.failedFuture(t);
+            }
+            chunk.whenComplete((received, err) -> {
+                boolean cancelledOpen;
+                synchronized(this) {
+                    fetching = false;
+                    cancelledOpen = done && err == null && opened == -1; // cancel() had no id to cancel
+                    if(cancelledOpen) {
+                        streamId = received.streamId();
+                        exhausted = received.last();
+                    } else if(err != null) {
+                        error = err;
+                    } else {
+                        streamId = received.streamId();
+                        exhausted = received.last();
+                        for(Object element : received.elements()) {
+                            if(element == null) {
+                                error = new NullPointerException("Stream #" + streamId + " produced a null element");
+                                break;
+                            }
+                            buffer.add(element);
+                        }
+                    }
+                }
+                if(cancelledOpen) {
+                    if(!received.last()) {
+                        cancel.accept(received.streamId());
+                    }
+                    return;
+                }
+                drain();
+            });
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package cc.olek.lamada.stream;
+
+import java.util.stream.Stream;
+
+/**
+ * Stream produced by a stream function, together with how many elements the subscriber wants in the first chunk
+ * @param stream Stream to open
+ * @param first Amount of elements taken right away, capped by chunk size
+ */
+public record StreamRequest(Stream<?> stream, int first) {
+}
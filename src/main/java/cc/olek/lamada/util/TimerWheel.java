@@ -0,0 +1,99 @@
+package cc.olek.lamada.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel. Scheduling is a queue append, and one thread walks the wheel tick by tick handing
+ * items whose deadline passed to the expiry callback. Deadlines further away than one rotation wait for more rotations.
+ * Items fire up to one tick late, and there is no cancelling: the callback decides whether an item still matters
+ */
+public class TimerWheel<T> implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+    private final Queue<Timeout<T>>[] buckets;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Consumer<T> onExpire;
+    private final String name;
+    private volatile long processedTick = -1;
+    private volatile boolean running = true;
+    private volatile Thread ticking;
+
+    public TimerWheel(String name, long tick, TimeUnit unit, int wheelSize, Consumer<T> onExpire) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        //noinspection unchecked
+        this.buckets = new Queue[size];
+        for(int i = 0; i < size; i++) {
+            buckets[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.mask = size - 1;
+        this.tickNanos = unit.toNanos(tick);
+        this.onExpire = onExpire;
+        this.name = name;
+    }
+
+    public void schedule(T item, long delay, TimeUnit unit) {
+        if(!running) return;
+        long deadline = System.nanoTime() + unit.toNanos(delay);
+        long tick = Math.max((deadline - startNanos) / tickNanos, processedTick + 2); // next tick may be draining right now
+        buckets[(int) (tick & mask)].add(new Timeout<>(item, deadline));
+        startIfNeeded();
+    }
+
+    private void startIfNeeded() {
+        if(ticking != null) return;
+        synchronized(this) {
+            if(ticking != null || !running) return;
+            ticking = new Thread(this::tickLoop);
+            ticking.setDaemon(true);
+            ticking.setName(name);
+            ticking.start();
+        }
+    }
+
+    private void tickLoop() {
+        long tick = processedTick + 1;
+        while(running) {
+            long tickAt = startNanos + (tick + 1) * tickNanos;
+            long now = System.nanoTime();
+            if(now < tickAt) {
+                LockSupport.parkNanos(this, tickAt - now);
+                continue;
+            }
+            Queue<Timeout<T>> bucket = buckets[(int) (tick & mask)];
+            for(int left = bucket.size(); left > 0; left--) {
+                Timeout<T> timeout = bucket.poll();
+                if(timeout == null) break;
+                if(timeout.deadline() - now > 0) {
+                    bucket.add(timeout); // due in a later rotation
+                    continue;
+                }
+                try {
+                    onExpire.accept(timeout.item());
+                } catch(Throwable t) {
+                    logger.error("Expiry callback of {} failed", name, t);
+                }
+            }
+            processedTick = tick++;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        Thread ticking = this.ticking;
+        if(ticking != null) {
+            LockSupport.unpark(ticking);
+        }
+    }
+
+    private record Timeout<T>(T item, long deadline) {
+    }
+}
@@ -1,8 +1,10 @@
 package cc.olek.lamada.tests;
 
+import cc.olek.lamada.GenerateStub;
 import java.util.UUID;
 import java.util.function.Supplier;
 
+@GenerateStub
 public interface AnUniqueObject {
     long sayHi(String text, long time);
     long getTime();
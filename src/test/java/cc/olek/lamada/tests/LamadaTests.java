@@ -1,22 +1,65 @@
 package cc.olek.lamada.tests;
 
 import cc.olek.lamada.DistributedExecutor;
+import cc.olek.lamada.DistributedObject;
 import cc.olek.lamada.LoopbackRemoteTargetManager;
+import cc.olek.lamada.ObjectStubFactory;
+import cc.olek.lamada.asm.LambdaImpl;
+import cc.olek.lamada.asm.LambdaReconstructor;
+import cc.olek.lamada.asm.Precompiler;
+import cc.olek.lamada.context.ExecutionContext;
+import cc.olek.lamada.context.PendingOperations;
 import cc.olek.lamada.defaults.FunctionalDistributedObject;
+import cc.olek.lamada.exception.BatchExecutionException;
+import cc.olek.lamada.exception.KeyNotOwnedException;
+import cc.olek.lamada.func.ExecutableInterface;
 import cc.olek.lamada.func.ExecutionConsumer;
 import cc.olek.lamada.func.ExecutionRunnable;
+import cc.olek.lamada.func.ExecutionSupplier;
+import cc.olek.lamada.metrics.CallTags;
+import cc.olek.lamada.metrics.HistogramMetrics;
+import cc.olek.lamada.metrics.LatencyHistogram;
+import cc.olek.lamada.routing.CachedKeyLocator;
+import cc.olek.lamada.routing.ConsistentHashPartitioner;
+import cc.olek.lamada.routing.LocalKeyDirectory;
+import cc.olek.lamada.scheduler.BoundedWorkScheduler;
+import cc.olek.lamada.scheduler.RemoteWorkScheduler;
 import cc.olek.lamada.sender.LoopbackSender;
+import cc.olek.lamada.serialization.CaptureCache;
+import cc.olek.lamada.serialization.DescriptorDictionary;
+import cc.olek.lamada.serialization.FrameCompression;
+import cc.olek.lamada.stream.StreamChunk;
+import cc.olek.lamada.stream.StreamPublisher;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.lang.invoke.SerializedLambda;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -264,6 +307,643 @@ public class LamadaTests {
         ).join());
     }
 
+    @Test
+    public void testBatchMethodCall() {
+        UUID missing = UUID.randomUUID();
+        Map<UUID, String> names = uniqueObjectsA.runMethodBatch("b", List.of(implB.getUUID(), implB.getUUID()), AnUniqueObject::getName).join();
+        assertEquals(Map.of(implB.getUUID(), implB.getName()), names);
+
+        CompletionException thrown = assertThrows(CompletionException.class, () ->
+            uniqueObjectsA.runMethodBatch("b", List.of(implB.getUUID(), missing), AnUniqueObject::getName).join()
+        );
+        BatchExecutionException batchError = assertInstanceOf(BatchExecutionException.class, thrown.getCause());
+        assertEquals(Map.of(implB.getUUID(), implB.getName()), batchError.getResults());
+        assertEquals(Set.of(missing), batchError.getFailures().keySet());
+    }
+
+    @Test
+    public void testBroadcast() {
+        DistributedExecutor<String> aNew = getNew();
+        String sent = "Broadcast value";
+        Map<String, CompletableFuture<String>> results = aNew.broadcastMethod(List.of("1", "2", "3", "4"), () -> sent);
+        assertEquals(List.of("1", "2", "3", "4"), new ArrayList<>(results.keySet()));
+        for(CompletableFuture<String> result : results.values()) {
+            assertEquals(sent, result.join());
+        }
+        assertEquals(0, aNew.getPendingOperations().size());
+        aNew.shutdown();
+    }
+
+    @Test
+    public void testStreamedResults() throws InterruptedException {
+        Flow.Publisher<String> names = uniqueObjectsA.runStream("b", implB.getUUID(), obj -> IntStream.range(0, 1000).mapToObj(i -> obj.getName() + i));
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> completed = new CompletableFuture<>();
+        names.subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(100);
+            }
+
+            @Override
+            public void onNext(String item) {
+                received.add(item);
+                if(received.size() % 100 == 0) {
+                    subscription.request(100);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                completed.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.complete(null);
+            }
+        });
+        completed.join();
+        assertEquals(1000, received.size());
+        assertEquals(implB.getName() + 999, received.get(999));
+        assertEquals(0, b.getRemoteStreams().size());
+
+        CountDownLatch firstElements = new CountDownLatch(5);
+        names.subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(5);
+            }
+
+            @Override
+            public void onNext(String item) {
+                firstElements.countDown();
+                if(firstElements.getCount() == 0) {
+                    subscription.cancel();
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        assertTrue(firstElements.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(b.getRemoteStreams().size() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, b.getRemoteStreams().size());
+
+        streamedElements.set(0);
+        Flow.Publisher<Integer> counted = uniqueObjectsA.runStream("b", implB.getUUID(), obj -> IntStream.range(0, 1000).peek(i -> streamedElements.incrementAndGet()).boxed());
+        CountDownLatch demanded = new CountDownLatch(100);
+        AtomicReference<Flow.Subscription> countedSubscription = new AtomicReference<>();
+        counted.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                countedSubscription.set(subscription);
+                subscription.request(100);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                demanded.countDown();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        assertTrue(demanded.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        // the first chunk follows the demand, not the chunk size. One more element is looked at to tell whether the stream ended
+        assertTrue(streamedElements.get() <= 101, streamedElements.get() + " elements taken from the stream");
+        countedSubscription.get().cancel();
+
+        CompletableFuture<StreamChunk> opening = new CompletableFuture<>();
+        List<Integer> cancelled = Collections.synchronizedList(new ArrayList<>());
+        StreamPublisher<String> slowOpen = new StreamPublisher<>(first -> opening, (streamId, max) -> new CompletableFuture<>(), cancelled::add);
+        slowOpen.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(5);
+                subscription.cancel(); // before the stream has an id
+            }
+
+            @Override
+            public void onNext(String item) {
+                fail("Cancelled subscription got " + item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        assertEquals(List.of(), cancelled);
+        opening.complete(new StreamChunk(7, new Object[] {"first"}, false));
+        assertEquals(List.of(7), cancelled);
+    }
+
+    @Test
+    public void testCompressedFrames() {
+        DistributedExecutor<String> aNew = getNew();
+        aNew.getCompression().setThreshold(1024);
+        String small = "small";
+        assertEquals(small, aNew.runMethod("2", () -> small).join());
+        assertEquals(0, aNew.getCompression().getCompressedFrames());
+
+        String large = "repeated text ".repeat(10_000);
+        assertEquals(large.length(), aNew.runMethod("2", () -> large + large).join().length() / 2);
+        assertEquals(2, aNew.getCompression().getCompressedFrames()); // context and response
+        assertEquals(2, aNew.getCompression().getDecompressedFrames());
+        assertTrue(aNew.getCompression().getRatio() < 0.1);
+
+        FrameCompression compression = aNew.getCompression();
+        compression.setMaxFrameLength(1024);
+        byte[] oversized = {FrameCompression.LZ4, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 0x10};
+        assertThrows(IllegalStateException.class, () -> compression.unwrap(ByteBuffer.wrap(oversized)));
+        byte[] garbage = {FrameCompression.LZ4, 0x40, (byte) 0xf0, 0x01, 0x02};
+        assertThrows(IllegalStateException.class, () -> compression.unwrap(ByteBuffer.wrap(garbage)));
+        aNew.shutdown();
+    }
+
+    @Test
+    public void testMetrics() {
+        DistributedExecutor<String> aNew = getNew();
+        HistogramMetrics metrics = new HistogramMetrics();
+        aNew.setMetrics(metrics);
+        for(int i = 0; i < 10; i++) {
+            assertEquals(1, aNew.runMethod("2", () -> 1).join());
+        }
+        assertThrows(CompletionException.class, () -> aNew.runMethod("2", () -> {
+            throw new IllegalStateException("Expected");
+        }).join());
+        CallTags sent = new CallTags(null, ExecutableInterface.SUPPLIER, "2");
+        CallTags received = new CallTags(null, ExecutableInterface.SUPPLIER, "1"); // loopback receives from itself
+        assertEquals(11, metrics.histogram(HistogramMetrics.Stage.SERIALIZE, sent).getCount());
+        assertEquals(11, metrics.histogram(HistogramMetrics.Stage.SEND, sent).getCount());
+        assertEquals(11, metrics.histogram(HistogramMetrics.Stage.EXECUTE, received).getCount());
+        assertEquals(11, metrics.histogram(HistogramMetrics.Stage.DESERIALIZE_RESPONSE, sent).getCount());
+        assertEquals(1, metrics.getErrors(received));
+        assertTrue(metrics.getSerializedBytes(sent) > 0);
+        aNew.shutdown();
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 100_000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(50_000, histogram.getValueAtPercentile(50), 50_000 * 0.04);
+        assertEquals(99_000, histogram.getValueAtPercentile(99), 99_000 * 0.04);
+        assertEquals(100_000, histogram.getValueAtPercentile(100));
+        assertEquals(50_000.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGeneratedClassCache() throws Throwable {
+        Path cacheDir = Files.createTempDirectory("lamada-class-cache");
+        LambdaReconstructor.setClassCache(cacheDir);
+        try {
+            String captured = "cached";
+            ExecutionSupplier<Integer> lambda = () -> captured.length();
+            Method writeReplace = lambda.getClass().getDeclaredMethod("writeReplace");
+            writeReplace.setAccessible(true);
+            SerializedLambda serialized = (SerializedLambda) writeReplace.invoke(lambda);
+
+            for(int restart = 0; restart < 2; restart++) {
+                ClassLoader fresh = new ClassLoader(getClass().getClassLoader()) {}; // like a new JVM, nothing is defined yet
+                Function<Object[], Object> factory = (Function<Object[], Object>) LambdaReconstructor.generateLambdaFactory(
+                    LambdaReconstructor.getLambdaImpl(serialized), true, fresh
+                );
+                ExecutionSupplier<Integer> reconstructed = (ExecutionSupplier<Integer>) factory.apply(new Object[]{captured});
+                assertEquals(captured.length(), reconstructed.supply());
+            }
+            assertEquals(1, LambdaReconstructor.getClassCache().getMisses());
+            assertEquals(1, LambdaReconstructor.getClassCache().getHits());
+        } finally {
+            LambdaReconstructor.setClassCache(null);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPrecompiledClasses() throws Throwable {
+        Path classes = Path.of(LamadaTests.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Path output = Files.createTempDirectory("lamada-precompiled");
+        Precompiler.Result result = Precompiler.precompile(classes, output, getClass().getClassLoader());
+        assertEquals(0, result.failed());
+        assertEquals(1, result.stubs()); // only AnUniqueObject is annotated
+        assertTrue(Files.exists(output.resolve("cc/olek/lamada/tests/AnUniqueObject$StubFactory.class")));
+
+        String captured = "precompiled";
+        ExecutionSupplier<Integer> lambda = () -> captured.length();
+        Method writeReplace = lambda.getClass().getDeclaredMethod("writeReplace");
+        writeReplace.setAccessible(true);
+        LambdaImpl impl = LambdaReconstructor.getLambdaImpl((SerializedLambda) writeReplace.invoke(lambda));
+        String generatedClassName = LambdaReconstructor.generatedClassName(impl, true);
+        assertTrue(Files.exists(output.resolve(generatedClassName.replace('.', '/') + "$Generator.class")));
+
+        try(URLClassLoader loader = new URLClassLoader(new URL[]{output.toUri().toURL()}, getClass().getClassLoader())) {
+            Function<Object[], Object> factory = (Function<Object[], Object>) LambdaReconstructor.generateLambdaFactory(impl, true, loader);
+            assertSame(loader, factory.getClass().getClassLoader()); // loaded, not generated
+            assertEquals(captured.length(), ((ExecutionSupplier<Integer>) factory.apply(new Object[]{captured})).supply());
+            Class<?> stubFactory = Class.forName(AnUniqueObject.class.getName() + "$StubFactory", false, loader);
+            assertTrue(ObjectStubFactory.class.isAssignableFrom(stubFactory));
+        }
+    }
+
+    @Test
+    public void testParallelClassGeneration() throws Exception {
+        DistributedExecutor<String> aNew = getNew();
+        aNew.setExecutor(Executors.newFixedThreadPool(2)); // fewer threads than lambdas being generated, none of them may park on a generation
+        try {
+            String captured = "burst";
+            List<CompletableFuture<Integer>> results = List.of(
+                aNew.runMethod("2", () -> captured.length()),
+                aNew.runMethod("2", () -> captured.length() + 1),
+                aNew.runMethod("2", () -> captured.length() + 2),
+                aNew.runMethod("2", () -> captured.length() + 3),
+                aNew.runMethod("2", () -> captured.length() + 4),
+                aNew.runMethod("2", () -> captured.length() + 5)
+            );
+            for(int i = 0; i < results.size(); i++) {
+                assertEquals(captured.length() + i, results.get(i).get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            aNew.shutdown(); // shuts the pool down too
+        }
+    }
+
+    @Test
+    public void testDescriptorDictionary() {
+        DescriptorDictionary dictionary = new DescriptorDictionary();
+        String name = ExecutionSupplier.class.getName().replace('.', '/');
+        Output output = new Output(256);
+        dictionary.write(output, "2", 5, name);
+        byte[] full = output.toBytes();
+        output.reset();
+        dictionary.write(output, "2", 6, name);
+        assertEquals(full.length, output.position()); // no reply yet, the first frame may still be in flight
+        dictionary.confirm("2", 5);
+        output.reset();
+        dictionary.write(output, "2", 7, name);
+        byte[] reference = output.toBytes();
+        assertEquals(1, reference.length);
+
+        DescriptorDictionary.Table received = dictionary.received("1", 42);
+        assertEquals(name, received.read(new Input(full)));
+        assertEquals(name, received.read(new Input(reference)));
+        assertNull(dictionary.received("1", 43).read(new Input(reference))); // sender restarted, the old id means nothing
+
+        DistributedExecutor<String> aNew = getNew();
+        String captured = "dictionary";
+        assertEquals(captured.length(), aNew.runMethod("2", () -> captured.length()).join());
+        assertEquals(captured.length() + 1, aNew.runMethod("2", () -> captured.length() + 1).join()); // same class and interface, referenced by id
+        aNew.shutdown();
+    }
+
+    @Test
+    public void testCaptureCache() throws InterruptedException {
+        DistributedExecutor<String> aNew = getNew();
+        CaptureCache captures = aNew.getCaptureCache();
+        captures.cache(int[].class);
+        int[] config = new int[10_000];
+        Arrays.fill(config, 3);
+        for(int i = 0; i < 3; i++) {
+            assertEquals(30_000, aNew.runMethod("2", () -> Arrays.stream(config).sum()).join());
+        }
+        assertEquals(2, captures.getReferencedCount()); // first call carried the bytes
+        assertTrue(captures.getSavedBytes() > 2 * 10_000);
+
+        captures.setCapacity(1);
+        int[] other = new int[10_000];
+        Arrays.fill(other, 1);
+        assertEquals(10_000, aNew.runMethod("3", () -> Arrays.stream(other).sum()).join()); // loopback receives both from "1", so this evicts config and "2" isn't told
+        assertEquals(30_000, aNew.runMethod("2", () -> Arrays.stream(config).sum()).join());
+        assertEquals(1, captures.getMisses());
+
+        long referenced = captures.getReferencedCount();
+        aNew.runAndForget("2", () -> forgottenSum.set(Arrays.stream(config).sum())).join();
+        while(forgottenSum.get() == 0) Thread.sleep(5);
+        assertEquals(30_000, forgottenSum.get());
+        assertEquals(referenced, captures.getReferencedCount()); // nothing replies to confirm a reference
+        aNew.shutdown();
+    }
+
+    public static final AtomicInteger forgottenSum = new AtomicInteger();
+
+    public static final AtomicInteger streamedElements = new AtomicInteger();
+    private static final CountDownLatch schedulerGate = new CountDownLatch(1);
+    private static final List<String> scheduledOrder = Collections.synchronizedList(new ArrayList<>());
+
+    public static int awaitSchedulerGate() {
+        try {
+            schedulerGate.await();
+        } catch(InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return 1;
+    }
+
+    public static int recordScheduled(String lane) {
+        scheduledOrder.add(lane);
+        return 2;
+    }
+
+    @Test
+    public void testRemoteWorkScheduler() throws InterruptedException {
+        DistributedExecutor<String> aNew = getNew();
+        BoundedWorkScheduler scheduler = new BoundedWorkScheduler();
+        scheduler.setConcurrency(1);
+        scheduler.setQueueLimit(1);
+        aNew.setScheduler(scheduler);
+        CompletableFuture<Integer> blocking = aNew.runMethod("2", LamadaTests::awaitSchedulerGate);
+        while(scheduler.getRunning() == 0) Thread.sleep(5);
+        CompletableFuture<Void> forgotten = aNew.runAndForget("2", () -> recordScheduled("forget"));
+        while(scheduler.getQueued(RemoteWorkScheduler.Lane.FORGET) == 0) Thread.sleep(5);
+        CompletableFuture<Integer> queued = aNew.runMethod("2", () -> recordScheduled("sync"));
+        while(scheduler.getQueued(RemoteWorkScheduler.Lane.SYNC) == 0) Thread.sleep(5);
+
+        CompletionException rejected = assertThrows(CompletionException.class, () -> aNew.runMethod("2", () -> 3).join());
+        assertTrue(rejected.getCause().getMessage().contains("WorkRejectedException"), rejected.getCause().getMessage());
+        assertEquals(1, scheduler.getRejected());
+
+        schedulerGate.countDown();
+        assertEquals(1, blocking.join());
+        assertEquals(2, queued.join());
+        forgotten.join();
+        assertEquals(List.of("sync", "forget"), scheduledOrder); // waiting sender goes first
+        assertEquals(0, scheduler.getQueued());
+        aNew.shutdown();
+        assertEquals(0, scheduler.getRunning());
+
+        AtomicInteger executions = new AtomicInteger();
+        BoundedWorkScheduler closing = new BoundedWorkScheduler(task -> {
+            if(executions.getAndIncrement() > 0) throw new RejectedExecutionException("Workers are gone");
+            task.run();
+        });
+        closing.setConcurrency(1);
+        ExecutionContext context = new ExecutionContext(null, "2", null, ExecutableInterface.RUNNABLE, null, 0);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        assertTrue(closing.submit(context, RemoteWorkScheduler.Lane.SYNC, () -> first));
+        AtomicBoolean dropped = new AtomicBoolean();
+        assertTrue(closing.submit(context, RemoteWorkScheduler.Lane.SYNC, () -> null, () -> dropped.set(true)));
+        first.complete(null); // queued work gets the slot, but workers don't take it anymore
+        assertTrue(dropped.get());
+        assertEquals(1, closing.getRejected());
+    }
+
+    public static final class Counter {
+        private int value;
+
+        public int get() {
+            return value;
+        }
+
+        public void set(int value) {
+            this.value = value;
+        }
+    }
+
+    public static int incrementSlowly(Counter counter) {
+        int value = counter.get();
+        try {
+            Thread.sleep(1); // lets a parallel call read the same value
+        } catch(InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        counter.set(value + 1);
+        return value + 1;
+    }
+
+    @Test
+    public void testSerialPerKey() throws InterruptedException {
+        DistributedExecutor<String> aNew = new DistributedExecutor<>("1");
+        aNew.setTargetManager(new LoopbackRemoteTargetManager<>(aNew));
+        aNew.setSender(new LoopbackSender<>());
+        aNew.setExecutor(Executors.newFixedThreadPool(8));
+        Map<Integer, Counter> counters = Map.of(1, new Counter(), 2, new Counter());
+        FunctionalDistributedObject<Integer, Counter, String> objects = new FunctionalDistributedObject<>(aNew, Counter.class, Integer.class, false);
+        objects.setSerialization(counter -> -1, counters::get);
+        objects.setSerialPerKey(16);
+        aNew.sync();
+        List<CompletableFuture<Integer>> calls = new ArrayList<>();
+        for(int i = 0; i < 40; i++) {
+            calls.add(objects.runMethod("2", 1 + i % 2, LamadaTests::incrementSlowly));
+        }
+        calls.forEach(CompletableFuture::join);
+        assertEquals(20, counters.get(1).get());
+        assertEquals(20, counters.get(2).get());
+
+        calls.clear();
+        for(int i = 0; i < 40; i++) {
+            calls.add(objects.runMethod(i % 2 == 0 ? "1" : "2", 1, LamadaTests::incrementSlowly)); // own target waits its turn too
+        }
+        calls.forEach(CompletableFuture::join);
+        assertEquals(60, counters.get(1).get());
+
+        BoundedWorkScheduler scheduler = new BoundedWorkScheduler();
+        scheduler.setConcurrency(2);
+        aNew.setScheduler(scheduler);
+        List<CompletableFuture<Integer>> blocked = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            blocked.add(objects.runMethod("2", 1, LamadaTests::awaitSerialGate));
+        }
+        while(scheduler.getRunning() == 0) Thread.sleep(5);
+        assertEquals(21, objects.runMethod("2", 2, LamadaTests::incrementSlowly).join()); // waiting calls on key 1 hold no slots
+        serialGate.countDown();
+        blocked.forEach(CompletableFuture::join);
+        aNew.shutdown();
+    }
+
+    private static final CountDownLatch serialGate = new CountDownLatch(1);
+
+    public static int awaitSerialGate(Counter counter) {
+        try {
+            serialGate.await();
+        } catch(InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return counter.get();
+    }
+
+    @Test
+    public void testKeyRouting() {
+        DistributedExecutor<String> aNew = new DistributedExecutor<>("1");
+        LocalKeyDirectory<String> directory = new LocalKeyDirectory<>();
+        aNew.setTargetManager(new LoopbackRemoteTargetManager<>(aNew, directory));
+        aNew.setSender(new LoopbackSender<>());
+        aNew.setExecutor(Executors.newSingleThreadExecutor());
+        Map<Integer, Counter> counters = Map.of(1, new Counter());
+        FunctionalDistributedObject<Integer, Counter, String> objects = new FunctionalDistributedObject<>(aNew, Counter.class, Integer.class, false);
+        objects.setSerialization(counter -> -1, counters::get);
+        CachedKeyLocator<Integer, String> locator = objects.useKeyDirectory();
+        aNew.sync();
+
+        CompletionException unowned = assertThrows(CompletionException.class, () -> objects.runMethod(1, Counter::get).join());
+        assertInstanceOf(KeyNotOwnedException.class, unowned.getCause());
+        locator.claim(1, "2").join();
+        assertEquals(1, objects.runMethod(1, LamadaTests::incrementSlowly).join());
+        assertEquals(2, objects.runMethod(1, LamadaTests::incrementSlowly).join());
+        assertEquals(1, locator.getMisses()); // only the unowned key was looked up
+        assertEquals(2, locator.getHits());
+
+        directory.assign(Counter.class.getName(), "1", "3").join(); // another target took the key over
+        assertEquals("3", locator.locate(1).join());
+        assertEquals(1, locator.getMisses());
+        locator.clear();
+        assertEquals("3", locator.locate(1).join());
+        assertEquals(2, locator.getMisses());
+
+        CachedKeyLocator<Integer, String> replacing = objects.useKeyDirectory();
+        assertEquals("3", replacing.locate(1).join());
+        directory.assign(Counter.class.getName(), "1", "2").join();
+        assertEquals("2", replacing.locate(1).join());
+        assertEquals("3", locator.locate(1).join()); // replaced locator stopped listening
+        aNew.shutdown();
+    }
+
+    @Test
+    public void testConsistentHashPartitioner() {
+        DistributedExecutor<String> aNew = new DistributedExecutor<>("1");
+        LoopbackRemoteTargetManager<String> targetManager = new LoopbackRemoteTargetManager<>(aNew);
+        aNew.setTargetManager(targetManager);
+        aNew.setSender(new LoopbackSender<>());
+        aNew.setExecutor(Executors.newSingleThreadExecutor());
+        Map<Integer, Counter> counters = new HashMap<>();
+        FunctionalDistributedObject<Integer, Counter, String> objects = new FunctionalDistributedObject<>(aNew, Counter.class, Integer.class, false);
+        objects.setSerialization(counter -> -1, key -> counters.computeIfAbsent(key, __ -> new Counter()));
+        targetManager.setLiveTargets(List.of("1", "2", "3"));
+        ConsistentHashPartitioner<Integer, String> partitioner = objects.usePartitioner();
+        aNew.sync();
+
+        List<Integer> keys = IntStream.range(0, 3000).boxed().toList();
+        assertEquals(1, objects.runMethod(7, LamadaTests::incrementSlowly).join()); // ring was built when installed
+        ConsistentHashPartitioner.Ring<String> before = partitioner.getRing();
+        for(String target : List.of("1", "2", "3")) {
+            int owned = before.ownedBy(target, keys).size();
+            assertTrue(owned > 700 && owned < 1300, target + " owns " + owned + " keys");
+        }
+
+        List<ConsistentHashPartitioner.Ring<String>> rebalances = new ArrayList<>();
+        partitioner.addRebalanceListener((previous, current) -> rebalances.add(current));
+        targetManager.setLiveTargets(List.of("1", "2", "3", "4"));
+        assertTrue(partitioner.refresh());
+        assertFalse(partitioner.refresh()); // same targets, same ring
+        ConsistentHashPartitioner.Ring<String> after = partitioner.getRing();
+        assertEquals(List.of(after), rebalances);
+
+        int changed = 0;
+        for(Integer key : keys) {
+            if(!before.ownerOf(key).equals(after.ownerOf(key))) changed++;
+        }
+        List<Integer> moved = after.movedTo("4", before, keys);
+        assertEquals(changed, moved.size()); // only keys of the new target changed owners
+        assertEquals(after.ownedBy("4", keys), moved);
+        assertTrue(changed > 450 && changed < 1050, changed + " keys moved");
+        assertEquals(after.ownerOf(7), partitioner.locate(7).join());
+
+        AtomicInteger asked = new AtomicInteger();
+        ConsistentHashPartitioner<Integer, String> racing = new ConsistentHashPartitioner<>(() -> {
+            asked.incrementAndGet();
+            return List.of("1", "2");
+        }, aNew.getAsync());
+        List<CompletableFuture<String>> located = IntStream.range(0, 50).mapToObj(racing::locate).toList();
+        List<String> owners = located.stream().map(CompletableFuture::join).toList();
+        for(int i = 0; i < owners.size(); i++) {
+            assertEquals(racing.ownerOf(i), owners.get(i));
+        }
+        assertEquals(1, asked.get()); // callers arriving before the first ring share one refresh
+
+        ConsistentHashPartitioner<Integer, String> failing = new ConsistentHashPartitioner<>(() -> {
+            throw new IllegalStateException("No targets yet");
+        }, aNew.getAsync());
+        CompletionException noRing = assertThrows(CompletionException.class, () -> failing.locate(1).join());
+        assertInstanceOf(IllegalStateException.class, noRing.getCause());
+        aNew.shutdown();
+    }
+
+    @Test
+    public void testPooledSerializationUnderLoad() throws Exception {
+        DistributedExecutor<String> aNew = getNew();
+        aNew.setMaxPooled(2);
+        aNew.setMaxRetainedBuffer(1024);
+        byte[] big = new byte[8 * 1024];
+        Arrays.fill(big, (byte) 7);
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        try(var threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for(int i = 0; i < 200; i++) {
+                int number = i;
+                // every other call is bigger than the retained buffer, so outputs keep being dropped and recreated
+                results.add(CompletableFuture.supplyAsync(() -> number % 2 == 0
+                    ? aNew.runMethod("1", () -> number).join()
+                    : aNew.runMethod("1", () -> big.length + number).join() - big.length, threads));
+            }
+            for(int i = 0; i < results.size(); i++) {
+                assertEquals(i, results.get(i).get());
+            }
+        }
+        aNew.shutdown();
+    }
+
+    @Test
+    public void testPendingOperationsOverflow() {
+        PendingOperations pending = new PendingOperations(4);
+        List<CompletableFuture<Integer>> replies = new ArrayList<>();
+        for(int i = 0; i < 10; i++) { // more than fits into the ring, some go to overflow
+            CompletableFuture<Integer> reply = new CompletableFuture<>();
+            replies.add(reply);
+            pending.attachReply(i, reply);
+        }
+        assertEquals(10, pending.size());
+        for(int i = 9; i >= 0; i--) {
+            assertSame(replies.get(i), pending.takeReply(i));
+            assertNull(pending.takeReply(i));
+        }
+        assertEquals(0, pending.size());
+    }
+
+    @Test
+    public void testAbandonedOperationsExpire() throws InterruptedException {
+        DistributedExecutor<String> silent = new DistributedExecutor<>("silent");
+        silent.setTargetManager(new LoopbackRemoteTargetManager<>(silent));
+        silent.setExecutor(Executors.newSingleThreadExecutor());
+        // accepts everything and never replies, the way a dead target would
+        silent.setSender((object, to, opNumber, data, timeout) -> {
+            CompletableFuture<byte[]> reply = new CompletableFuture<>();
+            if(timeout > DistributedObject.TIMEOUT_MODE_FORGET) {
+                silent.getPendingOperations().attachReply(opNumber, reply);
+            } else {
+                reply.complete(null);
+            }
+            return reply;
+        });
+        silent.sync();
+        CompletableFuture<String> abandoned = silent.getStaticObject().runMethod("nowhere", 200, () -> "Never");
+        silent.runAndForget("nowhere", () -> System.out.println("Forgotten")).join();
+        CompletionException thrown = assertThrows(CompletionException.class, abandoned::join);
+        assertInstanceOf(TimeoutException.class, thrown.getCause());
+        assertEquals(0, silent.getPendingOperations().size());
+        assertEquals(1, silent.getPendingOperations().getExpiredCount());
+        silent.shutdown();
+    }
+
     @Test
     public void testShutdown() {
         DistributedExecutor<String> aNew = getNew();